@@ -9,6 +9,7 @@ import io.netty.bootstrap.ChannelFactory;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
 import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.util.internal.PlatformDependent;
@@ -16,6 +17,8 @@ import com.github.netty.core.support.LoggerX;
 import com.github.netty.core.support.LoggerFactoryX;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -36,6 +39,13 @@ public abstract class AbstractNettyServer implements Runnable{
     private Channel serverChannel;
     private InetSocketAddress serverAddress;
     private boolean enableEpoll;
+    /**
+     * SO_REUSEPORT模式 (仅epoll): 同一端口绑定多个serverChannel, 由内核把新连接分摊到各个acceptor
+     */
+    private boolean enableReusePort;
+    private int reusePortAcceptorCount;
+    private EventLoopGroup[] reusePortWorkers;
+    private final List<Channel> reusePortServerChannels = new ArrayList<>();
 
     public AbstractNettyServer(int port) {
         this(new InetSocketAddress(port));
@@ -48,11 +58,22 @@ public abstract class AbstractNettyServer implements Runnable{
     public AbstractNettyServer(String preName,InetSocketAddress address) {
         super();
         this.enableEpoll = HostUtil.isLinux() && Epoll.isAvailable();
+        this.reusePortAcceptorCount = Optimize.getServerReusePortAcceptorCount();
+        this.enableReusePort = enableEpoll && reusePortAcceptorCount > 1;
+        if(enableReusePort && isOverrideWorkerEventLoopGroup()){
+            //子类自己创建工作线程组, 不能按acceptor拆分, 退回只绑定一个serverChannel
+            logger.warn(getClass().getName() + " override newWorkerEventLoopGroup(), reusePort disabled");
+            this.enableReusePort = false;
+        }
         this.serverAddress = address;
         this.name = NamespaceUtil.newIdName(preName,getClass());
         this.bootstrap = newServerBootstrap();
         this.boss = newBossEventLoopGroup();
-        this.worker = newWorkerEventLoopGroup();
+        if(enableReusePort){
+            this.reusePortWorkers = newReusePortWorkerEventLoopGroups();
+        }else {
+            this.worker = newWorkerEventLoopGroup();
+        }
         this.channelFactory = newServerChannelFactory();
         this.initializerChannelHandler = newInitializerChannelHandler();
     }
@@ -65,8 +86,16 @@ public abstract class AbstractNettyServer implements Runnable{
     }
 
     protected EventLoopGroup newWorkerEventLoopGroup() {
+        return newWorkerEventLoopGroup(Optimize.getServerEventLoopWorkerCount());
+    }
+
+    /**
+     * 创建工作线程组, SO_REUSEPORT模式下每个acceptor调用一次
+     * @param nEventLoopCount 线程数, 0 = netty默认
+     * @return 工作线程组
+     */
+    protected EventLoopGroup newWorkerEventLoopGroup(int nEventLoopCount) {
         EventLoopGroup worker;
-        int nEventLoopCount = Optimize.getServerEventLoopWorkerCount();
         if(enableEpoll){
             worker = new EpollEventLoopGroup(nEventLoopCount);
         }else {
@@ -75,11 +104,49 @@ public abstract class AbstractNettyServer implements Runnable{
         return worker;
     }
 
+    /**
+     * SO_REUSEPORT模式下, 每个acceptor独占一组工作线程, 总线程数按acceptor数量平分
+     * @return 与acceptor一一对应的工作线程组
+     */
+    protected EventLoopGroup[] newReusePortWorkerEventLoopGroups() {
+        int nEventLoopCount = Optimize.getServerEventLoopWorkerCount();
+        if(nEventLoopCount <= 0){
+            nEventLoopCount = Runtime.getRuntime().availableProcessors() * 2;
+        }
+        int sliceCount = Math.max(1, nEventLoopCount / reusePortAcceptorCount);
+        int ioRatio = Optimize.getServerEventLoopIoRatio();
+
+        EventLoopGroup[] workers = new EventLoopGroup[reusePortAcceptorCount];
+        for(int i=0; i<workers.length; i++){
+            workers[i] = newWorkerEventLoopGroup(sliceCount);
+            if(workers[i] instanceof EpollEventLoopGroup) {
+                ((EpollEventLoopGroup) workers[i]).setIoRatio(ioRatio);
+            }
+        }
+        return workers;
+    }
+
+    /**
+     * 子类是否重写了 newWorkerEventLoopGroup()
+     */
+    private boolean isOverrideWorkerEventLoopGroup(){
+        for(Class<?> clazz = getClass(); clazz != AbstractNettyServer.class; clazz = clazz.getSuperclass()){
+            try {
+                clazz.getDeclaredMethod("newWorkerEventLoopGroup");
+                return true;
+            } catch (NoSuchMethodException e) {
+                //
+            }
+        }
+        return false;
+    }
+
     protected EventLoopGroup newBossEventLoopGroup() {
         EventLoopGroup boss;
         int ioRatio = Optimize.getServerEventLoopIoRatio();
         if(enableEpoll){
-            EpollEventLoopGroup epollBoss = new EpollEventLoopGroup(1);
+            //SO_REUSEPORT模式下每个acceptor一条线程
+            EpollEventLoopGroup epollBoss = new EpollEventLoopGroup(enableReusePort? reusePortAcceptorCount : 1);
             epollBoss.setIoRatio(ioRatio);
             boss = epollBoss;
         }else {
@@ -103,22 +170,12 @@ public abstract class AbstractNettyServer implements Runnable{
     @Override
     public final void run() {
         try {
-            bootstrap
-                    .group(boss, worker)
-                    .channelFactory(channelFactory)
-                    .childHandler(initializerChannelHandler)
-                    //允许在同一端口上启动同一服务器的多个实例，只要每个实例捆绑一个不同的本地IP地址即可
-                    .option(ChannelOption.SO_REUSEADDR, true)
-                    //用于构造服务端套接字ServerSocket对象，标识当服务器请求处理线程全满时，用于临时存放已完成三次握手的请求的队列的最大长度
-//                    .option(ChannelOption.SO_BACKLOG, 1024) // determining the number of connections queued
-
-                    //禁用Nagle算法，即数据包立即发送出去 (在TCP_NODELAY模式下，假设有3个小包要发送，第一个小包发出后，接下来的小包需要等待之前的小包被ack，在这期间小包会合并，直到接收到之前包的ack后才会发生)
-                    .childOption(ChannelOption.TCP_NODELAY, true)
-                    //开启TCP/IP协议实现的心跳机制
-                    .childOption(ChannelOption.SO_KEEPALIVE, true)
-                    //netty的默认内存分配器
-                    .childOption(ChannelOption.ALLOCATOR, PartialPooledByteBufAllocator.INSTANCE);
-//                    .childOption(ChannelOption.ALLOCATOR, ByteBufAllocator.DEFAULT);
+            if(enableReusePort){
+                bindReusePort();
+                return;
+            }
+
+            initBootstrap(bootstrap, boss, worker);
 
             ChannelFuture channelFuture = bootstrap.bind(serverAddress);
             //堵塞
@@ -139,6 +196,77 @@ public abstract class AbstractNettyServer implements Runnable{
         }
     }
 
+    /**
+     * SO_REUSEPORT模式: 每个acceptor用一个独立的bootstrap, 绑定在boss的不同线程上, 子连接交给自己的那组工作线程
+     * @throws InterruptedException 等待绑定时被中断
+     */
+    private void bindReusePort() throws InterruptedException {
+        List<ChannelFuture> bindFutureList = new ArrayList<>(reusePortAcceptorCount);
+        InetSocketAddress bindAddress = serverAddress;
+        for(int i=0; i<reusePortAcceptorCount; i++){
+            ServerBootstrap acceptorBootstrap = i == 0? bootstrap : newServerBootstrap();
+            //next()是轮询的, 保证每个acceptor各占boss里的一个线程
+            initBootstrap(acceptorBootstrap, boss.next(), reusePortWorkers[i])
+                    .option(EpollChannelOption.SO_REUSEPORT, true);
+
+            ChannelFuture bindFuture = acceptorBootstrap.bind(bindAddress);
+            bindFutureList.add(bindFuture);
+            //端口0由系统分配, 后面的acceptor要绑定第一个分到的端口, 不然每个acceptor各占一个端口
+            if(i == 0 && bindAddress.getPort() == 0){
+                bindFuture.await();
+                if(!bindFuture.isSuccess()){
+                    break;
+                }
+                int port = ((InetSocketAddress) bindFuture.channel().localAddress()).getPort();
+                bindAddress = new InetSocketAddress(serverAddress.getAddress(), port);
+            }
+        }
+
+        Throwable cause = null;
+        for(ChannelFuture bindFuture : bindFutureList){
+            bindFuture.await();
+            if(bindFuture.isSuccess()){
+                reusePortServerChannels.add(bindFuture.channel());
+            }else if(cause == null){
+                cause = bindFuture.cause();
+            }
+        }
+
+        //有一个绑定失败就全部关掉, 不留下半启动的状态
+        if(cause != null){
+            for(Channel channel : reusePortServerChannels){
+                channel.close();
+            }
+            reusePortServerChannels.clear();
+        }
+
+        startAfter(cause);
+
+        if(cause == null) {
+            serverChannel = reusePortServerChannels.get(0);
+            closeFuture = serverChannel.closeFuture();
+        }
+    }
+
+    private ServerBootstrap initBootstrap(ServerBootstrap bootstrap,EventLoopGroup boss,EventLoopGroup worker){
+        return bootstrap
+                .group(boss, worker)
+                .channelFactory(channelFactory)
+                .childHandler(initializerChannelHandler)
+                //允许在同一端口上启动同一服务器的多个实例，只要每个实例捆绑一个不同的本地IP地址即可
+                .option(ChannelOption.SO_REUSEADDR, true)
+                //用于构造服务端套接字ServerSocket对象，标识当服务器请求处理线程全满时，用于临时存放已完成三次握手的请求的队列的最大长度
+//                .option(ChannelOption.SO_BACKLOG, 1024) // determining the number of connections queued
+
+                //禁用Nagle算法，即数据包立即发送出去 (在TCP_NODELAY模式下，假设有3个小包要发送，第一个小包发出后，接下来的小包需要等待之前的小包被ack，在这期间小包会合并，直到接收到之前包的ack后才会发生)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                //开启TCP/IP协议实现的心跳机制
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                //netty的默认内存分配器
+                .childOption(ChannelOption.ALLOCATOR, PartialPooledByteBufAllocator.INSTANCE);
+//                .childOption(ChannelOption.ALLOCATOR, ByteBufAllocator.DEFAULT);
+    }
+
     public void stop() {
         Throwable cause = null;
         try {
@@ -148,9 +276,17 @@ public abstract class AbstractNettyServer implements Runnable{
             if(worker != null) {
                 worker.shutdownGracefully().sync();
             }
+            if(reusePortWorkers != null){
+                for(EventLoopGroup reusePortWorker : reusePortWorkers){
+                    reusePortWorker.shutdownGracefully().sync();
+                }
+            }
             if(serverChannel != null) {
                 serverChannel.close();
             }
+            for(Channel channel : reusePortServerChannels){
+                channel.close();
+            }
 
         } catch (InterruptedException e) {
             cause = e;
@@ -188,7 +324,7 @@ public abstract class AbstractNettyServer implements Runnable{
         if(cause != null){
             PlatformDependent.throwException(cause);
         }
-        logger.info(name + " start [port = "+getPort()+"]...");
+        logger.info(name + " start [port = "+getPort()+(enableReusePort? ", reusePort acceptor = "+reusePortAcceptorCount : "")+"]...");
     }
 
     @Override
@@ -1,8 +1,8 @@
 package com.github.netty.core;
 
 import com.github.netty.core.constants.VersionConstants;
+import com.github.netty.core.support.AbstractRecyclable;
 import com.github.netty.core.support.AbstractRecycler;
-import com.github.netty.core.support.Recyclable;
 import com.github.netty.core.support.Wrapper;
 import com.github.netty.core.util.ReflectUtil;
 import io.netty.buffer.ByteBuf;
@@ -20,7 +20,7 @@ import java.util.Objects;
  * @author acer01
  * 2018/7/28/028
  */
-public class NettyHttpRequest implements FullHttpRequest,Wrapper<FullHttpRequest>,Recyclable {
+public class NettyHttpRequest extends AbstractRecyclable implements FullHttpRequest,Wrapper<FullHttpRequest> {
 
     private static final AbstractRecycler<NettyHttpRequest> RECYCLER = new AbstractRecycler<NettyHttpRequest>() {
         @Override
@@ -1,7 +1,7 @@
 package com.github.netty.core;
 
 import com.github.netty.core.constants.VersionConstants;
-import com.github.netty.core.support.Recyclable;
+import com.github.netty.core.support.AbstractRecyclable;
 import com.github.netty.core.support.AbstractRecycler;
 import com.github.netty.core.support.Wrapper;
 import com.github.netty.core.util.ReflectUtil;
@@ -21,7 +21,7 @@ import java.util.Objects;
  * @author acer01
  * 2018/7/28/028
  */
-public class NettyHttpResponse implements HttpResponse,Wrapper<HttpResponse>,Recyclable {
+public class NettyHttpResponse extends AbstractRecyclable implements HttpResponse,Wrapper<HttpResponse> {
 
     private static final AbstractRecycler<NettyHttpResponse> RECYCLER = new AbstractRecycler<NettyHttpResponse>() {
         @Override
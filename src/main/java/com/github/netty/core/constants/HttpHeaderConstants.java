@@ -1,6 +1,9 @@
 package com.github.netty.core.constants;
 
+import io.netty.util.AsciiString;
+
 /**
+ * 每个响应都会写的头用 AsciiString, 编码时直接复制字节, 不用逐个字符转换
  * @author 84215
  */
 public class HttpHeaderConstants {
@@ -100,7 +103,7 @@ public class HttpHeaderConstants {
     /**
      * {@code "Connection"}
      */
-    public static final CharSequence CONNECTION = "Connection";
+    public static final CharSequence CONNECTION = AsciiString.cached("Connection");
     /**
      * {@code "Content-Base"}
      */
@@ -116,7 +119,7 @@ public class HttpHeaderConstants {
     /**
      * {@code "Content-Length"}
      */
-    public static final CharSequence CONTENT_LENGTH = "Content-Length";
+    public static final CharSequence CONTENT_LENGTH = AsciiString.cached("Content-Length");
     /**
      * {@code "Content-Location"}
      */
@@ -136,7 +139,7 @@ public class HttpHeaderConstants {
     /**
      * {@code "Content-Type"}
      */
-    public static final CharSequence CONTENT_TYPE = "Content-Type";
+    public static final CharSequence CONTENT_TYPE = AsciiString.cached("Content-Type");
     /**
      * {@code "Cookie"}
      */
@@ -144,7 +147,7 @@ public class HttpHeaderConstants {
     /**
      * {@code "Date"}
      */
-    public static final CharSequence DATE = "Date";
+    public static final CharSequence DATE = AsciiString.cached("Date");
     /**
      * {@code "ETag"}
      */
@@ -260,11 +263,11 @@ public class HttpHeaderConstants {
     /**
      * {@code "Server"}
      */
-    public static final CharSequence SERVER = "Server";
+    public static final CharSequence SERVER = AsciiString.cached("Server");
     /**
      * {@code "Set-Cookie"}
      */
-    public static final CharSequence SET_COOKIE = "Set-Cookie";
+    public static final CharSequence SET_COOKIE = AsciiString.cached("Set-Cookie");
     /**
      * {@code "Set-Cookie2"}
      */
@@ -280,7 +283,7 @@ public class HttpHeaderConstants {
     /**
      * {@code "Transfer-Encoding"}
      */
-    public static final CharSequence TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final CharSequence TRANSFER_ENCODING = AsciiString.cached("Transfer-Encoding");
     /**
      * {@code "Upgrade"}
      */
@@ -350,11 +353,11 @@ public class HttpHeaderConstants {
     /**
      * {@code "chunked"}
      */
-    public static final CharSequence CHUNKED = "chunked";
+    public static final CharSequence CHUNKED = AsciiString.cached("chunked");
     /**
      * {@code "close"}
      */
-    public static final CharSequence CLOSE = "close";
+    public static final CharSequence CLOSE = AsciiString.cached("close");
     /**
      * {@code "compress"}
      */
@@ -378,7 +381,7 @@ public class HttpHeaderConstants {
     /**
      * {@code "keep-alive"}
      */
-    public static final CharSequence KEEP_ALIVE = "keep-alive";
+    public static final CharSequence KEEP_ALIVE = AsciiString.cached("keep-alive");
     /**
      * {@code "max-age"}
      */
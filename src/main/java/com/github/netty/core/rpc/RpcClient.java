@@ -2,6 +2,7 @@ package com.github.netty.core.rpc;
 
 import com.github.netty.core.AbstractChannelHandler;
 import com.github.netty.core.AbstractNettyClient;
+import com.github.netty.core.rpc.codec.BinaryDataCodec;
 import com.github.netty.core.rpc.codec.DataCodec;
 import com.github.netty.core.rpc.codec.JsonDataCodec;
 import com.github.netty.core.rpc.codec.RpcProto;
@@ -11,12 +12,13 @@ import com.github.netty.core.rpc.exception.RpcException;
 import com.github.netty.core.rpc.exception.RpcResponseException;
 import com.github.netty.core.rpc.exception.RpcTimeoutException;
 import com.github.netty.core.rpc.service.RpcCommandService;
+import com.github.netty.core.rpc.service.RpcDBAsyncService;
 import com.github.netty.core.rpc.service.RpcDBService;
 import com.github.netty.core.support.Optimize;
 import com.github.netty.core.support.ThreadPoolX;
 import com.github.netty.core.util.ReflectUtil;
-import com.google.protobuf.ByteString;
 import com.google.protobuf.MessageLiteOrBuilder;
+import com.google.protobuf.UnsafeByteOperations;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
 import io.netty.channel.socket.SocketChannel;
@@ -28,13 +30,15 @@ import io.netty.handler.codec.protobuf.ProtobufDecoder;
 import io.netty.handler.codec.protobuf.ProtobufEncoder;
 import io.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
 import io.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
-import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -64,9 +68,17 @@ public class RpcClient extends AbstractNettyClient{
     }
 
     /**
-     * 数据编码解码器
+     * 数据编码解码器 (握手成功后, 有方法id的请求用它)
      */
-    private DataCodec dataCodec = new JsonDataCodec();
+    private final DataCodec dataCodec;
+    /**
+     * 服务端上这个编码解码器的下标, -1 = 服务端不支持 (用json)
+     */
+    private volatile int dataCodecIndex = -1;
+    /**
+     * 握手前, 或者没有方法id的请求用json
+     */
+    private final DataCodec jsonDataCodec = new JsonDataCodec();
     /**
      * rpc客户端处理器
      */
@@ -84,17 +96,25 @@ public class RpcClient extends AbstractNettyClient{
      */
     private RpcDBService rpcDBService;
     /**
-     * 请求锁
+     * rpc数据服务(异步)
      */
-    private final Map<Long,RpcLock> requestLockMap = new LongObjectHashMap<>(64);
+    private RpcDBAsyncService rpcDBAsyncService;
+    /**
+     * 等待响应的请求
+     */
+    private final RpcPendingTable rpcPendingTable = new RpcPendingTable();
     /**
      * 生成请求id
      */
     private final AtomicLong requestIdIncr = new AtomicLong();
     /**
-     * 实例
+     * 实例 (同一个服务可以有多个实例, 例: 同步和异步的接口)
+     */
+    private final Set<RpcInstance> instanceSet = Collections.newSetFromMap(new WeakHashMap<>());
+    /**
+     * 服务端的方法目录 (方法签名 -> 方法id), 空的 = 用方法名调用
      */
-    private final Map<String,RpcInstance> instanceMap = new WeakHashMap<>();
+    private volatile Map<String,Integer> methodCatalog = Collections.emptyMap();
     /**
      * 方法重写
      */
@@ -109,7 +129,15 @@ public class RpcClient extends AbstractNettyClient{
     }
 
     public RpcClient(String namePre, InetSocketAddress remoteAddress,int socketChannelCount) {
+        this(namePre, remoteAddress, socketChannelCount, Optimize.isEnableRpcBinaryCodec()? new BinaryDataCodec() : new JsonDataCodec());
+    }
+
+    /**
+     * @param dataCodec 数据编码解码器, 握手时服务端没有同名的就用json
+     */
+    public RpcClient(String namePre, InetSocketAddress remoteAddress,int socketChannelCount,DataCodec dataCodec) {
         super(namePre, remoteAddress, socketChannelCount);
+        this.dataCodec = dataCodec;
         run();
     }
 
@@ -154,6 +182,14 @@ public class RpcClient extends AbstractNettyClient{
         return state;
     }
 
+    /**
+     * 获取等待响应的请求数量
+     * @return
+     */
+    public int getPendingCount() {
+        return rpcPendingTable.size();
+    }
+
     /**
      * 新建请求id
      * @return
@@ -177,13 +213,64 @@ public class RpcClient extends AbstractNettyClient{
 
         String serviceName = rpcInterfaceAnn.value();
         int timeout = rpcInterfaceAnn.timeout();
-        RpcInstance rpcInstance = new RpcInstance(timeout, serviceName);
+        RpcInstance rpcInstance = new RpcInstance(timeout, serviceName, clazz);
 
-        T instance = (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, rpcInstance);
-        instanceMap.put(serviceName,rpcInstance);
+        //优先用生成的stub, 不支持时用反射代理
+        T instance = RpcStubGenerator.newClientStub(clazz, rpcInstance);
+        if(instance == null) {
+            instance = (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, rpcInstance);
+        }
+        rpcInstance.instance = instance;
+        synchronized (instanceSet) {
+            instanceSet.add(rpcInstance);
+            rpcInstance.applyMethodCatalog(methodCatalog);
+        }
         return instance;
     }
 
+    /**
+     * 握手: 向服务端拿方法目录, 之后的请求只带方法id. 服务端不支持时 (老版本) 继续用方法名
+     * 再选编码解码器, 服务端不支持时用json
+     */
+    protected void handshake(){
+        //握手的请求自己也要用方法名和json, 先清空旧的方法id (重连后服务端可能重启过, 旧的id不能用了)
+        setMethodCatalog(Collections.emptyMap());
+        dataCodecIndex = -1;
+        if(!Optimize.isEnableRpcMethodId() || rpcCommandService == null){
+            return;
+        }
+        try {
+            Map<String,Integer> catalog = rpcCommandService.getMethodCatalog();
+            if(catalog != null) {
+                setMethodCatalog(catalog);
+            }
+        }catch (RpcResponseException e){
+            logger.info("服务端没有方法目录, 用方法名调用 : " + e.getMessage());
+            return;
+        }catch (RpcException e){
+            logger.error("获取方法目录失败, 用方法名调用 : " + e.getMessage());
+            return;
+        }
+
+        try {
+            List<String> dataCodecNames = rpcCommandService.getDataCodecNames();
+            dataCodecIndex = dataCodecNames == null? -1 : dataCodecNames.indexOf(dataCodec.getName());
+        }catch (RpcResponseException e){
+            logger.info("服务端不能选编码解码器, 用json : " + e.getMessage());
+        }catch (RpcException e){
+            logger.error("获取编码解码器失败, 用json : " + e.getMessage());
+        }
+    }
+
+    private void setMethodCatalog(Map<String,Integer> catalog){
+        synchronized (instanceSet) {
+            this.methodCatalog = catalog;
+            for (RpcInstance rpcInstance : instanceSet) {
+                rpcInstance.applyMethodCatalog(catalog);
+            }
+        }
+    }
+
     /**
      * 初始化所有处理器
      * @return
@@ -245,12 +332,18 @@ public class RpcClient extends AbstractNettyClient{
         super.startAfter();
         rpcCommandService = newInstance(RpcCommandService.class);
         rpcDBService = newInstance(RpcDBService.class);
+        rpcDBAsyncService = newInstance(RpcDBAsyncService.class);
+        handshake();
     }
 
     public RpcDBService getRpcDBService() {
         return rpcDBService;
     }
 
+    public RpcDBAsyncService getRpcDBAsyncService() {
+        return rpcDBAsyncService;
+    }
+
     public RpcCommandService getRpcCommandService() {
         return rpcCommandService;
     }
@@ -260,6 +353,10 @@ public class RpcClient extends AbstractNettyClient{
         boolean success = super.connect();
         if(success){
             state = State.UP;
+            //重连, 重新握手
+            if(rpcCommandService != null){
+                handshake();
+            }
         }else {
             state = State.DOWN;
         }
@@ -347,16 +444,26 @@ public class RpcClient extends AbstractNettyClient{
     /**
      * 远程调用后,等待响应的同步锁
      */
-    public static class RpcLock{
-        private long beginTime;
+    public static class RpcLock implements TimerTask {
+        private final long beginTime;
         private volatile RpcProto.Response rpcResponse;
-        private Thread lockThread;
+        //时间轮已经判定超时, 等待的线程不用再等到最后期限
+        private volatile boolean timedOut;
+        //创建锁的就是等待的线程, 放入请求表之前就确定, io线程一定能看到
+        private final Thread lockThread;
         public static AtomicLong TOTAL_SPIN_RESPONSE_COUNT = new AtomicLong();
 
-        private RpcProto.Response lock(int timeout,TimeUnit timeUnit) throws InterruptedException {
+        //以下由 RpcPendingTable 设置
+        long requestId;
+        RpcPendingTable pendingTable;
+        volatile Timeout timeout;
+
+        public RpcLock() {
             this.lockThread = Thread.currentThread();
             this.beginTime = System.currentTimeMillis();
+        }
 
+        private RpcProto.Response lock(int timeout,TimeUnit timeUnit) throws InterruptedException {
             //自旋, 因为如果是本地rpc调用,速度太快了, 没必要再堵塞
             int spinCount = Optimize.getRpcLockSpinCount();
             for (int i=0; rpcResponse == null && i<spinCount; i++){
@@ -369,33 +476,156 @@ public class RpcClient extends AbstractNettyClient{
                 return rpcResponse;
             }
 
-            //没有拿到响应, 则堵塞
-            LockSupport.parkNanos(timeUnit.toNanos(timeout));
-            if(rpcResponse != null){
-                return rpcResponse;
+            //没有拿到响应, 则堵塞. parkNanos可能提前返回(虚假唤醒, 或者之前超时的请求迟到的unpark), 没到时间也没被判定超时就继续等
+            long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+            for (long remaining = timeUnit.toNanos(timeout); rpcResponse == null && !timedOut && remaining > 0; remaining = deadline - System.nanoTime()){
+                LockSupport.parkNanos(this, remaining);
             }
-            return null;
+            return rpcResponse;
         }
 
-        private void unlock(RpcProto.Response rpcResponse){
+        void unlock(RpcProto.Response rpcResponse){
             this.rpcResponse = rpcResponse;
             LockSupport.unpark(lockThread);
         }
+
+        /**
+         * 时间轮线程调用, 超时后从请求表移除 (调用方不需要处理)
+         */
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            if(pendingTable.remove(requestId, this)){
+                onTimeout();
+            }
+        }
+
+        /**
+         * 超时, 叫醒等待的线程, 不再等到最后期限
+         */
+        void onTimeout(){
+            timedOut = true;
+            LockSupport.unpark(lockThread);
+        }
+    }
+
+    /**
+     * 异步调用: 不堵塞调用线程, 收到响应时在io线程上直接完成future, 超时由时间轮完成
+     * 注: future的后续操作(thenApply等)会在io线程或时间轮线程上执行, 耗时的操作要用 xxxAsync 方法换线程
+     */
+    private static class RpcFutureLock extends RpcLock {
+        private final RpcInstance rpcInstance;
+        private final Method method;
+        //请求用的编码解码器, 响应也用它解码
+        private final DataCodec dataCodec;
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+
+        private RpcFutureLock(RpcInstance rpcInstance, Method method, DataCodec dataCodec) {
+            this.rpcInstance = rpcInstance;
+            this.method = method;
+            this.dataCodec = dataCodec;
+        }
+
+        @Override
+        void unlock(RpcProto.Response rpcResponse) {
+            try {
+                future.complete(rpcInstance.decodeResponse(rpcResponse, dataCodec, method));
+            }catch (Throwable e){
+                future.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * 连接异常或者写失败
+         * @param cause 原因
+         */
+        private void fail(Throwable cause){
+            if(pendingTable.remove(requestId, this)){
+                future.completeExceptionally(cause);
+            }
+        }
+
+        @Override
+        void onTimeout() {
+            future.completeExceptionally(rpcInstance.newTimeoutException(method.getName()));
+        }
+    }
+
+    /**
+     * 返回值是CompletableFuture(或者它的接口CompletionStage, Future)的方法异步调用
+     * @param method 接口方法
+     * @return true = 异步
+     */
+    private static boolean isAsyncMethod(Method method){
+        Class<?> returnType = method.getReturnType();
+        return returnType != Object.class && returnType.isAssignableFrom(CompletableFuture.class);
     }
 
     /**
      * 客户端实例
      */
-    private class RpcInstance implements InvocationHandler{
+    private class RpcInstance implements InvocationHandler,RpcStubGenerator.Invoker{
         private int timeout;
         private String serviceName;
-        private RpcInstance(int timeout, String serviceName) {
+        //stub调用的方法, 下标就是stub传过来的方法下标
+        private final Method[] methods;
+        private final String[] methodNames;
+        private final boolean[] asyncMethods;
+        //方法id, 0 = 没有 (用方法名调用)
+        private volatile int[] methodIds;
+        //stub或者代理对象
+        private Object instance;
+
+        private RpcInstance(int timeout, String serviceName, Class<?> interfaceClass) {
             this.timeout = timeout;
             this.serviceName = serviceName;
+            this.methods = RpcStubGenerator.getRpcMethods(interfaceClass);
+            this.methodNames = new String[methods.length];
+            this.asyncMethods = new boolean[methods.length];
+            for (int i = 0; i < methods.length; i++) {
+                methodNames[i] = methods[i].getName();
+                asyncMethods[i] = isAsyncMethod(methods[i]);
+            }
+            this.methodIds = new int[methods.length];
         }
 
         /**
-         * 进行rpc调用
+         * 按方法目录设置方法id, 目录里没有的方法用方法名调用
+         * @param catalog 方法签名 -> 方法id
+         */
+        private void applyMethodCatalog(Map<String,Integer> catalog){
+            int[] methodIds = new int[methods.length];
+            if(!catalog.isEmpty()) {
+                for (int i = 0; i < methods.length; i++) {
+                    Object methodId = catalog.get(RpcService.getMethodSignature(serviceName, methods[i]));
+                    if (methodId instanceof Number) {
+                        methodIds[i] = ((Number) methodId).intValue();
+                    }
+                }
+            }
+            this.methodIds = methodIds;
+        }
+
+        /**
+         * 生成的stub进行rpc调用, 方法信息已经提前算好
+         * @param methodIndex 方法下标
+         * @param args 参数
+         * @return
+         * @throws Throwable
+         */
+        @Override
+        public Object invoke(int methodIndex, Object[] args) throws Throwable {
+            //重写的方法, 没有重写时不用查
+            if(!methodOverrideMap.isEmpty()) {
+                RpcOverrideMethod overrideMethod = methodOverrideMap.get(methodNames[methodIndex]);
+                if (overrideMethod != null) {
+                    return overrideMethod.invoke(instance, methods[methodIndex], args);
+                }
+            }
+            return invokeRemote(methodIds[methodIndex], methods[methodIndex], asyncMethods[methodIndex], args);
+        }
+
+        /**
+         * 反射代理进行rpc调用
          * @param proxy
          * @param method
          * @param args
@@ -417,36 +647,105 @@ public class RpcClient extends AbstractNettyClient{
             }
 
             //其他方法
+            return invokeRemote(getMethodId(method), method, isAsyncMethod(method), args);
+        }
+
+        private int getMethodId(Method method){
+            for (int i = 0; i < methods.length; i++) {
+                if(methods[i].equals(method)){
+                    return methodIds[i];
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * 进行rpc调用
+         * @param methodId 方法id, 0 = 用方法名调用
+         * @param method 接口方法
+         * @param async 是否异步调用
+         * @param args 参数
+         * @return 返回值, 异步调用返回CompletableFuture
+         * @throws Throwable
+         */
+        private Object invokeRemote(int methodId, Method method, boolean async, Object[] args) throws Throwable {
             long requestId = newRequestId();
-            byte[] requestDataBytes = dataCodec.encodeRequestData(args);
+            String methodName = method.getName();
 
-            RpcProto.Request rpcRequest = RpcProto.Request.newBuilder()
-                    .setRequestId(requestId)
-                    .setServiceName(serviceName)
-                    .setMethodName(methodName)
-                    .setData(ByteString.copyFrom(requestDataBytes))
-                    .build();
+            RpcProto.Request.Builder requestBuilder = RpcProto.Request.newBuilder()
+                    .setRequestId(requestId);
+            //有方法id就不带服务名和方法名, 并且可以用选好的编码解码器 (服务端按方法id找到方法, 知道参数类型)
+            DataCodec requestDataCodec;
+            int dataCodecIndex = RpcClient.this.dataCodecIndex;
+            if(methodId > 0){
+                requestBuilder.setMethodId(methodId);
+                if(dataCodecIndex > 0){
+                    requestBuilder.setCodec(dataCodecIndex);
+                }
+                requestDataCodec = dataCodecIndex == -1? jsonDataCodec : dataCodec;
+            }else {
+                requestBuilder.setServiceName(serviceName).setMethodName(methodName);
+                requestDataCodec = jsonDataCodec;
+            }
+            //编码出来的数组只有这里用, 不用复制
+            requestBuilder.setData(UnsafeByteOperations.unsafeWrap(requestDataCodec.encodeRequestData(args, method)));
+            RpcProto.Request rpcRequest = requestBuilder.build();
 
+            TOTAL_INVOKE_COUNT.incrementAndGet();
+            //返回CompletableFuture的方法异步调用, 不堵塞当前线程
+            if(async){
+                return invokeAsync(requestId, rpcRequest, method, requestDataCodec);
+            }
 
+            //先拿连接, 没有连接时抛出异常, 请求表里不会留下等待超时的锁
+            SocketChannel socketChannel = getSocketChannel();
             RpcLock lock = new RpcLock();
-            requestLockMap.put(requestId,lock);
-            getSocketChannel().writeAndFlush(rpcRequest);
+            rpcPendingTable.put(requestId,lock,timeout);
+            socketChannel.writeAndFlush(rpcRequest);
 
-            TOTAL_INVOKE_COUNT.incrementAndGet();
             //上锁, 等待服务端响应释放锁
             RpcProto.Response rpcResponse = lock.lock(timeout,TimeUnit.MILLISECONDS);
-            //移除锁
-            requestLockMap.remove(requestId);
+            //超时后由时间轮移除, 这里只处理时间轮还没来得及移除的情况
+            if(rpcResponse == null) {
+                rpcPendingTable.remove(requestId, lock);
+            }
 
             if(rpcResponse == null){
                 if(Optimize.isEnableExecuteHold()) {
                     logger.error("超时的请求 : " + rpcRequest);
                 }
+                throw newTimeoutException(methodName);
+            }
+            return decodeResponse(rpcResponse, requestDataCodec, method);
+        }
 
-                TIMEOUT_API.put(methodName,TIMEOUT_API.getOrDefault(methodName,0) + 1);
-                throw new RpcTimeoutException("RequestTimeout : serviceName = ["+serviceName+"], methodName=["+methodName+"], maxTimeout = ["+timeout+"]");
+        /**
+         * 异步调用
+         * @return 收到响应后完成的future
+         */
+        private CompletableFuture<Object> invokeAsync(long requestId, RpcProto.Request rpcRequest, Method method, DataCodec dataCodec){
+            RpcFutureLock lock = new RpcFutureLock(this, method, dataCodec);
+            rpcPendingTable.put(requestId,lock,timeout);
+            try {
+                getSocketChannel().writeAndFlush(rpcRequest).addListener(future -> {
+                    if(!future.isSuccess()){
+                        lock.fail(future.cause());
+                    }
+                });
+            }catch (RpcConnectException e){
+                lock.fail(e);
             }
+            return lock.future;
+        }
 
+        /**
+         * 解析响应
+         * @param rpcResponse 响应
+         * @param dataCodec 请求用的编码解码器
+         * @param method 接口方法
+         * @return 方法的返回值
+         */
+        private Object decodeResponse(RpcProto.Response rpcResponse, DataCodec dataCodec, Method method){
             int status = rpcResponse.getStatus();
             //400以上的状态都是错误状态
             if(status >= RpcResponseStatus.NO_SUCH_METHOD){
@@ -456,12 +755,17 @@ public class RpcClient extends AbstractNettyClient{
             byte[] responseDataBytes = rpcResponse.getData().toByteArray();
             //如果服务器进行编码了, 就解码
             if(rpcResponse.getEncode() == 1) {
-                return dataCodec.decodeResponseData(responseDataBytes);
+                return dataCodec.decodeResponseData(responseDataBytes, method);
             }else {
                 return responseDataBytes;
             }
         }
 
+        private RpcTimeoutException newTimeoutException(String methodName){
+            TIMEOUT_API.merge(methodName,1,Integer::sum);
+            return new RpcTimeoutException("RequestTimeout : serviceName = ["+serviceName+"], methodName=["+methodName+"], maxTimeout = ["+timeout+"]");
+        }
+
         @Override
         public String toString() {
             return "RpcInstance{" +
@@ -479,7 +783,7 @@ public class RpcClient extends AbstractNettyClient{
         protected void onMessageReceived(ChannelHandlerContext ctx, RpcProto.Response rpcResponse) throws Exception {
             if(Optimize.isEnableExecuteHold()) {
                 Optimize.holdExecute(() -> {
-                    RpcLock lock = requestLockMap.remove(rpcResponse.getRequestId());
+                    RpcLock lock = rpcPendingTable.remove(rpcResponse.getRequestId());
                     //如果获取不到锁 说明已经超时, 被释放了
                     if (lock == null) {
                         logger.error("-----------------------!!严重"+rpcResponse);
@@ -497,7 +801,7 @@ public class RpcClient extends AbstractNettyClient{
                 return;
             }
 
-            RpcLock lock = requestLockMap.get(rpcResponse.getRequestId());
+            RpcLock lock = rpcPendingTable.remove(rpcResponse.getRequestId());
             //如果获取不到锁 说明已经超时, 被释放了
             if (lock == null) {
                 return ;
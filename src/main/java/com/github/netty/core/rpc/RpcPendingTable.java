@@ -0,0 +1,139 @@
+package com.github.netty.core.rpc;
+
+import com.github.netty.core.support.Optimize;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.collection.LongObjectHashMap;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 等待响应的请求表 (请求id -> 锁), 线程安全
+ *
+ * 1.按请求id分段, 每段一个开放寻址的 {@link LongObjectHashMap} 和一把锁. 请求id是递增的, 相邻的请求落在不同的段上
+ * 2.放入时在时间轮上登记超时, 到时间由时间轮线程移除并通知 {@link RpcClient.RpcLock#onTimeout()}, 不需要调用方处理
+ * 3.收到响应, 超时, 写失败 都是用remove抢, 只有一个能拿到锁
+ * @author 84215
+ */
+public class RpcPendingTable {
+
+    /**
+     * 所有客户端共用一个时间轮
+     */
+    private static final HashedWheelTimer TIMEOUT_TIMER = new HashedWheelTimer(
+            new DefaultThreadFactory("RpcTimeout", true),
+            Optimize.getRpcTimeoutTickMillis(), TimeUnit.MILLISECONDS);
+
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    public RpcPendingTable() {
+        this(Optimize.getRpcPendingTableSegmentCount());
+    }
+
+    /**
+     * @param segmentCount 段数, 会向上取2的幂
+     */
+    public RpcPendingTable(int segmentCount) {
+        int size = 1;
+        while (size < segmentCount){
+            size <<= 1;
+        }
+        this.segments = new Segment[size];
+        this.segmentMask = size - 1;
+        for (int i = 0; i < size; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * 放入, 并开始计时
+     * @param requestId 请求id
+     * @param lock 锁
+     * @param timeoutMillis 超时时间(毫秒)
+     */
+    public void put(long requestId, RpcClient.RpcLock lock, long timeoutMillis){
+        lock.requestId = requestId;
+        lock.pendingTable = this;
+        Segment segment = segment(requestId);
+        synchronized (segment) {
+            segment.put(requestId, lock);
+        }
+        lock.timeout = TIMEOUT_TIMER.newTimeout(lock, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 移除, 并取消计时
+     * @param requestId 请求id
+     * @return 锁, null = 已经被移除了(超时或者已经响应)
+     */
+    public RpcClient.RpcLock remove(long requestId){
+        Segment segment = segment(requestId);
+        RpcClient.RpcLock lock;
+        synchronized (segment) {
+            lock = segment.remove(requestId);
+        }
+        if(lock != null){
+            cancelTimeout(lock);
+        }
+        return lock;
+    }
+
+    /**
+     * 只有还是这个锁的时候才移除
+     * @param requestId 请求id
+     * @param lock 锁
+     * @return true = 移除成功
+     */
+    public boolean remove(long requestId, RpcClient.RpcLock lock){
+        Segment segment = segment(requestId);
+        synchronized (segment) {
+            if(segment.get(requestId) != lock){
+                return false;
+            }
+            segment.remove(requestId);
+        }
+        cancelTimeout(lock);
+        return true;
+    }
+
+    /**
+     * @return 等待响应的数量
+     */
+    public int size(){
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private void cancelTimeout(RpcClient.RpcLock lock){
+        //放入和计时之间就收到响应时, timeout还是null, 等时间轮到时间后remove不到, 什么都不做
+        Timeout timeout = lock.timeout;
+        if(timeout != null){
+            timeout.cancel();
+        }
+    }
+
+    private Segment segment(long requestId){
+        return segments[(int) (requestId ^ (requestId >>> 32)) & segmentMask];
+    }
+
+    private static class Segment extends LongObjectHashMap<RpcClient.RpcLock>{
+        private Segment() {
+            super(32);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RpcPendingTable{" +
+                "段数=" + segments.length +
+                ", 等待响应=" + size() +
+                '}';
+    }
+}
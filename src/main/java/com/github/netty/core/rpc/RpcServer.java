@@ -2,6 +2,7 @@ package com.github.netty.core.rpc;
 
 import com.github.netty.core.AbstractChannelHandler;
 import com.github.netty.core.AbstractNettyServer;
+import com.github.netty.core.rpc.codec.BinaryDataCodec;
 import com.github.netty.core.rpc.codec.DataCodec;
 import com.github.netty.core.rpc.codec.JsonDataCodec;
 import com.github.netty.core.rpc.codec.RpcProto;
@@ -12,6 +13,7 @@ import com.github.netty.core.util.ExceptionUtil;
 import com.github.netty.core.util.ReflectUtil;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.MessageLiteOrBuilder;
+import com.google.protobuf.UnsafeByteOperations;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
 import io.netty.handler.codec.ByteToMessageDecoder;
@@ -23,11 +25,14 @@ import io.netty.handler.codec.protobuf.ProtobufEncoder;
 import io.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
 import io.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
 
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * rpc服务端
@@ -40,6 +45,10 @@ public class RpcServer extends AbstractNettyServer{
      * 数据编码解码器
      */
     private DataCodec dataCodec = new JsonDataCodec();
+    /**
+     * 支持的编码解码器, 请求里带的是下标. 0 = 默认的json (没有握手的请求都是json)
+     */
+    private volatile DataCodec[] dataCodecs = {dataCodec, new BinaryDataCodec()};
     /**
      * rpc服务端处理器
      */
@@ -61,7 +70,7 @@ public class RpcServer extends AbstractNettyServer{
     protected RpcServerHandler newRpcServerHandler(){
         RpcServerHandler rpcServerHandler = new RpcServerHandler();
         //默认开启rpc基本命令服务
-        rpcServerHandler.addService(new RpcCommandServiceImpl());
+        rpcServerHandler.addService(new RpcCommandServiceImpl(this));
         //默认开启DB服务
         rpcServerHandler.addService(new RpcDBServiceImpl());
         return rpcServerHandler;
@@ -96,31 +105,107 @@ public class RpcServer extends AbstractNettyServer{
         return dataCodec;
     }
 
+    /**
+     * 增加编码解码器, 客户端握手时按名称选择
+     * @param dataCodec 编码解码器
+     */
+    public synchronized void addDataCodec(DataCodec dataCodec){
+        for(DataCodec exist : dataCodecs){
+            if(exist.getName().equals(dataCodec.getName())){
+                throw new IllegalStateException("The data codec exist [" + dataCodec.getName() + "]");
+            }
+        }
+        DataCodec[] newDataCodecs = Arrays.copyOf(dataCodecs, dataCodecs.length + 1);
+        newDataCodecs[dataCodecs.length] = dataCodec;
+        this.dataCodecs = newDataCodecs;
+    }
+
+    /**
+     * 支持的编码解码器
+     * @return 名称, 下标就是请求里带的编码解码器
+     */
+    public List<String> getDataCodecNames() {
+        List<String> names = new ArrayList<>();
+        for(DataCodec dataCodec : dataCodecs){
+            names.add(dataCodec.getName());
+        }
+        return names;
+    }
+
+    /**
+     * 方法目录
+     * @return 方法签名 -> 方法id
+     */
+    public Map<String,Integer> getMethodCatalog() {
+        return rpcServerHandler.methodCatalog;
+    }
+
     @ChannelHandler.Sharable
     private class RpcServerHandler extends AbstractChannelHandler<RpcProto.Request> {
         private final Map<String,RpcService> serviceInstanceMap = new HashMap<>();
         private Map<String,Channel> channelMap = new ConcurrentHashMap<>();
+        /**
+         * 方法id = (纪元 << 16) | 序号. 纪元每个服务端随机, 服务端重启后客户端拿旧的id调用会找不到方法, 不会调错方法
+         */
+        private final int methodIdEpoch = ThreadLocalRandom.current().nextInt(1, 1 << 15) << 16;
+        /**
+         * 方法表, 下标是方法id的序号 (写时复制, io线程读不加锁)
+         */
+        private volatile RpcMethodEntry[] methodTable = new RpcMethodEntry[1];
+        /**
+         * 方法目录 (写时复制)
+         */
+        private volatile Map<String,Integer> methodCatalog = Collections.emptyMap();
 
         @Override
         protected void onMessageReceived(ChannelHandlerContext ctx, RpcProto.Request rpcRequest) throws Exception {
 //            long c = System.currentTimeMillis();
 
-            String serviceName = rpcRequest.getServiceName();
-            String methodName = rpcRequest.getMethodName();
-
             Object result = null;
             int status;
             String message;
 
-            RpcService rpcService = serviceInstanceMap.get(serviceName);
+            RpcService rpcService;
+            int methodIndex;
+            int methodId = rpcRequest.getMethodId();
+            //有方法id的请求不带服务名和方法名, 直接查方法表
+            if(methodId > 0){
+                RpcMethodEntry entry = getMethodEntry(methodId);
+                rpcService = entry == null? null : entry.rpcService;
+                methodIndex = entry == null? -1 : entry.methodIndex;
+            }else {
+                rpcService = serviceInstanceMap.get(rpcRequest.getServiceName());
+                methodIndex = -1;
+            }
+
+            //请求用的编码解码器, 响应也用它
+            int codecIndex = rpcRequest.getCodec();
+            DataCodec[] dataCodecs = RpcServer.this.dataCodecs;
+            DataCodec requestDataCodec = codecIndex >= 0 && codecIndex < dataCodecs.length? dataCodecs[codecIndex] : null;
+            Method method = methodIndex == -1? null : rpcService.getMethods()[methodIndex];
+
             if(rpcService == null){
-                status = RpcResponseStatus.NO_SUCH_SERVICE;
-                message = "not found service ["+ serviceName +"]";
+                if(methodId > 0) {
+                    status = RpcResponseStatus.NO_SUCH_METHOD;
+                    message = "not found method id [" + methodId + "]";
+                }else {
+                    status = RpcResponseStatus.NO_SUCH_SERVICE;
+                    message = "not found service [" + rpcRequest.getServiceName() + "]";
+                }
+            }else if(requestDataCodec == null){
+                status = RpcResponseStatus.SERVER_ERROR;
+                message = "not found data codec [" + codecIndex + "]";
             }else {
                 try {
-//                    String requestDataBytes = rpcRequest.getData().toStringUtf8();
-                    Object[] requestData = dataCodec.decodeRequestData(rpcRequest.getData().toStringUtf8());
-                    result = rpcService.invoke(methodName, requestData);
+                    //直接从字节解码, 不先转成字符串
+                    Object[] requestData = requestDataCodec.decodeRequestData(rpcRequest.getData().toByteArray(), method);
+                    if(methodIndex == -1) {
+                        result = rpcService.invoke(rpcRequest.getMethodName(), requestData);
+                    }else if((requestData == null? 0 : requestData.length) != method.getParameterCount()){
+                        throw new NoSuchMethodException("not found method id [" + methodId + "], args count not match");
+                    }else {
+                        result = rpcService.invoke(methodIndex, requestData);
+                    }
 
                     status = RpcResponseStatus.OK;
                     message = "ok";
@@ -133,33 +218,66 @@ public class RpcServer extends AbstractNettyServer{
                 }
             }
 
+            DataCodec responseDataCodec = requestDataCodec == null? dataCodec : requestDataCodec;
+            //服务返回CompletableFuture, 完成后再响应, 不占用io线程等待
+            if(result instanceof CompletionStage){
+                long requestId = rpcRequest.getRequestId();
+                ((CompletionStage<?>) result).whenComplete((data, throwable) -> {
+                    if(throwable == null) {
+                        writeResponse(ctx, requestId, RpcResponseStatus.OK, "ok", data, responseDataCodec, method);
+                    }else {
+                        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null? throwable.getCause() : throwable;
+                        writeResponse(ctx, requestId, RpcResponseStatus.SERVER_ERROR, cause.toString(), null, responseDataCodec, method);
+                    }
+                });
+                return;
+            }
+            writeResponse(ctx, rpcRequest.getRequestId(), status, message, result, responseDataCodec, method);
+
+//            long end = (System.currentTimeMillis() - c);
+//            if(end > 3) {
+//            logger.info(serviceName+"--"+methodName+"--["+status+"]--"+result+"");
+//                logger.info("耗时: [" + end+ "] 纳秒 -"+ rpcResponse);
+//            }
+        }
+
+        /**
+         * 按方法id查方法
+         * @param methodId 方法id
+         * @return null = 没有 (不是这个服务端发的id)
+         */
+        private RpcMethodEntry getMethodEntry(int methodId){
+            if((methodId & 0xFFFF0000) != methodIdEpoch){
+                return null;
+            }
+            int seq = methodId & 0xFFFF;
+            RpcMethodEntry[] methodTable = this.methodTable;
+            return seq < methodTable.length? methodTable[seq] : null;
+        }
+
+        private void writeResponse(ChannelHandlerContext ctx, long requestId, int status, String message, Object result, DataCodec dataCodec, Method method){
             //是否进行编码
             int isEncode;
-            byte[] responseDataBytes;
+            ByteString responseData;
             if(result instanceof byte[]){
                 isEncode = 0;
-                responseDataBytes = (byte[]) result;
+                //服务返回的数组之后可能被修改, 要复制
+                responseData = ByteString.copyFrom((byte[]) result);
             }else {
                 isEncode = 1;
-                responseDataBytes = dataCodec.encodeResponseData(result);
+                //编码出来的数组只有这里用, 不用复制
+                responseData = UnsafeByteOperations.unsafeWrap(dataCodec.encodeResponseData(result, method));
             }
 
             RpcProto.Response rpcResponse = RpcProto.Response.newBuilder()
-                    .setRequestId(rpcRequest.getRequestId())
+                    .setRequestId(requestId)
                     .setStatus(status)
                     .setMessage(message)
                     .setEncode(isEncode)
-                    .setData(ByteString.copyFrom(responseDataBytes))
+                    .setData(responseData)
                     .build();
 
             ctx.writeAndFlush(rpcResponse);
-
-
-//            long end = (System.currentTimeMillis() - c);
-//            if(end > 3) {
-//            logger.info(serviceName+"--"+methodName+"--["+status+"]--"+result+"");
-//                logger.info("耗时: [" + end+ "] 纳秒 -"+ rpcResponse);
-//            }
         }
 
         @Override
@@ -213,8 +331,33 @@ public class RpcServer extends AbstractNettyServer{
                 if (oldService != null) {
                     throw new IllegalStateException("The service exist [" + serviceName + "]");
                 }
-                serviceInstanceMap.put(serviceName, new RpcService(serviceName, timeout,service,RpcServer.this));
+                RpcService rpcService = new RpcService(serviceName, timeout,service,RpcServer.this);
+                serviceInstanceMap.put(serviceName, rpcService);
+                addMethodIds(rpcService);
+            }
+        }
+
+        /**
+         * 给服务的每个方法分配方法id, 登记到方法表和方法目录
+         * @param rpcService 服务
+         */
+        private void addMethodIds(RpcService rpcService){
+            Method[] methods = rpcService.getMethods();
+            RpcMethodEntry[] oldTable = this.methodTable;
+            //序号从1开始, 0不用
+            int seq = oldTable.length;
+            if(seq + methods.length > 0xFFFF){
+                throw new IllegalStateException("The rpc method count is too large [" + (seq + methods.length - 1) + "]");
+            }
+            RpcMethodEntry[] newTable = Arrays.copyOf(oldTable, seq + methods.length);
+            Map<String,Integer> newCatalog = new HashMap<>(methodCatalog);
+            for (int i = 0; i < methods.length; i++, seq++) {
+                newTable[seq] = new RpcMethodEntry(rpcService, i);
+                newCatalog.put(RpcService.getMethodSignature(rpcService.getServiceName(), methods[i]), methodIdEpoch | seq);
             }
+            this.methodTable = newTable;
+            //发布后不再修改. 注:(不能包装成不可修改的Map, json编码会带上类名, 客户端解码不了)
+            this.methodCatalog = newCatalog;
         }
 
         private RpcInterface findRpcInterfaceAnn(Object service){
@@ -236,4 +379,17 @@ public class RpcServer extends AbstractNettyServer{
         }
     }
 
+    /**
+     * 方法表的一项
+     */
+    private static class RpcMethodEntry {
+        private final RpcService rpcService;
+        private final int methodIndex;
+
+        private RpcMethodEntry(RpcService rpcService, int methodIndex) {
+            this.rpcService = rpcService;
+            this.methodIndex = methodIndex;
+        }
+    }
+
 }
@@ -2,12 +2,14 @@ package com.github.netty.core.rpc;
 
 import com.github.netty.core.rpc.codec.DataCodec;
 
+import com.github.netty.core.util.ReflectUtil;
+
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import java.util.RandomAccess;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringJoiner;
 
 /**
  * Created by acer01 on 2018/8/19/019.
@@ -17,7 +19,12 @@ public class RpcService {
     private int timeout;
     private String serviceName;
     private Object service;
-    private List<Method> methodList;
+    //下标就是方法下标
+    private Method[] methods;
+    //方法名 -> 按参数个数的方法下标 (-1 = 没有)
+    private Map<String,int[]> methodIndexMap = new HashMap<>();
+    //生成的调用代码, null = 用反射调用
+    private RpcStubGenerator.ServerSkeleton skeleton;
     private RpcServer rpcServer;
 
     public RpcService(String serviceName,int timeout, Object service, RpcServer rpcServer) {
@@ -26,25 +33,58 @@ public class RpcService {
         this.service = service;
         this.rpcServer = rpcServer;
 
-        List<Class> interfaceList = getInterfaceList(service);
-        if(interfaceList.isEmpty()){
+        if(ReflectUtil.getInterfaces(service).length == 0){
             throw new RuntimeException("rpc服务必须至少拥有一个接口");
         }
 
-        this.methodList = getMethodList(interfaceList);
-        if(methodList.isEmpty()){
+        this.methods = RpcStubGenerator.getServiceMethods(service.getClass());
+        if(methods.length == 0){
             throw new RuntimeException("rpc服务接口必须至少拥有一个方法");
         }
+        for (int i = 0; i < methods.length; i++) {
+            Method method = methods[i];
+            int[] indexs = methodIndexMap.get(method.getName());
+            int argsCount = method.getParameterCount();
+            if(indexs == null || indexs.length <= argsCount){
+                int oldLength = indexs == null? 0 : indexs.length;
+                indexs = indexs == null? new int[argsCount + 1] : Arrays.copyOf(indexs, argsCount + 1);
+                Arrays.fill(indexs, oldLength, indexs.length, -1);
+                methodIndexMap.put(method.getName(), indexs);
+            }
+            if(indexs[argsCount] == -1) {
+                indexs[argsCount] = i;
+            }
+        }
+        this.skeleton = RpcStubGenerator.newServerSkeleton(service, methods, rpcServer.getDataCodec());
     }
 
     public Object invoke(String methodName,Object[] args) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
         int argsCount = args == null? 0: args.length;
-        Method method = getMethod(methodName,argsCount);
-        if(method == null){
+        int methodIndex = getMethodIndex(methodName,argsCount);
+        if(methodIndex == -1){
             throw new NoSuchMethodException("not found method ["+methodName+"]");
         }
+        return invoke(methodIndex, args);
+    }
 
-        if(argsCount > 0) {
+    /**
+     * 按方法下标调用 (方法id查到的下标, 重载的方法也不会混淆)
+     * @param methodIndex 方法下标
+     * @param args 参数
+     * @return 返回值
+     */
+    public Object invoke(int methodIndex,Object[] args) throws InvocationTargetException, IllegalAccessException {
+        if(skeleton != null){
+            try {
+                return skeleton.invoke(methodIndex, args);
+            }catch (Throwable throwable){
+                //和Method.invoke一样包装服务抛出的异常
+                throw new InvocationTargetException(throwable);
+            }
+        }
+
+        Method method = methods[methodIndex];
+        if(args != null && args.length > 0) {
             checkTypeAutoCast(method.getParameterTypes(),args);
         }
 
@@ -65,7 +105,7 @@ public class RpcService {
             Class type = types[i];
 
             //type 所对应类信息是arg对象所对应的类信息的父类或者是父接口，简单理解即type是arg的父类或接口
-            if(!type.isAssignableFrom(arg.getClass())){
+            if(arg != null && !type.isAssignableFrom(arg.getClass())){
                 args[i] = rpcDataCodec.cast(arg, type);
             }
         }
@@ -75,45 +115,47 @@ public class RpcService {
         return serviceName;
     }
 
-    public Method getMethod(String methodName,int argsCount) {
-        if(methodList instanceof RandomAccess) {
-            int size = methodList.size();
-            for (int i=0; i<size; i++){
-                Method method = methodList.get(i);
-                if(method.getName().equals(methodName) && method.getParameterCount() == argsCount){
-                    return method;
-                }
-            }
-        }else {
-            for(Method method : methodList){
-                if(method.getName().equals(methodName) && method.getParameterCount() == argsCount){
-                    return method;
-                }
-            }
+    /**
+     * @param methodName 方法名
+     * @param argsCount 参数个数
+     * @return 方法下标, -1 = 没有这个方法
+     */
+    public int getMethodIndex(String methodName,int argsCount) {
+        int[] indexs = methodIndexMap.get(methodName);
+        if(indexs == null || indexs.length <= argsCount){
+            return -1;
         }
-        return null;
+        return indexs[argsCount];
+    }
+
+    public Method getMethod(String methodName,int argsCount) {
+        int methodIndex = getMethodIndex(methodName, argsCount);
+        return methodIndex == -1? null : methods[methodIndex];
     }
 
     public Object getService() {
         return service;
     }
 
-
-    private List<Method> getMethodList(List<Class> interfaceList){
-        List<Method> methodList = new ArrayList<>();
-        for(Class interfaceClazz : interfaceList) {
-            methodList.addAll(Arrays.asList(interfaceClazz.getMethods()));
-        }
-        return methodList;
+    /**
+     * @return 所有方法, 下标就是方法下标
+     */
+    public Method[] getMethods() {
+        return methods;
     }
 
-    private List<Class> getInterfaceList(Object source){
-        List<Class> interfaceList = new ArrayList<>();
-        Class sourceClass = source.getClass();
-        for(Class currClass = sourceClass; currClass != null; currClass = currClass.getSuperclass()){
-            interfaceList.addAll(Arrays.asList(currClass.getInterfaces()));
+    /**
+     * 方法签名, 客户端和服务端用它对应方法id. 例: /_inner/db#get(java.lang.String)
+     * @param serviceName 服务名
+     * @param method 方法
+     * @return 签名
+     */
+    public static String getMethodSignature(String serviceName,Method method){
+        StringJoiner joiner = new StringJoiner(",", serviceName + "#" + method.getName() + "(", ")");
+        for(Class<?> type : method.getParameterTypes()){
+            joiner.add(type.getName());
         }
-        return interfaceList;
+        return joiner.toString();
     }
 
-}
\ No newline at end of file
+}
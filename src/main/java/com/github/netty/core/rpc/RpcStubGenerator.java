@@ -0,0 +1,418 @@
+package com.github.netty.core.rpc;
+
+import com.github.netty.core.rpc.codec.DataCodec;
+import com.github.netty.core.support.LoggerFactoryX;
+import com.github.netty.core.support.LoggerX;
+import com.github.netty.core.support.Optimize;
+import javassist.*;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * rpc桩代码生成 (javassist)
+ *
+ * 客户端 stub: 生成实现rpc接口的类, 每个方法带着常量方法下标直接调用 {@link Invoker#invoke(int, Object[])}, 代替 Proxy + InvocationHandler
+ * 服务端 skeleton: 生成 {@link ServerSkeleton} 的子类, 按方法下标switch, 参数按类型转换拆箱后直接调用接口方法, 代替 Method.invoke
+ *
+ * 生成的类放在单独的类加载器里 (父加载器是接口的类加载器), 只能访问public的类型.
+ * 缓存只弱引用生成的类, 否则接口所在的类加载器被生成的类加载器引用着, 永远不能卸载
+ * 接口或者参数类型不是public, 或者生成失败时返回null, 调用方退回反射
+ * @author 84215
+ */
+public class RpcStubGenerator {
+
+    private static final LoggerX LOGGER = LoggerFactoryX.getLogger(RpcStubGenerator.class);
+
+    //生成失败的标记
+    private static final WeakReference<Class<?>> GENERATE_FAILED = new WeakReference<>(null);
+    //生成的类按接口(服务实现类)缓存. 弱引用: stub或skeleton的实例都没有了, 生成的类可以被回收, 再用到时重新生成
+    private static final ClassValue<WeakReference<Class<?>>> CLIENT_STUB_CACHE = new ClassValue<WeakReference<Class<?>>>() {
+        @Override
+        protected WeakReference<Class<?>> computeValue(Class<?> interfaceClass) {
+            try {
+                return new WeakReference<>(generateClientStub(interfaceClass));
+            } catch (Throwable e) {
+                LOGGER.warn("rpc客户端生成stub失败, 使用反射代理. interface = " + interfaceClass.getName() + ", 原因 = " + e);
+                return GENERATE_FAILED;
+            }
+        }
+    };
+    private static final ClassValue<WeakReference<Class<?>>> SERVER_SKELETON_CACHE = new ClassValue<WeakReference<Class<?>>>() {
+        @Override
+        protected WeakReference<Class<?>> computeValue(Class<?> serviceClass) {
+            try {
+                return new WeakReference<>(generateServerSkeleton(serviceClass));
+            } catch (Throwable e) {
+                LOGGER.warn("rpc服务端生成skeleton失败, 使用反射调用. service = " + serviceClass.getName() + ", 原因 = " + e);
+                return GENERATE_FAILED;
+            }
+        }
+    };
+
+    private RpcStubGenerator() {
+    }
+
+    /**
+     * 客户端stub调用rpc
+     */
+    public interface Invoker {
+        /**
+         * @param methodIndex 方法在 {@link #getRpcMethods(Class)} 中的下标
+         * @param args 参数
+         * @return 返回值
+         * @throws Throwable 异常
+         */
+        Object invoke(int methodIndex, Object[] args) throws Throwable;
+    }
+
+    /**
+     * 客户端stub的父类
+     */
+    public abstract static class ClientStub {
+        protected final Invoker invoker;
+
+        protected ClientStub(Invoker invoker) {
+            this.invoker = invoker;
+        }
+
+        @Override
+        public String toString() {
+            return invoker.toString();
+        }
+    }
+
+    /**
+     * 服务端skeleton的父类
+     */
+    public abstract static class ServerSkeleton {
+        protected final Object service;
+        private final DataCodec dataCodec;
+        //参数需要的类型, 基本类型换成包装类型
+        private final Class<?>[][] parameterTypes;
+
+        protected ServerSkeleton(Object service, Method[] methods, DataCodec dataCodec) {
+            this.service = service;
+            this.dataCodec = dataCodec;
+            this.parameterTypes = new Class[methods.length][];
+            for (int i = 0; i < methods.length; i++) {
+                Class<?>[] types = methods[i].getParameterTypes();
+                for (int j = 0; j < types.length; j++) {
+                    types[j] = wrapperType(types[j]);
+                }
+                parameterTypes[i] = types;
+            }
+        }
+
+        /**
+         * 调用服务的方法
+         * @param methodIndex 方法下标
+         * @param args 参数
+         * @return 返回值, void返回null
+         * @throws Throwable 服务方法抛出的异常(没有包装)
+         */
+        public abstract Object invoke(int methodIndex, Object[] args) throws Throwable;
+
+        /**
+         * 参数类型不对时转换 (例: json解码出来的Integer 转 Long, JSONObject 转 实体类)
+         */
+        protected final Object cast(Object arg, int methodIndex, int parameterIndex){
+            Class<?> type = parameterTypes[methodIndex][parameterIndex];
+            if(arg == null || type.isInstance(arg)){
+                return arg;
+            }
+            return dataCodec.cast(arg, type);
+        }
+    }
+
+    /**
+     * rpc接口的方法, 按方法名, 参数个数, 参数类型排序. stub和skeleton的方法下标都是这个顺序
+     * 不包括静态方法和默认方法(默认方法在本地执行)
+     * @param interfaceClass 接口
+     * @return 方法
+     */
+    public static Method[] getRpcMethods(Class<?> interfaceClass){
+        List<Method> methodList = new ArrayList<>();
+        for(Method method : interfaceClass.getMethods()){
+            if(Modifier.isStatic(method.getModifiers()) || method.isDefault()){
+                continue;
+            }
+            methodList.add(method);
+        }
+        methodList.sort(Comparator.comparing(Method::getName)
+                .thenComparingInt(Method::getParameterCount)
+                .thenComparing(method -> Arrays.toString(method.getParameterTypes())));
+        return methodList.toArray(new Method[0]);
+    }
+
+    /**
+     * 新建客户端stub
+     * @param interfaceClass 接口
+     * @param invoker 调用rpc
+     * @param <T> 接口类型
+     * @return null = 不支持, 使用反射代理
+     */
+    public static <T>T newClientStub(Class<T> interfaceClass, Invoker invoker){
+        if(!Optimize.isEnableRpcGeneratedStub()){
+            return null;
+        }
+        Class<?> stubClass = getGeneratedClass(CLIENT_STUB_CACHE, interfaceClass);
+        if(stubClass == null){
+            return null;
+        }
+        try {
+            return interfaceClass.cast(stubClass.getConstructor(Invoker.class).newInstance(invoker));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("rpc客户端stub创建失败", e);
+        }
+    }
+
+    /**
+     * @return 生成的类, null = 生成失败
+     */
+    private static Class<?> getGeneratedClass(ClassValue<WeakReference<Class<?>>> cache, Class<?> type){
+        for(;;) {
+            WeakReference<Class<?>> reference = cache.get(type);
+            if(reference == GENERATE_FAILED){
+                return null;
+            }
+            Class<?> generatedClass = reference.get();
+            if(generatedClass != null){
+                return generatedClass;
+            }
+            //已经被回收了, 重新生成
+            cache.remove(type);
+        }
+    }
+
+    /**
+     * 新建服务端skeleton
+     * @param service 服务实现
+     * @param methods 方法, 下标就是调用时的方法下标
+     * @param dataCodec 参数转换
+     * @return null = 不支持, 使用反射调用
+     */
+    public static ServerSkeleton newServerSkeleton(Object service, Method[] methods, DataCodec dataCodec){
+        if(!Optimize.isEnableRpcGeneratedStub()){
+            return null;
+        }
+        Class<?> skeletonClass = getGeneratedClass(SERVER_SKELETON_CACHE, service.getClass());
+        if(skeletonClass == null){
+            return null;
+        }
+        try {
+            return (ServerSkeleton) skeletonClass.getConstructor(Object.class, Method[].class, DataCodec.class).newInstance(service, methods, dataCodec);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("rpc服务端skeleton创建失败", e);
+        }
+    }
+
+    /**
+     * 服务端的方法, 所有rpc接口的方法. 按接口顺序, 每个接口内按 {@link #getRpcMethods(Class)} 排序
+     * @param serviceClass 服务实现类
+     * @return 方法
+     */
+    public static Method[] getServiceMethods(Class<?> serviceClass){
+        List<Method> methodList = new ArrayList<>();
+        for(Class<?> currClass = serviceClass; currClass != null; currClass = currClass.getSuperclass()){
+            for(Class<?> interfaceClass : currClass.getInterfaces()) {
+                methodList.addAll(Arrays.asList(getRpcMethods(interfaceClass)));
+            }
+        }
+        return methodList.toArray(new Method[0]);
+    }
+
+    private static Class<?> generateClientStub(Class<?> interfaceClass) throws Exception {
+        if(!interfaceClass.isInterface()){
+            throw new IllegalArgumentException("不是接口");
+        }
+        Method[] methods = getRpcMethods(interfaceClass);
+        checkAccessible(interfaceClass, methods);
+
+        ClassPool classPool = newClassPool(interfaceClass.getClassLoader());
+        CtClass ctClass = classPool.makeClass(interfaceClass.getName() + "$$RpcStub");
+        ctClass.setSuperclass(classPool.get(ClientStub.class.getName()));
+        ctClass.addInterface(classPool.get(interfaceClass.getName()));
+        ctClass.addConstructor(CtNewConstructor.make(
+                new CtClass[]{classPool.get(Invoker.class.getName())}, new CtClass[0], "{ super($1); }", ctClass));
+
+        for (int i = 0; i < methods.length; i++) {
+            Method method = methods[i];
+            Class<?> returnType = method.getReturnType();
+            StringBuilder body = new StringBuilder("{ ");
+            String invoke = "this.invoker.invoke(" + i + ", $args)";
+            if(returnType == void.class){
+                body.append(invoke).append("; }");
+            }else if(returnType == boolean.class){
+                body.append("return ((java.lang.Boolean) ").append(invoke).append(").booleanValue(); }");
+            }else if(returnType == char.class){
+                body.append("return ((java.lang.Character) ").append(invoke).append(").charValue(); }");
+            }else if(returnType.isPrimitive()){
+                //json解码出来的数字不一定是这个类型, 用Number转
+                body.append("return ((java.lang.Number) ").append(invoke).append(").").append(returnType.getName()).append("Value(); }");
+            }else {
+                body.append("return (").append(sourceName(returnType)).append(") ").append(invoke).append("; }");
+            }
+            ctClass.addMethod(CtNewMethod.make(methodDeclare(method) + body, ctClass));
+        }
+        return defineClass(interfaceClass.getClassLoader(), ctClass);
+    }
+
+    private static Class<?> generateServerSkeleton(Class<?> serviceClass) throws Exception {
+        Method[] methods = getServiceMethods(serviceClass);
+        for(Method method : methods) {
+            checkAccessible(method.getDeclaringClass(), new Method[]{method});
+        }
+
+        ClassPool classPool = newClassPool(serviceClass.getClassLoader());
+        CtClass ctClass = classPool.makeClass(serviceClass.getName() + "$$RpcSkeleton");
+        ctClass.setSuperclass(classPool.get(ServerSkeleton.class.getName()));
+        ctClass.addConstructor(CtNewConstructor.make(
+                new CtClass[]{classPool.get(Object.class.getName()), classPool.get(Method[].class.getName()), classPool.get(DataCodec.class.getName())},
+                new CtClass[0], "{ super($1, $2, $3); }", ctClass));
+
+        StringBuilder body = new StringBuilder("public Object invoke(int methodIndex, Object[] args) throws Throwable {\n switch (methodIndex) {\n");
+        for (int i = 0; i < methods.length; i++) {
+            Method method = methods[i];
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            StringBuilder call = new StringBuilder("((").append(sourceName(method.getDeclaringClass())).append(") this.service).")
+                    .append(method.getName()).append('(');
+            for (int j = 0; j < parameterTypes.length; j++) {
+                if(j > 0){
+                    call.append(", ");
+                }
+                call.append(unbox(parameterTypes[j], "cast(args[" + j + "], " + i + ", " + j + ")"));
+            }
+            call.append(')');
+
+            body.append(" case ").append(i).append(": ");
+            Class<?> returnType = method.getReturnType();
+            if(returnType == void.class){
+                body.append(call).append("; return null;\n");
+            }else if(returnType.isPrimitive()){
+                body.append("return ").append(sourceName(wrapperType(returnType))).append(".valueOf(").append(call).append(");\n");
+            }else {
+                body.append("return ").append(call).append(";\n");
+            }
+        }
+        body.append(" default: throw new IllegalArgumentException(\"no such method index \" + methodIndex);\n }\n}");
+        ctClass.addMethod(CtNewMethod.make(body.toString(), ctClass));
+        return defineClass(serviceClass.getClassLoader(), ctClass);
+    }
+
+    /**
+     * 生成的类在另一个类加载器里, 不能访问非public的类型
+     */
+    private static void checkAccessible(Class<?> interfaceClass, Method[] methods){
+        checkAccessible(interfaceClass);
+        for(Method method : methods){
+            checkAccessible(method.getReturnType());
+            for(Class<?> type : method.getParameterTypes()){
+                checkAccessible(type);
+            }
+        }
+    }
+
+    private static void checkAccessible(Class<?> type){
+        while (type.isArray()){
+            type = type.getComponentType();
+        }
+        for(Class<?> currClass = type; currClass != null; currClass = currClass.getEnclosingClass()) {
+            if (!type.isPrimitive() && !Modifier.isPublic(currClass.getModifiers())) {
+                throw new IllegalStateException("不是public的类型 " + currClass.getName());
+            }
+        }
+    }
+
+    private static String methodDeclare(Method method){
+        StringBuilder declare = new StringBuilder("public ")
+                .append(sourceName(method.getReturnType())).append(' ')
+                .append(method.getName()).append('(');
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if(i > 0){
+                declare.append(", ");
+            }
+            declare.append(sourceName(parameterTypes[i])).append(" arg").append(i);
+        }
+        return declare.append(") ").toString();
+    }
+
+    private static String unbox(Class<?> type, String expression){
+        if(!type.isPrimitive()){
+            return "(" + sourceName(type) + ") " + expression;
+        }
+        if(type == boolean.class){
+            return "((java.lang.Boolean) " + expression + ").booleanValue()";
+        }
+        if(type == char.class){
+            return "((java.lang.Character) " + expression + ").charValue()";
+        }
+        return "((java.lang.Number) " + expression + ")." + type.getName() + "Value()";
+    }
+
+    /**
+     * javassist源码中的类名: 数组写成 xxx[], 内部类用$
+     */
+    private static String sourceName(Class<?> type){
+        if(type.isArray()){
+            return sourceName(type.getComponentType()) + "[]";
+        }
+        return type.getName();
+    }
+
+    private static Class<?> wrapperType(Class<?> type){
+        if(!type.isPrimitive()){
+            return type;
+        }
+        if(type == int.class){
+            return Integer.class;
+        }else if(type == long.class){
+            return Long.class;
+        }else if(type == boolean.class){
+            return Boolean.class;
+        }else if(type == byte.class){
+            return Byte.class;
+        }else if(type == short.class){
+            return Short.class;
+        }else if(type == char.class){
+            return Character.class;
+        }else if(type == float.class){
+            return Float.class;
+        }else if(type == double.class){
+            return Double.class;
+        }
+        return Void.class;
+    }
+
+    private static ClassPool newClassPool(ClassLoader classLoader){
+        ClassPool classPool = new ClassPool(true);
+        classPool.appendClassPath(new ClassClassPath(RpcStubGenerator.class));
+        if(classLoader != null) {
+            classPool.appendClassPath(new LoaderClassPath(classLoader));
+        }
+        return classPool;
+    }
+
+    private static Class<?> defineClass(ClassLoader parent, CtClass ctClass) throws Exception {
+        byte[] bytes = ctClass.toBytecode();
+        ctClass.detach();
+        return new GeneratedClassLoader(parent).define(ctClass.getName(), bytes);
+    }
+
+    /**
+     * 每个生成的类一个类加载器, 生成的类被回收时一起回收
+     */
+    private static class GeneratedClassLoader extends ClassLoader {
+        private GeneratedClassLoader(ClassLoader parent) {
+            super(parent == null? RpcStubGenerator.class.getClassLoader() : parent);
+        }
+
+        private Class<?> define(String name, byte[] bytes){
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+}
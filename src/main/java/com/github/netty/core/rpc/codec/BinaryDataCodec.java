@@ -0,0 +1,560 @@
+package com.github.netty.core.rpc.codec;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.parser.ParserConfig;
+import com.alibaba.fastjson.util.TypeUtils;
+import com.github.netty.core.rpc.exception.RpcDecodeException;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * 二进制编码解码器, 按接口方法的参数类型编码 (需要知道调用的方法, 所以只用于有方法id的请求)
+ *
+ * 1.不写类名. 基本类型的参数直接写值(整数用变长编码), 不装箱
+ * 2.其他值前面写1个字节的类型标记. null, 包装类型, String, byte[] 直接写值, byte[]不做转换. List, Map 逐个写元素, 按声明的泛型解码元素
+ * 3.其他对象(实体类等)写成不带类名的json, 解码时按接口方法声明的类型(包括泛型)解析
+ * 4.返回值都带类型标记, 因为客户端和服务端接口的返回类型可以不一样 (例: byte[] 和 CompletableFuture&lt;byte[]&gt;)
+ *
+ * 请求 = 参数个数(变长) + 参数..., 响应 = 返回值
+ * @author 84215
+ */
+public class BinaryDataCodec implements DataCodec {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_TRUE = 1;
+    private static final byte TYPE_FALSE = 2;
+    private static final byte TYPE_BYTE = 3;
+    private static final byte TYPE_SHORT = 4;
+    private static final byte TYPE_CHAR = 5;
+    private static final byte TYPE_INT = 6;
+    private static final byte TYPE_LONG = 7;
+    private static final byte TYPE_FLOAT = 8;
+    private static final byte TYPE_DOUBLE = 9;
+    private static final byte TYPE_STRING = 10;
+    private static final byte TYPE_BYTES = 11;
+    private static final byte TYPE_LIST = 12;
+    private static final byte TYPE_MAP = 13;
+    private static final byte TYPE_JSON = 14;
+
+    /**
+     * 基本类型 -> 包装类型
+     */
+    private static final Map<Class<?>,Class<?>> PRIMITIVE_WRAPPER_MAP = new IdentityHashMap<>();
+    static {
+        PRIMITIVE_WRAPPER_MAP.put(boolean.class, Boolean.class);
+        PRIMITIVE_WRAPPER_MAP.put(byte.class, Byte.class);
+        PRIMITIVE_WRAPPER_MAP.put(short.class, Short.class);
+        PRIMITIVE_WRAPPER_MAP.put(char.class, Character.class);
+        PRIMITIVE_WRAPPER_MAP.put(int.class, Integer.class);
+        PRIMITIVE_WRAPPER_MAP.put(long.class, Long.class);
+        PRIMITIVE_WRAPPER_MAP.put(float.class, Float.class);
+        PRIMITIVE_WRAPPER_MAP.put(double.class, Double.class);
+    }
+
+    private ParserConfig parserConfig;
+    /**
+     * 方法的参数类型和返回值类型 (Method.getParameterTypes 每次都会复制数组)
+     */
+    private final Map<Method,MethodSchema> schemaMap = new ConcurrentHashMap<>();
+
+    public BinaryDataCodec() {
+        this.parserConfig = new ParserConfig();
+    }
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public byte[] encodeRequestData(Object[] data) {
+        return encodeRequestData(data, null);
+    }
+
+    @Override
+    public byte[] encodeRequestData(Object[] data, Method method) {
+        if(data == null || data.length == 0){
+            return EMPTY;
+        }
+        Class<?>[] parameterClasses = method == null? null : getSchema(method).parameterClasses;
+        if(parameterClasses != null && parameterClasses.length != data.length){
+            throw new IllegalArgumentException("The args count not match, method = [" + method + "], args count = [" + data.length + "]");
+        }
+
+        Output output = new Output();
+        output.writeVarint32(data.length);
+        for (int i = 0; i < data.length; i++) {
+            if (parameterClasses != null && parameterClasses[i].isPrimitive()) {
+                writePrimitive(output, parameterClasses[i], data[i]);
+            } else {
+                writeValue(output, data[i]);
+            }
+        }
+        return output.toByteArray();
+    }
+
+    @Override
+    public Object[] decodeRequestData(byte[] data) {
+        return decodeRequestData(data, null);
+    }
+
+    @Override
+    public Object[] decodeRequestData(byte[] data, Method method) {
+        if(data == null || data.length == 0){
+            return null;
+        }
+        MethodSchema schema = method == null? null : getSchema(method);
+
+        Input input = new Input(data);
+        int count = input.readVarint32();
+        if(schema != null && schema.parameterClasses.length != count){
+            throw new RpcDecodeException("The args count not match, method = [" + method + "], args count = [" + count + "]");
+        }
+        Object[] args = new Object[count];
+        for (int i = 0; i < count; i++) {
+            if (schema != null && schema.parameterClasses[i].isPrimitive()) {
+                args[i] = readPrimitive(input, schema.parameterClasses[i]);
+            } else {
+                args[i] = readValue(input, schema == null ? null : schema.parameterTypes[i]);
+            }
+        }
+        return args;
+    }
+
+    @Override
+    public byte[] encodeResponseData(Object data) {
+        return encodeResponseData(data, null);
+    }
+
+    @Override
+    public byte[] encodeResponseData(Object data, Method method) {
+        if(data == null){
+            return EMPTY;
+        }
+        Output output = new Output();
+        writeValue(output, data);
+        return output.toByteArray();
+    }
+
+    @Override
+    public Object decodeResponseData(byte[] data) {
+        return decodeResponseData(data, null);
+    }
+
+    @Override
+    public Object decodeResponseData(byte[] data, Method method) {
+        if(data == null || data.length == 0){
+            return null;
+        }
+        return readValue(new Input(data), method == null? null : getSchema(method).resultType);
+    }
+
+    @Override
+    public <T> T cast(Object data, Class<T> type) {
+        try {
+            return TypeUtils.cast(data,type,parserConfig);
+        }catch (Exception e){
+            throw new RpcDecodeException(e.getMessage(),e);
+        }
+    }
+
+    private void writePrimitive(Output output, Class<?> type, Object value) {
+        if(type == int.class){
+            output.writeSInt32((Integer) value);
+        }else if(type == long.class){
+            output.writeSInt64((Long) value);
+        }else if(type == boolean.class){
+            output.writeByte((Boolean) value? 1 : 0);
+        }else if(type == double.class){
+            output.writeFixed64(Double.doubleToRawLongBits((Double) value));
+        }else if(type == float.class){
+            output.writeFixed32(Float.floatToRawIntBits((Float) value));
+        }else if(type == short.class){
+            output.writeSInt32((Short) value);
+        }else if(type == byte.class){
+            output.writeByte((Byte) value);
+        }else if(type == char.class){
+            output.writeVarint32((Character) value);
+        }else {
+            throw new IllegalArgumentException("The type is not primitive [" + type + "]");
+        }
+    }
+
+    private Object readPrimitive(Input input, Class<?> type) {
+        if(type == int.class){
+            return input.readSInt32();
+        }else if(type == long.class){
+            return input.readSInt64();
+        }else if(type == boolean.class){
+            return input.readByte() != 0;
+        }else if(type == double.class){
+            return Double.longBitsToDouble(input.readFixed64());
+        }else if(type == float.class){
+            return Float.intBitsToFloat(input.readFixed32());
+        }else if(type == short.class){
+            return (short) input.readSInt32();
+        }else if(type == byte.class){
+            return input.readByte();
+        }else if(type == char.class){
+            return (char) input.readVarint32();
+        }else {
+            throw new RpcDecodeException("The type is not primitive [" + type + "]");
+        }
+    }
+
+    private void writeValue(Output output, Object value) {
+        if(value == null){
+            output.writeByte(TYPE_NULL);
+        }else if(value instanceof String){
+            output.writeByte(TYPE_STRING);
+            output.writeBytes(((String) value).getBytes(StandardCharsets.UTF_8));
+        }else if(value instanceof Integer){
+            output.writeByte(TYPE_INT);
+            output.writeSInt32((Integer) value);
+        }else if(value instanceof Long){
+            output.writeByte(TYPE_LONG);
+            output.writeSInt64((Long) value);
+        }else if(value instanceof byte[]){
+            output.writeByte(TYPE_BYTES);
+            output.writeBytes((byte[]) value);
+        }else if(value instanceof Boolean){
+            output.writeByte((Boolean) value? TYPE_TRUE : TYPE_FALSE);
+        }else if(value instanceof Double){
+            output.writeByte(TYPE_DOUBLE);
+            output.writeFixed64(Double.doubleToRawLongBits((Double) value));
+        }else if(value instanceof Float){
+            output.writeByte(TYPE_FLOAT);
+            output.writeFixed32(Float.floatToRawIntBits((Float) value));
+        }else if(value instanceof Short){
+            output.writeByte(TYPE_SHORT);
+            output.writeSInt32((Short) value);
+        }else if(value instanceof Byte){
+            output.writeByte(TYPE_BYTE);
+            output.writeByte((Byte) value);
+        }else if(value instanceof Character){
+            output.writeByte(TYPE_CHAR);
+            output.writeVarint32((Character) value);
+        }else if(value instanceof List){
+            List<?> list = (List<?>) value;
+            output.writeByte(TYPE_LIST);
+            output.writeVarint32(list.size());
+            for(Object element : list){
+                writeValue(output, element);
+            }
+        }else if(value instanceof Map){
+            Map<?,?> map = (Map<?,?>) value;
+            output.writeByte(TYPE_MAP);
+            output.writeVarint32(map.size());
+            for(Map.Entry<?,?> entry : map.entrySet()){
+                writeValue(output, entry.getKey());
+                writeValue(output, entry.getValue());
+            }
+        }else {
+            //实体类等, 不带类名, 解码时按声明的类型解析
+            output.writeByte(TYPE_JSON);
+            output.writeBytes(JSON.toJSONBytes(value));
+        }
+    }
+
+    /**
+     * 读值
+     * @param input 输入
+     * @param type 声明的类型, null = 不知道
+     * @return 值
+     */
+    private Object readValue(Input input, Type type) {
+        byte tag = input.readByte();
+        Object value;
+        switch (tag){
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                value = input.readString();
+                break;
+            case TYPE_INT:
+                value = input.readSInt32();
+                break;
+            case TYPE_LONG:
+                value = input.readSInt64();
+                break;
+            case TYPE_BYTES:
+                value = input.readBytes();
+                break;
+            case TYPE_TRUE:
+                value = Boolean.TRUE;
+                break;
+            case TYPE_FALSE:
+                value = Boolean.FALSE;
+                break;
+            case TYPE_DOUBLE:
+                value = Double.longBitsToDouble(input.readFixed64());
+                break;
+            case TYPE_FLOAT:
+                value = Float.intBitsToFloat(input.readFixed32());
+                break;
+            case TYPE_SHORT:
+                value = (short) input.readSInt32();
+                break;
+            case TYPE_BYTE:
+                value = input.readByte();
+                break;
+            case TYPE_CHAR:
+                value = (char) input.readVarint32();
+                break;
+            case TYPE_LIST:{
+                int size = input.readVarint32();
+                Type elementType = getTypeArgument(type, 0);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(input, elementType));
+                }
+                value = list;
+                break;
+            }
+            case TYPE_MAP:{
+                int size = input.readVarint32();
+                Type keyType = getTypeArgument(type, 0);
+                Type valueType = getTypeArgument(type, 1);
+                Map<Object,Object> map = new LinkedHashMap<>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    map.put(readValue(input, keyType), readValue(input, valueType));
+                }
+                value = map;
+                break;
+            }
+            case TYPE_JSON:{
+                byte[] json = input.readBytes();
+                if(type == null || type == Object.class){
+                    return JSON.parse(json);
+                }
+                return JSON.parseObject(json, type);
+            }
+            default:
+                throw new RpcDecodeException("The type tag is not support [" + tag + "]");
+        }
+
+        //声明的类型不一样时转换 (例: 服务端返回int, 客户端接口声明的是long)
+        Class<?> typeClass = toClass(type);
+        if(typeClass == null || typeClass == Object.class || typeClass.isInstance(value)
+                || (typeClass.isPrimitive() && PRIMITIVE_WRAPPER_MAP.get(typeClass) == value.getClass())){
+            return value;
+        }
+        return cast(value, typeClass);
+    }
+
+    private MethodSchema getSchema(Method method){
+        MethodSchema schema = schemaMap.get(method);
+        if(schema == null){
+            schema = new MethodSchema(method);
+            schemaMap.put(method, schema);
+        }
+        return schema;
+    }
+
+    private static Class<?> toClass(Type type){
+        if(type instanceof Class){
+            return (Class<?>) type;
+        }
+        if(type instanceof ParameterizedType){
+            return toClass(((ParameterizedType) type).getRawType());
+        }
+        return null;
+    }
+
+    /**
+     * 泛型参数, 例: List&lt;Long&gt; 的第0个是Long
+     * @return null = 不知道
+     */
+    private static Type getTypeArgument(Type type, int index){
+        if(type instanceof ParameterizedType){
+            Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+            return index < arguments.length? arguments[index] : null;
+        }
+        return null;
+    }
+
+    /**
+     * 写到可以扩容的数组
+     */
+    private static class Output {
+        private byte[] buffer = new byte[32];
+        private int position;
+
+        private void ensureCapacity(int length){
+            if(position + length > buffer.length){
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, position + length));
+            }
+        }
+
+        private void writeByte(int value){
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+
+        private void writeVarint32(int value){
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0){
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        private void writeVarint64(long value){
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0){
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        private void writeSInt32(int value){
+            writeVarint32((value << 1) ^ (value >> 31));
+        }
+
+        private void writeSInt64(long value){
+            writeVarint64((value << 1) ^ (value >> 63));
+        }
+
+        private void writeFixed32(int value){
+            ensureCapacity(4);
+            buffer[position++] = (byte) value;
+            buffer[position++] = (byte) (value >> 8);
+            buffer[position++] = (byte) (value >> 16);
+            buffer[position++] = (byte) (value >> 24);
+        }
+
+        private void writeFixed64(long value){
+            writeFixed32((int) value);
+            writeFixed32((int) (value >> 32));
+        }
+
+        /**
+         * 长度(变长) + 字节
+         */
+        private void writeBytes(byte[] bytes){
+            writeVarint32(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private byte[] toByteArray(){
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    /**
+     * 从数组读
+     */
+    private static class Input {
+        private final byte[] buffer;
+        private int position;
+
+        private Input(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        private void checkRemaining(int length){
+            if(length < 0 || position + length > buffer.length){
+                throw new RpcDecodeException("The data is truncated, length = [" + buffer.length + "], position = [" + position + "], need = [" + length + "]");
+            }
+        }
+
+        private byte readByte(){
+            checkRemaining(1);
+            return buffer[position++];
+        }
+
+        private int readVarint32(){
+            return (int) readVarint64();
+        }
+
+        private long readVarint64(){
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0){
+                    return result;
+                }
+            }
+            throw new RpcDecodeException("The varint is malformed");
+        }
+
+        private int readSInt32(){
+            int value = readVarint32();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readSInt64(){
+            long value = readVarint64();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private int readFixed32(){
+            checkRemaining(4);
+            int value = (buffer[position] & 0xFF)
+                    | (buffer[position + 1] & 0xFF) << 8
+                    | (buffer[position + 2] & 0xFF) << 16
+                    | (buffer[position + 3] & 0xFF) << 24;
+            position += 4;
+            return value;
+        }
+
+        private long readFixed64(){
+            return (readFixed32() & 0xFFFFFFFFL) | ((long) readFixed32() << 32);
+        }
+
+        private byte[] readBytes(){
+            int length = readVarint32();
+            checkRemaining(length);
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        private String readString(){
+            int length = readVarint32();
+            checkRemaining(length);
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+
+    /**
+     * 方法的参数类型和返回值类型
+     */
+    private static class MethodSchema {
+        private final Class<?>[] parameterClasses;
+        private final Type[] parameterTypes;
+        //返回值的类型, 异步方法是 CompletableFuture 的泛型
+        private final Type resultType;
+
+        private MethodSchema(Method method) {
+            this.parameterClasses = method.getParameterTypes();
+            this.parameterTypes = method.getGenericParameterTypes();
+
+            Class<?> returnType = method.getReturnType();
+            if(Future.class.isAssignableFrom(returnType) || CompletionStage.class.isAssignableFrom(returnType)){
+                Type genericReturnType = method.getGenericReturnType();
+                this.resultType = genericReturnType instanceof ParameterizedType?
+                        ((ParameterizedType) genericReturnType).getActualTypeArguments()[0] : Object.class;
+            }else {
+                this.resultType = method.getGenericReturnType();
+            }
+        }
+    }
+
+}
@@ -1,5 +1,7 @@
 package com.github.netty.core.rpc.codec;
 
+import java.lang.reflect.Method;
+
 /**
  *  数据编码解码器
  * @author 84215
@@ -13,13 +15,6 @@ public interface DataCodec {
      */
     byte[] encodeRequestData(Object[] data);
 
-    /**
-     * 请求数据解码
-     * @param data
-     * @return
-     */
-    Object[] decodeRequestData(String data);
-
     /**
      * 请求数据解码
      * @param data
@@ -50,4 +45,52 @@ public interface DataCodec {
      */
     <T>T cast(Object data,Class<T> type);
 
+    /**
+     * 编码解码器的名称, 握手时客户端按名称选服务端的编码解码器
+     * @return 默认是类名
+     */
+    default String getName(){
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * 请求数据编码 (知道调用的接口方法, 可以按参数类型编码)
+     * @param data 参数
+     * @param method 接口方法
+     * @return
+     */
+    default byte[] encodeRequestData(Object[] data, Method method){
+        return encodeRequestData(data);
+    }
+
+    /**
+     * 请求数据解码 (知道调用的接口方法, 可以按参数类型解码)
+     * @param data
+     * @param method 接口方法
+     * @return
+     */
+    default Object[] decodeRequestData(byte[] data, Method method){
+        return decodeRequestData(data);
+    }
+
+    /**
+     * 响应数据编码
+     * @param data 返回值
+     * @param method 服务端的接口方法
+     * @return
+     */
+    default byte[] encodeResponseData(Object data, Method method){
+        return encodeResponseData(data);
+    }
+
+    /**
+     * 响应数据解码. 注:(客户端和服务端接口的返回类型可以不一样, 例: byte[] 和 CompletableFuture&lt;byte[]&gt;)
+     * @param data
+     * @param method 客户端的接口方法
+     * @return
+     */
+    default Object decodeResponseData(byte[] data, Method method){
+        return decodeResponseData(data);
+    }
+
 }
@@ -42,23 +42,6 @@ public class JsonDataCodec implements DataCodec {
         return JSON.toJSONBytes(data,SERIALIZER_FEATURES);
     }
 
-    @Override
-    public Object[] decodeRequestData(String data) {
-        if(data == null || data.isEmpty()){
-            return null;
-        }
-
-        if(Optimize.isEnableExecuteHold()){
-            return Optimize.holdExecute(() -> {
-                List list = (List) JSON.parse(data,parserConfig);
-                return list.toArray();
-            });
-        }
-
-        List list = (List) JSON.parse(data,parserConfig);
-        return list.toArray();
-    }
-
     @Override
     public Object[] decodeRequestData(byte[] data) {
         if(data == null || data.length == 0){
@@ -105,6 +88,11 @@ public class JsonDataCodec implements DataCodec {
         return JSON.parse(data);
     }
 
+    @Override
+    public String getName() {
+        return "json";
+    }
+
     @Override
     public <T> T cast(Object data, Class<T> type) {
         try {
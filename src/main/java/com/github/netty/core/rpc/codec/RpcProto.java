@@ -47,6 +47,16 @@ public final class RpcProto {
      * <code>bytes data = 4;</code>
      */
     com.google.protobuf.ByteString getData();
+
+    /**
+     * <code>int32 methodId = 5;</code>
+     */
+    int getMethodId();
+
+    /**
+     * <code>int32 codec = 6;</code>
+     */
+    int getCodec();
   }
   /**
    * Protobuf type {@code Request}
@@ -65,6 +75,8 @@ public final class RpcProto {
       serviceName_ = "";
       methodName_ = "";
       data_ = com.google.protobuf.ByteString.EMPTY;
+      methodId_ = 0;
+      codec_ = 0;
     }
 
     @java.lang.Override
@@ -120,6 +132,16 @@ public final class RpcProto {
               data_ = input.readBytes();
               break;
             }
+            case 40: {
+
+              methodId_ = input.readInt32();
+              break;
+            }
+            case 48: {
+
+              codec_ = input.readInt32();
+              break;
+            }
           }
         }
       } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -230,6 +252,24 @@ public final class RpcProto {
       return data_;
     }
 
+    public static final int METHODID_FIELD_NUMBER = 5;
+    private int methodId_;
+    /**
+     * <code>int32 methodId = 5;</code>
+     */
+    public int getMethodId() {
+      return methodId_;
+    }
+
+    public static final int CODEC_FIELD_NUMBER = 6;
+    private int codec_;
+    /**
+     * <code>int32 codec = 6;</code>
+     */
+    public int getCodec() {
+      return codec_;
+    }
+
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
       byte isInitialized = memoizedIsInitialized;
@@ -254,6 +294,12 @@ public final class RpcProto {
       if (!data_.isEmpty()) {
         output.writeBytes(4, data_);
       }
+      if (methodId_ != 0) {
+        output.writeInt32(5, methodId_);
+      }
+      if (codec_ != 0) {
+        output.writeInt32(6, codec_);
+      }
       unknownFields.writeTo(output);
     }
 
@@ -276,6 +322,14 @@ public final class RpcProto {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(4, data_);
       }
+      if (methodId_ != 0) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(5, methodId_);
+      }
+      if (codec_ != 0) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(6, codec_);
+      }
       size += unknownFields.getSerializedSize();
       memoizedSize = size;
       return size;
@@ -300,6 +354,10 @@ public final class RpcProto {
           .equals(other.getMethodName());
       result = result && getData()
           .equals(other.getData());
+      result = result && (getMethodId()
+          == other.getMethodId());
+      result = result && (getCodec()
+          == other.getCodec());
       result = result && unknownFields.equals(other.unknownFields);
       return result;
     }
@@ -320,6 +378,10 @@ public final class RpcProto {
       hash = (53 * hash) + getMethodName().hashCode();
       hash = (37 * hash) + DATA_FIELD_NUMBER;
       hash = (53 * hash) + getData().hashCode();
+      hash = (37 * hash) + METHODID_FIELD_NUMBER;
+      hash = (53 * hash) + getMethodId();
+      hash = (37 * hash) + CODEC_FIELD_NUMBER;
+      hash = (53 * hash) + getCodec();
       hash = (29 * hash) + unknownFields.hashCode();
       memoizedHashCode = hash;
       return hash;
@@ -457,6 +519,10 @@ public final class RpcProto {
 
         data_ = com.google.protobuf.ByteString.EMPTY;
 
+        methodId_ = 0;
+
+        codec_ = 0;
+
         return this;
       }
 
@@ -483,6 +549,8 @@ public final class RpcProto {
         result.serviceName_ = serviceName_;
         result.methodName_ = methodName_;
         result.data_ = data_;
+        result.methodId_ = methodId_;
+        result.codec_ = codec_;
         onBuilt();
         return result;
       }
@@ -538,6 +606,12 @@ public final class RpcProto {
         if (other.getData() != com.google.protobuf.ByteString.EMPTY) {
           setData(other.getData());
         }
+        if (other.getMethodId() != 0) {
+          setMethodId(other.getMethodId());
+        }
+        if (other.getCodec() != 0) {
+          setCodec(other.getCodec());
+        }
         this.mergeUnknownFields(other.unknownFields);
         onChanged();
         return this;
@@ -757,6 +831,58 @@ public final class RpcProto {
         onChanged();
         return this;
       }
+
+      private int methodId_ ;
+      /**
+       * <code>int32 methodId = 5;</code>
+       */
+      public int getMethodId() {
+        return methodId_;
+      }
+      /**
+       * <code>int32 methodId = 5;</code>
+       */
+      public Builder setMethodId(int value) {
+        
+        methodId_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>int32 methodId = 5;</code>
+       */
+      public Builder clearMethodId() {
+        
+        methodId_ = 0;
+        onChanged();
+        return this;
+      }
+
+      private int codec_ ;
+      /**
+       * <code>int32 codec = 6;</code>
+       */
+      public int getCodec() {
+        return codec_;
+      }
+      /**
+       * <code>int32 codec = 6;</code>
+       */
+      public Builder setCodec(int value) {
+        
+        codec_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>int32 codec = 6;</code>
+       */
+      public Builder clearCodec() {
+        
+        codec_ = 0;
+        onChanged();
+        return this;
+      }
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
         return super.setUnknownFieldsProto3(unknownFields);
@@ -1606,13 +1732,13 @@ public final class RpcProto {
       descriptor;
   static {
     java.lang.String[] descriptorData = {
-      "\n\tRpc.proto\"S\n\007Request\022\021\n\trequestId\030\001 \001(" +
+      "\n\tRpc.proto\"t\n\007Request\022\021\n\trequestId\030\001 \001(" +
       "\003\022\023\n\013serviceName\030\002 \001(\t\022\022\n\nmethodName\030\003 \001" +
-      "(\t\022\014\n\004data\030\004 \001(\014\"\\\n\010Response\022\021\n\trequestI" +
-      "d\030\001 \001(\003\022\016\n\006status\030\002 \001(\005\022\017\n\007message\030\003 \001(\t" +
-      "\022\016\n\006encode\030\004 \001(\005\022\014\n\004data\030\005 \001(\014B-\n\037com.gi" +
-      "thub.netty.core.rpc.codecB\010RpcProtoH\001b\006p" +
-      "roto3"
+      "(\t\022\014\n\004data\030\004 \001(\014\022\020\n\010methodId\030\005 \001(\005\022\r\n\005co" +
+      "dec\030\006 \001(\005\"\\\n\010Response\022\021\n\trequestId\030\001 \001(\003" +
+      "\022\016\n\006status\030\002 \001(\005\022\017\n\007message\030\003 \001(\t\022\016\n\006enc" +
+      "ode\030\004 \001(\005\022\014\n\004data\030\005 \001(\014B-\n\037com.github.ne" +
+      "tty.core.rpc.codecB\010RpcProtoH\001b\006proto3"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
         new com.google.protobuf.Descriptors.FileDescriptor.    InternalDescriptorAssigner() {
@@ -1631,7 +1757,7 @@ public final class RpcProto {
     internal_static_Request_fieldAccessorTable = new
       com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
         internal_static_Request_descriptor,
-        new java.lang.String[] { "RequestId", "ServiceName", "MethodName", "Data", });
+        new java.lang.String[] { "RequestId", "ServiceName", "MethodName", "Data", "MethodId", "Codec", });
     internal_static_Response_descriptor =
       getDescriptor().getMessageTypes().get(1);
     internal_static_Response_fieldAccessorTable = new
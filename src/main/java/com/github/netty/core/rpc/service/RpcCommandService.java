@@ -2,6 +2,9 @@ package com.github.netty.core.rpc.service;
 
 import com.github.netty.core.rpc.RpcInterface;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * rpc命令服务
  * @author acer01
@@ -16,4 +19,16 @@ public interface RpcCommandService {
      */
     byte[] ping();
 
+    /**
+     * 方法目录, 客户端连接后获取一次, 之后请求只带方法id
+     * @return 方法签名 -> 方法id
+     */
+    Map<String,Integer> getMethodCatalog();
+
+    /**
+     * 服务端支持的编码解码器, 客户端握手时选一个, 请求里带它的下标
+     * @return 编码解码器的名称
+     */
+    List<String> getDataCodecNames();
+
 }
@@ -1,5 +1,11 @@
 package com.github.netty.core.rpc.service;
 
+import com.github.netty.core.rpc.RpcServer;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 /**
  *
  * @author acer01
@@ -7,9 +13,36 @@ package com.github.netty.core.rpc.service;
  */
 public class RpcCommandServiceImpl implements RpcCommandService {
 
+    private RpcServer rpcServer;
+
+    public RpcCommandServiceImpl() {
+    }
+
+    public RpcCommandServiceImpl(RpcServer rpcServer) {
+        this.rpcServer = rpcServer;
+    }
+
     @Override
     public byte[] ping() {
         return "ok".getBytes();
     }
 
+    @Override
+    public Map<String, Integer> getMethodCatalog() {
+        //没有服务端时没有目录, 客户端会用方法名调用
+        if(rpcServer == null){
+            return Collections.emptyMap();
+        }
+        return rpcServer.getMethodCatalog();
+    }
+
+    @Override
+    public List<String> getDataCodecNames() {
+        //没有服务端时客户端用json
+        if(rpcServer == null){
+            return Collections.emptyList();
+        }
+        return rpcServer.getDataCodecNames();
+    }
+
 }
@@ -0,0 +1,64 @@
+package com.github.netty.core.rpc.service;
+
+import com.github.netty.core.rpc.RpcInterface;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 数据存储服务 (异步调用, 和 {@link RpcDBService} 是同一个服务)
+ * 调用时不堵塞线程, 可以同时发出多个请求
+ * @author 84215
+ */
+@RpcInterface(value = "/_inner/db",timeout = 1000)
+public interface RpcDBAsyncService {
+
+    /**
+     * 存在key
+     * @param key
+     * @return
+     */
+    CompletableFuture<Boolean> exist(String key);
+
+    /**
+     * 存入数据
+     * @param key
+     * @param data
+     */
+    CompletableFuture<Void> put(String key,byte[] data);
+
+    /**
+     * 存入数据
+     * @param key
+     * @param data
+     * @param expireSecond 过期时间(秒)
+     */
+    CompletableFuture<Void> put(String key,byte[] data,int expireSecond);
+
+    /**
+     * 获取数据
+     * @param key
+     * @return
+     */
+    CompletableFuture<byte[]> get(String key);
+
+    /**
+     * 改变key
+     * @param oldKey
+     * @param newKey
+     */
+    CompletableFuture<Void> changeKey(String oldKey,String newKey);
+
+    /**
+     * 删除数据
+     * @param key
+     */
+    CompletableFuture<Void> remove(String key);
+
+    /**
+     * 删除多条数据
+     * @param keys
+     */
+    CompletableFuture<Void> remove(List<String> keys);
+
+}
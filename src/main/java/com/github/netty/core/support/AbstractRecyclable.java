@@ -0,0 +1,34 @@
+package com.github.netty.core.support;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 由 {@link AbstractRecycler} 管理的对象
+ * 记录所属线程的回收栈 (跨线程回收时还给它) 和回收状态 (防止重复回收)
+ * @author 84215
+ */
+public abstract class AbstractRecyclable implements Recyclable {
+
+    static final int STATE_ACTIVE = 0;
+    static final int STATE_RECYCLED = 1;
+
+    //并发回收同一个对象时只能有一个成功, 否则会被放进两个栈, 之后被两个地方同时取出使用
+    static final AtomicIntegerFieldUpdater<AbstractRecyclable> RECYCLE_STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(AbstractRecyclable.class, "recycleState");
+
+    AbstractRecycler.Stack recyclerStack;
+    volatile int recycleState = STATE_ACTIVE;
+    //调试模式下记录回收的位置
+    Throwable recycleTrace;
+
+    /**
+     * 调试模式下, 如果对象已经回收了还在用, 就抛出异常, 异常的cause是回收的位置
+     * 非调试模式不做检查
+     */
+    protected final void ensureNotRecycled(){
+        if(recycleState == STATE_RECYCLED && Optimize.isEnableRecyclerDebug()){
+            throw new IllegalStateException(getClass().getSimpleName() + "已经回收, 不能继续使用", recycleTrace);
+        }
+    }
+
+}
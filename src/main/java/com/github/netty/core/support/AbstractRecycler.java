@@ -1,37 +1,80 @@
 package com.github.netty.core.support;
 
-import com.github.netty.core.util.TodoOptimize;
+import com.github.netty.core.util.ThreadUtil;
+import io.netty.util.concurrent.FastThreadLocal;
 
-import java.util.LinkedList;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * 回收
+ *
+ * 1.每个线程有自己的回收栈, 同一个线程取出和放回没有锁也没有cas, 也不创建节点对象
+ * 2.对象记住创建它的线程的栈 ({@link AbstractRecyclable}), 在别的线程回收时放进那个栈的归还队列, 由所属线程在栈空的时候取回
+ *      (例: io线程创建的请求对象, 在servlet线程池里处理完后回收)
+ * 3.每个线程每种类型最多缓存 maxCapacityPerThread 个, 超出的丢弃, 交给gc
+ * 4.统计命中, 未命中, 丢弃, 跨线程回收的次数. 调试模式 {@link Optimize#isEnableRecyclerDebug()} 下检查重复回收和回收后继续使用
+ * 5.线程结束后它的栈从统计列表里去掉, 计数合并到dead计数里: netty的线程结束时由 {@link FastThreadLocal#onRemoval(Object)} 去掉,
+ *      普通线程在有新线程创建栈或者读统计的时候去掉
+ * 6.虚拟线程每个任务新建一个, 不给它分配栈: 取的时候直接新建, 回收的时候还给创建它的线程的栈, 否则丢弃. 计数直接记到dead计数里
+ *
  * @author 84215
  */
 public abstract class AbstractRecycler<T>   {
 
-    private static final List<AbstractRecycler> RECYCLER_LIST = new LinkedList<>();
-    private Stack<T> stack;
-    private List<AbstractRecycler> globalList;
+    private static final List<AbstractRecycler> RECYCLER_LIST = new CopyOnWriteArrayList<>();
+    //虚拟线程的栈, 不缓存任何对象, 也不进统计列表
+    private static final Stack NO_STACK = new Stack(null, 0);
+
+    private final String name;
+    private final int maxCapacityPerThread;
+    private final boolean debug = Optimize.isEnableRecyclerDebug();
+    private final List<Stack> stackList = new CopyOnWriteArrayList<>();
+    private final FastThreadLocal<Stack> threadLocal = new FastThreadLocal<Stack>(){
+        @Override
+        protected Stack initialValue() {
+            Thread thread = Thread.currentThread();
+            if(ThreadUtil.isVirtual(thread)){
+                return NO_STACK;
+            }
+            Stack stack = new Stack(thread, maxCapacityPerThread);
+            removeDeadStacks();
+            stackList.add(stack);
+            return stack;
+        }
+
+        @Override
+        protected void onRemoval(Stack stack) throws Exception {
+            removeStack(stack);
+        }
+    };
+    //已经结束的线程和虚拟线程的统计
+    private final AtomicLong deadHitCount = new AtomicLong();
+    private final AtomicLong deadMissCount = new AtomicLong();
+    private final AtomicLong deadDropCount = new AtomicLong();
+    private final AtomicLong deadCrossThreadRecycleCount = new AtomicLong();
 
     public AbstractRecycler() {
-        this(20);
+        this(Optimize.getRecyclerMaxCapacityPerThread());
     }
 
-    public AbstractRecycler(int instanceCount) {
-        this.stack = new Stack<>();
+    /**
+     * @param maxCapacityPerThread 每个线程最多缓存的对象数量. 0 = 不缓存, 每次都新建
+     */
+    public AbstractRecycler(int maxCapacityPerThread) {
+        this.maxCapacityPerThread = Math.max(0, maxCapacityPerThread);
+        this.name = typeName();
         RECYCLER_LIST.add(this);
-        globalList = RECYCLER_LIST;
-
-        for(int i=0; i< instanceCount; i++) {
-            recycle(newInstance());
-        }
     }
 
     public static List<AbstractRecycler> getRecyclerList() {
-        return RECYCLER_LIST;
+        return Collections.unmodifiableList(RECYCLER_LIST);
     }
 
     /**
@@ -40,54 +83,320 @@ public abstract class AbstractRecycler<T>   {
      */
     protected abstract T newInstance();
 
-    @TodoOptimize("效果不明显, 先关闭功能")
     public T get() {
-        return newInstance();
-//        T value = stack.pop();
-//        return value != null? value : newInstance();
+        if(maxCapacityPerThread == 0){
+            return newInstance();
+        }
+        Stack stack = threadLocal.get();
+        if(stack == NO_STACK){
+            deadMissCount.incrementAndGet();
+            return newInstance();
+        }
+        Object value = stack.pop();
+        if(value == null){
+            stack.missCount++;
+            T instance = newInstance();
+            if(instance instanceof AbstractRecyclable){
+                ((AbstractRecyclable) instance).recyclerStack = stack;
+            }
+            return instance;
+        }
+        stack.hitCount++;
+        if(value instanceof AbstractRecyclable){
+            AbstractRecyclable recyclable = (AbstractRecyclable) value;
+            AbstractRecyclable.RECYCLE_STATE_UPDATER.lazySet(recyclable, AbstractRecyclable.STATE_ACTIVE);
+            recyclable.recycleTrace = null;
+        }
+        return (T) value;
     }
 
-    @TodoOptimize("效果不明显, 先关闭功能")
     public void recycle(T value) {
-//        stack.push(value);
-    }
-
-    private class Stack<E> extends ConcurrentLinkedDeque<E> {
-//         ReferenceQueue<E> queue = new ReferenceQueue<>();
-//
-//         public void push0(E value) {
-//             new SoftReference<>(value,queue);
-//         }
-//
-//         public E pop0() {
-//             Reference<? extends E> reference;
-//             try {
-//                 reference = queue.remove(1);
-//             } catch (InterruptedException e) {
-//                 e.printStackTrace();
-//                 reference = null;
-//             }
-//
-//             if(reference == null){
-//                 return null;
-//             }
-//
-//             E value = reference.get();
-//             if(value == null){
-//                 return pop();
-//             }
-//             return value;
-//         }
-
-         @Override
-         public void push(E e) {
-             super.push(e);
-         }
-
-         @Override
-         public E pop() {
-             return super.pollFirst();
-         }
-
-     }
+        if(value == null || maxCapacityPerThread == 0){
+            return;
+        }
+        Stack current = threadLocal.get();
+        if(current == NO_STACK){
+            recycleWithoutStack(value);
+            return;
+        }
+        if(!(value instanceof AbstractRecyclable)){
+            if(!current.push(value)){
+                current.dropCount++;
+            }
+            return;
+        }
+
+        AbstractRecyclable recyclable = (AbstractRecyclable) value;
+        if(!markRecycled(recyclable)){
+            return;
+        }
+        Stack home = recyclable.recyclerStack;
+        if(home == null || home == current || !home.isThreadAlive()){
+            recyclable.recyclerStack = current;
+            if(!current.push(value)){
+                current.dropCount++;
+            }
+        }else {
+            current.crossThreadRecycleCount++;
+            if(!home.offerReturn(value)){
+                current.dropCount++;
+            }
+        }
+    }
+
+    /**
+     * 虚拟线程回收: 还给创建它的线程的栈, 没有或者那个线程已经结束就丢弃
+     */
+    private void recycleWithoutStack(T value){
+        if(!(value instanceof AbstractRecyclable)){
+            deadDropCount.incrementAndGet();
+            return;
+        }
+        AbstractRecyclable recyclable = (AbstractRecyclable) value;
+        if(!markRecycled(recyclable)){
+            return;
+        }
+        Stack home = recyclable.recyclerStack;
+        if(home != null && home.isThreadAlive()){
+            deadCrossThreadRecycleCount.incrementAndGet();
+            if(!home.offerReturn(value)){
+                deadDropCount.incrementAndGet();
+            }
+        }else {
+            deadDropCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return false = 已经回收过了, 不能再放进栈 (否则会被两个地方同时取出使用)
+     */
+    private boolean markRecycled(AbstractRecyclable recyclable){
+        if(AbstractRecyclable.RECYCLE_STATE_UPDATER.compareAndSet(recyclable, AbstractRecyclable.STATE_ACTIVE, AbstractRecyclable.STATE_RECYCLED)){
+            if(debug){
+                recyclable.recycleTrace = new Throwable("上一次回收的位置");
+            }
+            return true;
+        }
+        if(debug){
+            throw new IllegalStateException(name + "重复回收", recyclable.recycleTrace);
+        }
+        return false;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxCapacityPerThread() {
+        return maxCapacityPerThread;
+    }
+
+    /**
+     * 以下统计由各个线程分别计数, 读的时候加起来, 不是精确的瞬时值
+     */
+    public long getHitCount() {
+        return collect()[0];
+    }
+
+    public long getMissCount() {
+        return collect()[1];
+    }
+
+    public long getDropCount() {
+        return collect()[2];
+    }
+
+    public long getCrossThreadRecycleCount() {
+        return collect()[3];
+    }
+
+    /**
+     * 移除已经结束的线程的栈 (栈里缓存的对象交给gc)
+     */
+    private void removeDeadStacks(){
+        for(Stack stack : stackList){
+            if(!stack.isThreadAlive()){
+                removeStack(stack);
+            }
+        }
+    }
+
+    /**
+     * 从统计列表里去掉, 计数合并到dead计数. 只有真正去掉的那次合并, 不会重复计数
+     */
+    private void removeStack(Stack stack){
+        if(stackList.remove(stack)){
+            deadHitCount.addAndGet(stack.hitCount);
+            deadMissCount.addAndGet(stack.missCount);
+            deadDropCount.addAndGet(stack.dropCount);
+            deadCrossThreadRecycleCount.addAndGet(stack.crossThreadRecycleCount);
+        }
+    }
+
+    /**
+     * 把所有线程的计数加起来, 顺便移除已经结束的线程的栈
+     * @return [命中, 未命中, 丢弃, 跨线程回收]
+     */
+    private synchronized long[] collect(){
+        removeDeadStacks();
+        long[] counts = {deadHitCount.get(), deadMissCount.get(), deadDropCount.get(), deadCrossThreadRecycleCount.get()};
+        for(Stack stack : stackList){
+            counts[0] += stack.hitCount;
+            counts[1] += stack.missCount;
+            counts[2] += stack.dropCount;
+            counts[3] += stack.crossThreadRecycleCount;
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        long[] counts = collect();
+        long total = counts[0] + counts[1];
+        return name + "{命中=" + counts[0] +
+                ", 未命中=" + counts[1] +
+                ", 命中率=" + (total == 0? 0 : counts[0] * 100 / total) +
+                "%, 丢弃=" + counts[2] +
+                ", 跨线程回收=" + counts[3] + "}";
+    }
+
+    /**
+     * 取泛型参数的类名作为名称, 例: new AbstractRecycler&lt;ServletTask&gt;(){} = ServletTask
+     */
+    private String typeName(){
+        Type type = getClass().getGenericSuperclass();
+        if(type instanceof ParameterizedType){
+            Type argument = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if(argument instanceof Class){
+                return ((Class) argument).getSimpleName();
+            }
+            return argument.getTypeName();
+        }
+        return getClass().getName();
+    }
+
+    /**
+     * 线程自己的回收栈. elements和计数只有所属线程读写, 其他线程只能往归还队列里放
+     */
+    static final class Stack {
+        private final WeakReference<Thread> threadRef;
+        private final int maxCapacity;
+        private Object[] elements;
+        private int size;
+        private volatile ReturnQueue returnQueue;
+
+        long hitCount;
+        long missCount;
+        long dropCount;
+        long crossThreadRecycleCount;
+
+        Stack(Thread thread, int maxCapacity) {
+            this.threadRef = new WeakReference<>(thread);
+            this.maxCapacity = maxCapacity;
+            this.elements = new Object[Math.min(16, maxCapacity)];
+        }
+
+        boolean isThreadAlive(){
+            Thread thread = threadRef.get();
+            return thread != null && thread.isAlive();
+        }
+
+        Object pop(){
+            if(size == 0 && !transfer()){
+                return null;
+            }
+            int index = --size;
+            Object value = elements[index];
+            elements[index] = null;
+            return value;
+        }
+
+        boolean push(Object value){
+            if(size == elements.length){
+                if(size >= maxCapacity){
+                    return false;
+                }
+                Object[] newElements = new Object[Math.min(size << 1, maxCapacity)];
+                System.arraycopy(elements, 0, newElements, 0, size);
+                elements = newElements;
+            }
+            elements[size++] = value;
+            return true;
+        }
+
+        /**
+         * 把其他线程归还的对象取回到栈里
+         */
+        private boolean transfer(){
+            ReturnQueue returnQueue = this.returnQueue;
+            if(returnQueue == null){
+                return false;
+            }
+            Object value;
+            while (size < maxCapacity && (value = returnQueue.poll()) != null){
+                push(value);
+            }
+            return size > 0;
+        }
+
+        /**
+         * 其他线程调用
+         */
+        boolean offerReturn(Object value){
+            ReturnQueue returnQueue = this.returnQueue;
+            if(returnQueue == null){
+                synchronized (this){
+                    returnQueue = this.returnQueue;
+                    if(returnQueue == null){
+                        returnQueue = this.returnQueue = new ReturnQueue(maxCapacity);
+                    }
+                }
+            }
+            return returnQueue.offer(value);
+        }
+    }
+
+    /**
+     * 有界的多生产者单消费者环形队列. 满了就返回false (对象被丢弃), 不会阻塞也不会扩容
+     * 生产者cas抢位置后写入, 消费者(所属线程)按顺序读, 读到null表示空或者还没写完, 下次再读
+     */
+    static final class ReturnQueue {
+        private final AtomicReferenceArray<Object> buffer;
+        private final int mask;
+        private final AtomicLong producerIndex = new AtomicLong();
+        private volatile long consumerIndex;
+
+        ReturnQueue(int capacity) {
+            int size = 1;
+            while (size < capacity){
+                size <<= 1;
+            }
+            this.buffer = new AtomicReferenceArray<>(size);
+            this.mask = size - 1;
+        }
+
+        boolean offer(Object value){
+            long index;
+            do {
+                index = producerIndex.get();
+                if(index - consumerIndex > mask){
+                    return false;
+                }
+            }while (!producerIndex.compareAndSet(index, index + 1));
+            buffer.lazySet((int) index & mask, value);
+            return true;
+        }
+
+        Object poll(){
+            long index = consumerIndex;
+            int offset = (int) index & mask;
+            Object value = buffer.get(offset);
+            if(value == null){
+                return null;
+            }
+            buffer.lazySet(offset, null);
+            consumerIndex = index + 1;
+            return value;
+        }
+    }
 }
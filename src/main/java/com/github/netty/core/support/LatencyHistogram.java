@@ -0,0 +1,266 @@
+package com.github.netty.core.support;
+
+import com.github.netty.core.util.ThreadUtil;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 延迟直方图 (纳秒)
+ *
+ * 1.每个线程写自己的计数数组, 没有锁也没有cas, 读的时候把所有线程的数组加起来
+ * 2.桶按2的幂分段, 每段再分16份, 误差不超过1/16. 最大约18分钟, 再大的算到最后一个桶
+ * 3.{@link #intervalSnapshot()} 返回和上一次调用之间的增量, 用于定时输出
+ * 4.线程结束后它的计数数组合并到baseCounts再去掉, 线程不断新建销毁时数组不会越积越多
+ * 5.虚拟线程每个任务新建一个, 不分配自己的数组, 共用一个用cas计数的数组
+ *
+ * @author 84215
+ */
+public class LatencyHistogram {
+
+    private static final Map<String,LatencyHistogram> HISTOGRAM_MAP = new ConcurrentHashMap<>();
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final String name;
+    private final List<Recorder> recorderList = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Recorder> recorderThreadLocal = ThreadLocal.withInitial(this::newRecorder);
+    //所有虚拟线程共用
+    private final Recorder virtualThreadRecorder = new Recorder(null, true);
+    //已经结束的线程的计数, 由自己加锁保护
+    private final long[] baseCounts = new long[BUCKET_COUNT];
+    //上一次intervalSnapshot时的累计值
+    private long[] lastCounts = new long[BUCKET_COUNT];
+
+    private LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 获取或创建直方图
+     * @param name 名称, 例: servlet:default, filter:encodingFilter, mapping:/api/*
+     * @return 直方图
+     */
+    public static LatencyHistogram get(String name){
+        return HISTOGRAM_MAP.computeIfAbsent(name, LatencyHistogram::new);
+    }
+
+    public static Collection<LatencyHistogram> getAll(){
+        return Collections.unmodifiableCollection(HISTOGRAM_MAP.values());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 记录一次耗时
+     * @param nanos 纳秒
+     */
+    public void record(long nanos){
+        recorderThreadLocal.get().record(nanos < 0? 0 : nanos);
+    }
+
+    /**
+     * @return 从创建到现在的全部记录
+     */
+    public Snapshot snapshot(){
+        return new Snapshot(name, sumCounts());
+    }
+
+    /**
+     * @return 和上一次调用之间的记录
+     */
+    public synchronized Snapshot intervalSnapshot(){
+        long[] counts = sumCounts();
+        long[] interval = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            interval[i] = counts[i] - lastCounts[i];
+        }
+        lastCounts = counts;
+        return new Snapshot(name, interval);
+    }
+
+    private long[] sumCounts(){
+        synchronized (baseCounts) {
+            mergeDeadRecorders();
+            long[] counts = baseCounts.clone();
+            for (Recorder recorder : recorderList) {
+                recorder.addTo(counts);
+            }
+            virtualThreadRecorder.addTo(counts);
+            return counts;
+        }
+    }
+
+    private Recorder newRecorder(){
+        Thread thread = Thread.currentThread();
+        if(ThreadUtil.isVirtual(thread)){
+            return virtualThreadRecorder;
+        }
+        Recorder recorder = new Recorder(thread, false);
+        synchronized (baseCounts) {
+            mergeDeadRecorders();
+            recorderList.add(recorder);
+        }
+        return recorder;
+    }
+
+    /**
+     * 把已经结束的线程的计数合并到baseCounts, 然后去掉. 线程结束之前的写入对isAlive()返回false之后的读是可见的
+     */
+    private void mergeDeadRecorders(){
+        List<Recorder> deadList = null;
+        for(Recorder recorder : recorderList){
+            if(!recorder.isAlive()){
+                recorder.addTo(baseCounts);
+                if(deadList == null){
+                    deadList = new ArrayList<>();
+                }
+                deadList.add(recorder);
+            }
+        }
+        //只去掉合并过的 (合并之后才结束的线程下次再合并). CopyOnWriteArrayList一次removeAll只复制一次数组
+        if(deadList != null) {
+            recorderList.removeAll(deadList);
+        }
+    }
+
+    static int bucketIndex(long nanos){
+        if(nanos < SUB_BUCKET_COUNT){
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if(exponent > MAX_EXPONENT){
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @return 桶的上限 (包含)
+     */
+    static long bucketUpperBound(int index){
+        if(index < SUB_BUCKET_COUNT){
+            return index;
+        }
+        int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        long lowerBound = (1L << exponent) | ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * 只有所属线程写, lazySet保证其他线程最终能读到. 虚拟线程共用的那个多线程写, 用cas
+     */
+    private static class Recorder {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+        //不持有强引用, 不影响线程对象回收
+        private final WeakReference<Thread> owner;
+        private final boolean shared;
+
+        Recorder(Thread owner, boolean shared) {
+            this.owner = new WeakReference<>(owner);
+            this.shared = shared;
+        }
+
+        boolean isAlive(){
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        void record(long nanos){
+            int index = bucketIndex(nanos);
+            if(shared){
+                counts.incrementAndGet(index);
+            }else {
+                counts.lazySet(index, counts.get(index) + 1);
+            }
+        }
+
+        void addTo(long[] target){
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                target[i] += counts.get(i);
+            }
+        }
+    }
+
+    /**
+     * 某一时刻的统计结果, 百分位是桶的上限
+     */
+    public static class Snapshot {
+        private final String name;
+        private final long[] counts;
+        private final long count;
+
+        Snapshot(String name, long[] counts) {
+            this.name = name;
+            this.counts = counts;
+            long count = 0;
+            for(long c : counts){
+                count += c;
+            }
+            this.count = count;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @param percentile 百分位 0-100, 例: 99.9
+         * @return 纳秒
+         */
+        public long getValueAtPercentile(double percentile){
+            if(count == 0){
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(count * percentile / 100D));
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i];
+                if(total >= target){
+                    return bucketUpperBound(i);
+                }
+            }
+            return getMax();
+        }
+
+        public long getMax(){
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if(counts[i] > 0){
+                    return bucketUpperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{次数=" + count +
+                    ", p50=" + toMillis(getValueAtPercentile(50)) +
+                    "ms, p99=" + toMillis(getValueAtPercentile(99)) +
+                    "ms, p999=" + toMillis(getValueAtPercentile(99.9)) +
+                    "ms, max=" + toMillis(getMax()) + "ms}";
+        }
+
+        private static String toMillis(long nanos){
+            return String.format("%.3f", nanos / 1000_000D);
+        }
+    }
+}
@@ -2,16 +2,11 @@ package com.github.netty.core.support;
 
 import com.github.netty.TestApplication;
 import com.github.netty.core.rpc.RpcClient;
-import com.github.netty.servlet.ServletFilterChain;
-import com.github.netty.springboot.NettyServletHandler;
+import com.github.netty.servlet.support.ServletDispatcher;
 
-import javax.servlet.Filter;
 import java.math.BigDecimal;
-import java.util.Map;
 import java.util.StringJoiner;
-import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
 /**
@@ -133,6 +128,10 @@ public class Optimize {
     public static int getServerEventLoopWorkerCount(){
         return 0;
     }
+    //epoll下用SO_REUSEPORT在同一端口绑定的acceptor数量, 每个acceptor独占一组工作线程. 注:(小于2 = 关闭, 只绑定一个serverChannel)
+    public static int getServerReusePortAcceptorCount(){
+        return 0;
+    }
     //io线程执行调度与执行io事件的百分比. 注:(100=每次只执行一次调度工作, 其他都执行io事件), 并发高的时候可以设置最大
     public static int getServerEventLoopIoRatio(){
         return 100;
@@ -164,15 +163,130 @@ public class Optimize {
     public static boolean isEnableRawNetty() {
         return false;
     }
-    //servlet执行器的线程池
-    public static Executor getServletHandlerExecutor(){
-//        return new ThreadPoolX("Servlet",6);
-        return null;
+    //servlet的调度方式. EVENT_LOOP = 在io线程直接执行, BOUNDED_POOL = 有界线程池(排满后直接响应503), VIRTUAL_THREAD = 每个请求一个虚拟线程(jdk21+, 低版本退回BOUNDED_POOL)
+    public static ServletDispatcher.Mode getServletDispatchMode(){
+        return ServletDispatcher.Mode.BOUNDED_POOL;
+    }
+    //BOUNDED_POOL的线程数  注: (0 = cpu核数 * 2 )
+    public static int getServletDispatchPoolSize(){
+        return 0;
+    }
+    //BOUNDED_POOL的排队上限, 排满后新请求在收到请求头时就响应503, 不再接收请求体
+    public static int getServletDispatchMaxQueueSize(){
+        return 1024;
+    }
+    //servlet流式接收请求体 (不聚合完整请求, 收到请求头就派发). 注:(调度方式是EVENT_LOOP时不生效, 仍然聚合完整请求)
+    public static boolean isEnableServletStreamRequest(){
+        return false;
+    }
+    //流式接收时, 每个连接积压的请求体超过这个字节数就暂停读取
+    public static int getServletStreamRequestHighWaterMark(){
+        return 256 * 1024;
+    }
+    //流式接收时, 积压的请求体低于这个字节数就恢复读取
+    public static int getServletStreamRequestLowWaterMark(){
+        return 64 * 1024;
+    }
+    //servlet响应缓冲区的默认大小, 超过后提交响应头并转为分段(chunked)写出
+    public static int getServletResponseBufferSize(){
+        return 16 * 1024;
+    }
+    //servlet输出流合并小写入用的池化内存块大小
+    public static int getServletOutputStreamChunkSize(){
+        return 4096;
+    }
+    //servlet输出流单次写入超过这个字节数就直接包装调用者的数组(零拷贝), 不再复制. 注:(调用者在响应写出前不能复用这个数组)
+    public static int getServletOutputStreamWrapThreshold(){
+        return 64 * 1024;
+    }
+    //开启http2. 注:(ssl下通过ALPN协商, 明文下支持h2c升级和直接发送http2连接前言)
+    public static boolean isEnableHttp2(){
+        return false;
+    }
+    //http2每个连接允许同时打开的流数量
+    public static int getHttp2MaxConcurrentStreams(){
+        return 256;
+    }
+    //开启servlet响应压缩(gzip). 注:(只压缩一次性写出的响应, 分段写出的不压缩)
+    public static boolean isEnableServletResponseCompress(){
+        return false;
+    }
+    //小于这个字节数的响应不压缩, 压缩小响应省不了多少流量, 反而浪费cpu
+    public static int getServletResponseCompressMinSize(){
+        return 1024;
+    }
+    //压缩级别 1-9
+    public static int getServletResponseCompressLevel(){
+        return 6;
+    }
+    //静态资源缓存的总字节数 (原文件和gzip压缩后的都算). 注:(0 = 关闭缓存)
+    public static long getStaticResourceCacheMaxBytes(){
+        return 64 * 1024 * 1024;
+    }
+    //超过这个字节数的静态文件不缓存, 直接用sendfile写出
+    public static long getStaticResourceCacheMaxFileSize(){
+        return 1024 * 1024;
+    }
+    //静态资源缓存检查文件是否修改的间隔(毫秒), 间隔内的请求不访问文件系统
+    public static long getStaticResourceCacheCheckInterval(){
+        return 2000;
+    }
+    //按servlet名称, 过滤器名称, url规则统计延迟直方图 (ReportRunning中输出p50/p99/p999/max). 注:(关闭时不调用System.nanoTime)
+    public static boolean isEnableServletLatencyHistogram(){
+        return false;
+    }
+    //每个连接绑定一组请求响应对象, 处理完一个请求后留给下一个请求复用. 注:(管道化并发或异步请求没结束时临时创建新的)
+    public static boolean isEnableChannelBoundServletObject(){
+        return true;
+    }
+    //对象池(AbstractRecycler)每个线程每种类型最多缓存的对象数量. 注:(0 = 关闭对象池, 每次都新建)
+    public static int getRecyclerMaxCapacityPerThread(){
+        return 256;
+    }
+    //对象池调试模式, 检查重复回收和回收后继续使用, 每次回收都会记录调用栈. 注:(只用于排查问题)
+    public static boolean isEnableRecyclerDebug(){
+        return false;
+    }
+    //异步请求超时时间轮的刻度(毫秒), 所有异步请求共用一个时间轮线程. 注:(超时最多晚一个刻度触发, 越小越准但时间轮线程唤醒越频繁)
+    public static long getServletAsyncTimeoutTickMillis(){
+        return 100;
+    }
+    //url映射查找结果的缓存数量 (按请求路径缓存匹配的servlet和过滤器). 注:(0 = 关闭缓存)
+    public static int getUrlMapperCacheSize(){
+        return 4096;
+    }
+    //合并flush: 一次读事件内的多次flush等读完(channelReadComplete)或者积累到N次才真正flush. 注:(0 = 关闭)
+    public static int getServerFlushConsolidationCount(){
+        return 256;
+    }
+    //http1.1管道化(pipelining)的请求并发执行, 响应按请求顺序写出. 注:(关闭后同一连接的响应顺序由业务执行快慢决定)
+    public static boolean isEnableHttpPipeliningSequence(){
+        return true;
     }
     //rpc锁自旋次数, 如果N次后还拿不到响应,则堵塞
     public static int getRpcLockSpinCount(){
         return 300;
     }
+    //rpc客户端和服务端用javassist生成的桩代码直接调用接口方法, 代替 Proxy 和 Method.invoke. 注:(生成失败时自动退回反射)
+    public static boolean isEnableRpcGeneratedStub(){
+        return true;
+    }
+    //rpc客户端连接后向服务端拿方法目录, 之后请求只带整数的方法id, 不带服务名和方法名. 注:(服务端没有目录的老版本自动退回方法名)
+    public static boolean isEnableRpcMethodId(){
+        return true;
+    }
+    //rpc客户端默认用二进制编码 (按方法参数类型编码, 不写类名), 握手时服务端不支持就用json. 注:(只有带方法id的请求才能用)
+    public static boolean isEnableRpcBinaryCodec(){
+        return true;
+    }
+    //rpc等待响应的请求表的段数, 按请求id分段加锁. 注:(调用rpc的线程越多, 段数应该越多, 会取2的幂)
+    public static int getRpcPendingTableSegmentCount(){
+        return 16;
+    }
+    //rpc调用超时检查的时间轮刻度(毫秒), 超时的请求由时间轮从请求表移除. 注:(超时最多晚一个刻度触发, rpc接口的超时时间一般很短, 刻度不能太大)
+    public static long getRpcTimeoutTickMillis(){
+        return 5;
+    }
 
 
     static LoggerX logger = LoggerFactoryX.getLogger(Optimize.class);
@@ -199,25 +313,27 @@ public class Optimize {
 
                 long totalTime = System.currentTimeMillis() - beginTime;
 
-                long servletQueryCount = NettyServletHandler.SERVLET_QUERY_COUNT.get();
-                long servletAndFilterTime = NettyServletHandler.SERVLET_AND_FILTER_TIME.get();
-                long servletTime = ServletFilterChain.SERVLET_TIME.get();
-                long filterTime = ServletFilterChain.FILTER_TIME.get();
-
                 long handlerTime = TestApplication.HANDLER_TIME.get();
                 long handlerCount = TestApplication.HANDLER_NUM.get();
                 double handlerTimeAvg = handlerCount ==0? 0:((double) handlerTime / (double) handlerCount) / 1000_000D;
 
-                double servletAndFilterAvgRuntime = servletQueryCount == 0? 0:(double)servletAndFilterTime/(double)servletQueryCount;
-                double servletAvgRuntime = servletQueryCount ==0? 0:(double)servletTime/(double)servletQueryCount;
-                double filterAvgRuntime = servletQueryCount ==0? 0:(double)filterTime/(double)servletQueryCount;
-
-                StringJoiner filterJoin = new StringJoiner(", ");
-                for(Map.Entry<Filter,AtomicLong> e : ServletFilterChain.FILTER_TIME_MAP.entrySet()){
-//                    double filterAvgTime = (double)e.getValue().get() / (double)servletQueryCount;
-                    filterJoin.add(
-                            e.getKey().getClass().getSimpleName()
-                                    );
+                //本次统计间隔内的延迟
+                StringJoiner latencyJoin = new StringJoiner("\r\n");
+                for(LatencyHistogram histogram : LatencyHistogram.getAll()){
+                    LatencyHistogram.Snapshot snapshot = histogram.intervalSnapshot();
+                    if(snapshot.getCount() > 0) {
+                        latencyJoin.add(snapshot.toString());
+                    }
+                }
+                //servlet调度器的排队和拒绝
+                StringJoiner dispatcherJoin = new StringJoiner("\r\n");
+                for(ServletDispatcher dispatcher : ServletDispatcher.getDispatcherList()){
+                    dispatcherJoin.add(dispatcher.toString());
+                }
+                //对象池命中率
+                StringJoiner recyclerJoin = new StringJoiner("\r\n");
+                for(AbstractRecycler recycler : AbstractRecycler.getRecyclerList()){
+                    recyclerJoin.add(recycler.toString());
                 }
 
                 logger.info(
@@ -229,13 +345,10 @@ public class Optimize {
                         "自旋成功率=" + new BigDecimal(rateSpinResponseCount).setScale(2,BigDecimal.ROUND_HALF_DOWN).stripTrailingZeros().toPlainString() + "%, " +
                         "调用成功率=" + new BigDecimal(rate).setScale(2,BigDecimal.ROUND_HALF_DOWN).stripTrailingZeros().toPlainString()+"%, "+
                         "超时api="+timeoutApis + ", "+
-                        "servlet执行次数="+servletQueryCount+", "+
-                        "servlet+filter平均时间="+new BigDecimal(servletAndFilterAvgRuntime).setScale(4,BigDecimal.ROUND_HALF_DOWN).stripTrailingZeros().toString()+"ms,"+
-                        "servlet平均时间="+new BigDecimal(servletAvgRuntime).setScale(4,BigDecimal.ROUND_HALF_DOWN).stripTrailingZeros().toString()+"ms, "+
-                        "handler平均时间="+new BigDecimal(handlerTimeAvg).setScale(4,BigDecimal.ROUND_HALF_DOWN).stripTrailingZeros().toString()+"ms, "+
-                        "filter平均时间="+new BigDecimal(filterAvgRuntime).setScale(4,BigDecimal.ROUND_HALF_DOWN).stripTrailingZeros().toString()+"ms, "
-
-//                       + "\r\n "+filterJoin.toString()
+                        "handler平均时间="+new BigDecimal(handlerTimeAvg).setScale(4,BigDecimal.ROUND_HALF_DOWN).stripTrailingZeros().toString()+"ms"+
+                        "\r\n"+latencyJoin.toString()+
+                        "\r\n"+dispatcherJoin.toString()+
+                        "\r\n"+recyclerJoin.toString()
                 );
             }catch (Exception e){
                 e.printStackTrace();
@@ -139,7 +139,7 @@ public final class PartialPooledByteBufAllocator implements ByteBufAllocator {
         return PooledChannelHandlerContext.newInstance(ctx);
     }
 
-    private static class PooledChannelHandlerContext implements ChannelHandlerContext,Wrapper<ChannelHandlerContext>,Recyclable {
+    private static class PooledChannelHandlerContext extends AbstractRecyclable implements ChannelHandlerContext,Wrapper<ChannelHandlerContext> {
         private ChannelHandlerContext source;
         private static final AbstractRecycler<PooledChannelHandlerContext> RECYCLER = new AbstractRecycler<PooledChannelHandlerContext>() {
             @Override
@@ -163,6 +163,7 @@ public final class PartialPooledByteBufAllocator implements ByteBufAllocator {
 
         @Override
         public Channel channel() {
+            ensureNotRecycled();
             return source.channel();
         }
 
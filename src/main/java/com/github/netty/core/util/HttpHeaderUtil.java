@@ -18,7 +18,14 @@ public class HttpHeaderUtil {
         if(contentType == null){
             return false;
         }
-        return "application/x-www-form-urlencoded".equals(contentType.toLowerCase());
+        //可能带有参数, 例: application/x-www-form-urlencoded; charset=UTF-8
+        String formUrlEncoded = "application/x-www-form-urlencoded";
+        if(!contentType.regionMatches(true, 0, formUrlEncoded, 0, formUrlEncoded.length())){
+            return false;
+        }
+        return contentType.length() == formUrlEncoded.length()
+                || contentType.charAt(formUrlEncoded.length()) == ';'
+                || contentType.charAt(formUrlEncoded.length()) == ' ';
     }
 
     /**
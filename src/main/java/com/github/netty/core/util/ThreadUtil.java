@@ -0,0 +1,41 @@
+package com.github.netty.core.util;
+
+import java.lang.reflect.Method;
+
+/**
+ * 线程工具类
+ * @author 84215
+ */
+public class ThreadUtil {
+
+    //Thread.isVirtual() 是jdk21的方法, 编译目标是jdk8, 只能反射调用. null = 当前jdk没有虚拟线程
+    private static final Method IS_VIRTUAL_METHOD;
+
+    static {
+        Method method;
+        try {
+            method = Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException | RuntimeException e) {
+            method = null;
+        }
+        IS_VIRTUAL_METHOD = method;
+    }
+
+    /**
+     * 是否是虚拟线程. 虚拟线程每个任务新建一个, 用完就丢, 不应该给它分配线程本地的缓存
+     * 注: 有反射开销, 只在线程第一次初始化线程本地变量时调用
+     * @param thread 线程
+     * @return true = 虚拟线程
+     */
+    public static boolean isVirtual(Thread thread){
+        if(IS_VIRTUAL_METHOD == null){
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL_METHOD.invoke(thread);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
+
+}
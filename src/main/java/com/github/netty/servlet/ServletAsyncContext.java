@@ -1,42 +1,71 @@
 package com.github.netty.servlet;
 
+import com.github.netty.core.support.Optimize;
+import com.github.netty.core.util.ExceptionUtil;
 import com.github.netty.servlet.support.HttpServletObject;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 /**
+ * 异步请求
+ *
+ * 1.不占用线程等待: 超时由共享的时间轮 {@link #TIMEOUT_TIMER} 触发, complete()/dispatch() 时取消
+ * 2.容器的派发(service方法)返回之后才开始计时. 派发还没返回时调用complete()或dispatch(), 等派发返回后再执行 (servlet规范)
+ * 3.状态用cas切换, complete()/dispatch()/超时 可能在不同线程同时发生, 只有一个生效
+ * 4.超时先切换状态再通知监听器, 通知期间调用的complete()/dispatch()等通知返回后再执行. 监听器都没有处理就响应500 (servlet规范)
  *
  * @author acer01
  *  2018/7/15/015
  */
-public class ServletAsyncContext implements AsyncContext {
+public class ServletAsyncContext implements AsyncContext, TimerTask {
+
+    /**
+     * 所有异步请求共用一个时间轮, 只负责到时间后把超时通知交给异步线程池, 自己不执行监听器
+     */
+    private static final HashedWheelTimer TIMEOUT_TIMER = new HashedWheelTimer(
+            new DefaultThreadFactory("ServletAsyncTimeout", true),
+            Optimize.getServletAsyncTimeoutTickMillis(), TimeUnit.MILLISECONDS);
 
     private ServletRequest servletRequest;
     private ServletResponse servletResponse;
     private ExecutorService executorService;
 
-    /**
-     * 0=初始, 1=开始, 2=完成
-      */
-    private int status;
-    private static final int STATUS_INIT = 0;
-    private static final int STATUS_START = 1;
-    private static final int STATUS_COMPLETE = 2;
+    //容器的派发还没返回
+    private static final int STATUS_DISPATCHING = 0;
+    //派发(或超时通知)还没返回时调用了complete()
+    private static final int STATUS_COMPLETE_PENDING = 1;
+    //派发(或超时通知)还没返回时调用了dispatch()
+    private static final int STATUS_DISPATCH_PENDING = 2;
+    //派发已返回, 等待complete()/dispatch()/超时
+    private static final int STATUS_WAITING = 3;
+    //正在执行dispatch()派发的请求
+    private static final int STATUS_ASYNC_DISPATCHING = 4;
+    private static final int STATUS_COMPLETE = 5;
+    //超时了, 正在通知监听器
+    private static final int STATUS_TIMING_OUT = 6;
+    private final AtomicInteger status = new AtomicInteger(STATUS_DISPATCHING);
 
     /**
-     * 超时时间 -> 毫秒
+     * 超时时间 -> 毫秒. 小于等于0 = 不超时
      */
     private long timeout;
+    private volatile Timeout timeoutHandle;
+    //派发还没返回时调用dispatch()的任务
+    private Runnable pendingDispatchTask;
 
     private List<ServletAsyncListenerWrapper> asyncListenerWrapperList;
 
@@ -49,7 +78,6 @@ public class ServletAsyncContext implements AsyncContext {
         this.executorService = Objects.requireNonNull(executorService);
         this.servletRequest = Objects.requireNonNull(servletRequest);
         this.servletResponse = Objects.requireNonNull(servletResponse);
-        this.status = STATUS_INIT;
     }
 
     @Override
@@ -107,86 +135,216 @@ public class ServletAsyncContext implements AsyncContext {
         }
 
         ServletRequestDispatcher dispatcher = servletContext.getRequestDispatcher(path);
-
-        start(()->{
+        Runnable dispatchTask = () -> {
             try {
-                dispatcher.dispatch(httpRequest, servletResponse,DispatcherType.ASYNC);
-            } catch (Exception e) {
-                throw new AsyncRuntimeException(e);
+                if(dispatcher == null){
+                    ((HttpServletResponse) servletResponse).sendError(HttpServletResponse.SC_NOT_FOUND);
+                }else {
+                    dispatcher.dispatch(httpRequest, servletResponse, DispatcherType.ASYNC);
+                }
+            } catch (Throwable throwable) {
+                notifyError(throwable);
+            }finally {
+                onAsyncDispatchReturned();
             }
-        });
+        };
 
+        for(;;) {
+            int status = this.status.get();
+            if (status == STATUS_DISPATCHING || status == STATUS_TIMING_OUT) {
+                pendingDispatchTask = dispatchTask;
+                if (this.status.compareAndSet(status, STATUS_DISPATCH_PENDING)) {
+                    return;
+                }
+            } else if (status == STATUS_WAITING) {
+                if (this.status.compareAndSet(status, STATUS_ASYNC_DISPATCHING)) {
+                    cancelTimeout();
+                    executorService.execute(dispatchTask);
+                    return;
+                }
+            } else {
+                throw new IllegalStateException("异步请求已经结束或者已经派发");
+            }
+        }
     }
 
     @Override
     public void complete() {
-        status = STATUS_COMPLETE;
-        httpServletObject.recycle();
+        for(;;) {
+            int status = this.status.get();
+            if (status == STATUS_DISPATCHING || status == STATUS_TIMING_OUT) {
+                if (this.status.compareAndSet(status, STATUS_COMPLETE_PENDING)) {
+                    return;
+                }
+            } else if (status == STATUS_WAITING) {
+                if (this.status.compareAndSet(status, STATUS_COMPLETE)) {
+                    doComplete();
+                    return;
+                }
+            } else {
+                //已经结束, 或者已经派发(派发的请求结束时会自动完成)
+                return;
+            }
+        }
     }
 
-    @Override
-    public void start(Runnable runnable) {
-        status = STATUS_START;
-        Runnable taskWrapper = newTaskWrapper(runnable);
-//        taskWrapper.run();
-        executorService.execute(taskWrapper);
+    /**
+     * 容器的派发(service方法)返回了, 由容器调用. 超时通知返回后也调用, 执行通知期间调用的complete()/dispatch()
+     */
+    public void onDispatchReturned() {
+        for(;;) {
+            int status = this.status.get();
+            if (status == STATUS_DISPATCHING) {
+                if (this.status.compareAndSet(status, STATUS_WAITING)) {
+                    if (timeout > 0) {
+                        timeoutHandle = TIMEOUT_TIMER.newTimeout(this, timeout, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+            } else if (status == STATUS_COMPLETE_PENDING) {
+                if (this.status.compareAndSet(status, STATUS_COMPLETE)) {
+                    doComplete();
+                    return;
+                }
+            } else if (status == STATUS_DISPATCH_PENDING) {
+                if (this.status.compareAndSet(status, STATUS_ASYNC_DISPATCHING)) {
+                    Runnable task = pendingDispatchTask;
+                    pendingDispatchTask = null;
+                    executorService.execute(task);
+                    return;
+                }
+            } else {
+                return;
+            }
+        }
     }
 
-    private Runnable newTaskWrapper(Runnable run){
-        return () -> {
-            Future future = executorService.submit(run);
-            try {
-                //通知开始
-                notifyEvent(listenerWrapper -> {
+    /**
+     * dispatch()派发的请求返回了. 如果里面又开始了新的异步, 交给新的异步上下文, 否则结束请求
+     */
+    private void onAsyncDispatchReturned(){
+        ServletAsyncContext current = httpServletObject.getHttpServletRequest().getAsyncContext();
+        if(current != null && current != this){
+            status.set(STATUS_COMPLETE);
+            current.onDispatchReturned();
+            return;
+        }
+        if(status.compareAndSet(STATUS_ASYNC_DISPATCHING, STATUS_COMPLETE)){
+            doComplete();
+        }
+    }
+
+    /**
+     * 时间轮线程调用, 超时通知交给异步线程池执行
+     */
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        if(status.get() != STATUS_WAITING){
+            return;
+        }
+        executorService.execute(() -> {
+            //先切换状态, 通知期间别的线程调用complete()不会回收请求和响应
+            if(!status.compareAndSet(STATUS_WAITING, STATUS_TIMING_OUT)){
+                return;
+            }
+            //通知超时, 监听器可以调用complete()或dispatch()
+            notifyEvent(listenerWrapper -> {
+                try {
                     AsyncEvent event = new AsyncEvent(ServletAsyncContext.this,listenerWrapper.servletRequest,listenerWrapper.servletResponse,null);
-                    try {
-                        listenerWrapper.asyncListener.onStartAsync(event);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
-
-                future.get(getTimeout(), TimeUnit.MILLISECONDS);
-
-            } catch (TimeoutException e) {
-                //通知超时
-                notifyEvent(listenerWrapper -> {
-                    try {
-                        AsyncEvent event = new AsyncEvent(ServletAsyncContext.this,listenerWrapper.servletRequest,listenerWrapper.servletResponse,null);
-                        listenerWrapper.asyncListener.onTimeout(event);
-                    } catch (IOException ioException) {
-                        ioException.printStackTrace();
-                    }
-                });
-            }catch (Throwable throwable){
-                if(throwable instanceof AsyncRuntimeException){
-                    throwable = throwable.getCause();
+                    listenerWrapper.asyncListener.onTimeout(event);
+                } catch (IOException ioException) {
+                    ioException.printStackTrace();
                 }
+            });
+            if(status.compareAndSet(STATUS_TIMING_OUT, STATUS_COMPLETE)){
+                //监听器没有处理, 响应500后结束
+                sendTimeoutError();
+                doComplete();
+            }else {
+                onDispatchReturned();
+            }
+        });
+    }
 
-                //通知异常
-                Throwable cause = throwable;
-                notifyEvent(listenerWrapper -> {
-                    AsyncEvent event = new AsyncEvent(ServletAsyncContext.this,listenerWrapper.servletRequest,listenerWrapper.servletResponse, cause);
-                    try {
-                        listenerWrapper.asyncListener.onError(event);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
-            }finally {
+    /**
+     * 已经开始写出响应就只能直接结束
+     */
+    private void sendTimeoutError(){
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+        if(response.isCommitted()){
+            return;
+        }
+        try {
+            response.resetBuffer();
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } catch (IOException | IllegalStateException e) {
+            ExceptionUtil.printRootCauseStackTrace(e);
+        }
+    }
+
+    private void cancelTimeout(){
+        Timeout timeoutHandle = this.timeoutHandle;
+        if(timeoutHandle != null){
+            timeoutHandle.cancel();
+            this.timeoutHandle = null;
+        }
+    }
+
+    private void doComplete(){
+        cancelTimeout();
+        //通知结束. 要在回收请求之前, 监听器还会用到请求和响应
+        notifyEvent(listenerWrapper -> {
+            try {
+                AsyncEvent event = new AsyncEvent(ServletAsyncContext.this,listenerWrapper.servletRequest,listenerWrapper.servletResponse,null);
+                listenerWrapper.asyncListener.onComplete(event);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        httpServletObject.recycle();
+    }
+
+    /**
+     * 在异步线程池中执行, 结束请求需要调用complete()
+     */
+    @Override
+    public void start(Runnable runnable) {
+        executorService.execute(() -> {
+            try {
+                runnable.run();
+            }catch (Throwable throwable){
+                notifyError(throwable);
                 complete();
+            }
+        });
+    }
 
-                //通知结束
-                notifyEvent(listenerWrapper -> {
-                    try {
-                        AsyncEvent event = new AsyncEvent(ServletAsyncContext.this,listenerWrapper.servletRequest,listenerWrapper.servletResponse,null);
-                        listenerWrapper.asyncListener.onComplete(event);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
+    private void notifyError(Throwable throwable){
+        ExceptionUtil.printRootCauseStackTrace(throwable);
+        //通知异常
+        notifyEvent(listenerWrapper -> {
+            AsyncEvent event = new AsyncEvent(ServletAsyncContext.this,listenerWrapper.servletRequest,listenerWrapper.servletResponse, throwable);
+            try {
+                listenerWrapper.asyncListener.onError(event);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        };
+        });
+    }
+
+    /**
+     * 同一个请求再次开始异步时, 通知之前的监听器 (servlet规范)
+     * @param newAsyncContext 新的异步上下文
+     */
+    void notifyStartAsync(ServletAsyncContext newAsyncContext){
+        notifyEvent(listenerWrapper -> {
+            AsyncEvent event = new AsyncEvent(newAsyncContext,listenerWrapper.servletRequest,listenerWrapper.servletResponse,null);
+            try {
+                listenerWrapper.asyncListener.onStartAsync(event);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
     }
 
     @Override
@@ -195,7 +353,7 @@ public class ServletAsyncContext implements AsyncContext {
     }
 
     @Override
-    public void addListener(AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
+    public synchronized void addListener(AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
         if(asyncListenerWrapperList == null){
             asyncListenerWrapperList = new LinkedList<>();
         }
@@ -215,6 +373,9 @@ public class ServletAsyncContext implements AsyncContext {
         return null;
     }
 
+    /**
+     * 需要在容器的派发返回之前设置, 之后设置不生效
+     */
     @Override
     public void setTimeout(long timeout) {
         this.timeout = timeout;
@@ -236,11 +397,19 @@ public class ServletAsyncContext implements AsyncContext {
         return (ServletContext) context;
     }
 
+    /**
+     * @return 异步已经开始, 还没有结束或派发
+     */
     public boolean isStarted(){
-        return status >= STATUS_START;
+        int status = this.status.get();
+        return status != STATUS_ASYNC_DISPATCHING && status != STATUS_COMPLETE;
     }
 
     private void notifyEvent(Consumer<ServletAsyncListenerWrapper> consumer){
+        List<ServletAsyncListenerWrapper> asyncListenerWrapperList;
+        synchronized (this){
+            asyncListenerWrapperList = this.asyncListenerWrapperList == null? null : new LinkedList<>(this.asyncListenerWrapperList);
+        }
         if(asyncListenerWrapperList != null) {
             for (ServletAsyncListenerWrapper listenerWrapper : asyncListenerWrapperList){
                 consumer.accept(listenerWrapper);
@@ -260,14 +429,4 @@ public class ServletAsyncContext implements AsyncContext {
         }
     }
 
-    private class AsyncRuntimeException extends RuntimeException{
-        private Throwable cause;
-        private AsyncRuntimeException(Throwable cause) {
-            this.cause = cause;
-        }
-        @Override
-        public Throwable getCause() {
-            return cause;
-        }
-    }
 }
@@ -3,12 +3,14 @@ package com.github.netty.servlet;
 import com.github.netty.core.constants.HttpConstants;
 import com.github.netty.core.support.LoggerFactoryX;
 import com.github.netty.core.support.LoggerX;
+import com.github.netty.core.support.Optimize;
 import com.github.netty.core.util.MimeTypeUtil;
-import com.github.netty.core.util.RecyclableUtil;
 import com.github.netty.core.util.TypeUtil;
 import com.github.netty.servlet.support.ServletEventListenerManager;
 import com.github.netty.servlet.support.UrlMapper;
+import com.github.netty.servlet.util.ServletUtil;
 import com.github.netty.session.SessionService;
+import io.netty.util.AsciiString;
 
 import javax.servlet.*;
 import javax.servlet.descriptor.JspConfigDescriptor;
@@ -22,6 +24,7 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.function.Supplier;
 
@@ -32,6 +35,12 @@ import java.util.function.Supplier;
  */
 public class ServletContext implements javax.servlet.ServletContext {
 
+    /**
+     * 默认servlet的名称, 没有匹配到servlet的请求都交给它
+     */
+    public static final String DEFAULT_SERVLET_NAME = "default";
+    private static final ServletFilterRegistration[] EMPTY_FILTERS = {};
+
     private LoggerX logger = LoggerFactoryX.getLogger(getClass());
 
     private Map<String,Object> attributeMap;
@@ -39,6 +48,8 @@ public class ServletContext implements javax.servlet.ServletContext {
 
     private Map<String,ServletRegistration> servletRegistrationMap;
     private Map<String,ServletFilterRegistration> filterRegistrationMap;
+    //按servlet名称匹配的过滤器 key=servlet名称
+    private final Map<String,ServletFilterRegistration[]> filterNameCache = new ConcurrentHashMap<>();
 
     private Supplier<ExecutorService> asyncExecutorSupplier;
 
@@ -46,12 +57,14 @@ public class ServletContext implements javax.servlet.ServletContext {
 
     private ServletEventListenerManager servletEventListenerManager;
     private ServletSessionCookieConfig sessionCookieConfig;
-    private UrlMapper<Servlet> servletUrlMapper;
-    private UrlMapper<Filter> filterUrlMapper;
+    private UrlMapper<ServletRegistration> servletUrlMapper;
+    private UrlMapper<ServletFilterRegistration> filterUrlMapper;
     private String rootDirStr;
     private Charset defaultCharset;
     private InetSocketAddress servletServerAddress;
     private final String serverInfo;
+    //Server响应头的值, 每个响应都要写, 提前编码好
+    private final CharSequence serverHeader;
     private final ClassLoader classLoader;
     private String contextPath;
 
@@ -65,6 +78,7 @@ public class ServletContext implements javax.servlet.ServletContext {
 //        this.rootDirStr = rootDir.isAbsolute() ? rootDir.getAbsolutePath() : FilenameUtils.concat(new File(".").getAbsolutePath(), rootDir.getPath());
         this.sessionCookieConfig = sessionCookieConfig;
         this.serverInfo = serverInfo == null? "netty-server/1.0":serverInfo;
+        this.serverHeader = ServletUtil.isAscii(this.serverInfo)? AsciiString.cached(this.serverInfo) : this.serverInfo;
 
         this.contextPath = contextPath == null? "" : contextPath;
         this.defaultCharset = null;
@@ -98,12 +112,12 @@ public class ServletContext implements javax.servlet.ServletContext {
         return servletEventListenerManager;
     }
 
-    public void addServletMapping(String urlPattern, String servletName, Servlet servlet) throws IllegalArgumentException {
-        servletUrlMapper.addMapping(urlPattern, servlet, servletName);
+    public void addServletMapping(String urlPattern, String servletName, ServletRegistration servletRegistration) throws IllegalArgumentException {
+        servletUrlMapper.addMapping(urlPattern, servletRegistration, servletName);
     }
 
-    public void addFilterMapping(String urlPattern, String filterName, Filter filter) throws IllegalArgumentException {
-        filterUrlMapper.addMapping(urlPattern, filter, filterName);
+    public void addFilterMapping(String urlPattern, String filterName, ServletFilterRegistration filterRegistration) throws IllegalArgumentException {
+        filterUrlMapper.addMapping(urlPattern, filterRegistration, filterName);
     }
 
     public long getAsyncTimeout(){
@@ -137,21 +151,34 @@ public class ServletContext implements javax.servlet.ServletContext {
         return defaultCharset;
     }
 
-    private List<Filter> matchFilterByPath(String path){
-        return filterUrlMapper.getMappingObjectsByUri(path);
+    private ServletFilterRegistration[] matchFilterByPath(String path){
+        return filterUrlMapper.getMappingObjectsByUri(path,EMPTY_FILTERS);
     }
 
-    private List<Filter> matchFilterByName(String servletName){
-        List<Filter> allNeedFilters = RecyclableUtil.newRecyclableList(10);
+    private ServletFilterRegistration[] matchFilterByName(String servletName){
+        ServletFilterRegistration[] filters = filterNameCache.get(servletName);
+        if(filters != null){
+            return filters;
+        }
 
+        List<ServletFilterRegistration> allNeedFilters = new ArrayList<>();
         for (ServletFilterRegistration registration : filterRegistrationMap.values()) {
             for(String name : registration.getServletNameMappings()){
                 if(servletName.equals(name)){
-                    allNeedFilters.add(registration.getFilter());
+                    allNeedFilters.add(registration);
                 }
             }
         }
-        return allNeedFilters;
+        filters = allNeedFilters.toArray(EMPTY_FILTERS);
+        filterNameCache.put(servletName,filters);
+        return filters;
+    }
+
+    /**
+     * 过滤器按servlet名称的映射变了, 清空缓存
+     */
+    void clearFilterNameCache(){
+        filterNameCache.clear();
     }
 
     @Override
@@ -244,10 +271,21 @@ public class ServletContext implements javax.servlet.ServletContext {
 //            Servlet servlet = ServletDefaultHttpServlet.INSTANCE;
 //            List<Filter> allNeedFilters = RecyclableUtil.newRecyclableList(0);
 
-            Servlet servlet = servletUrlMapper.getMappingObjectByUri(path);
-            List<Filter> allNeedFilters = matchFilterByPath(path);
+            ServletRegistration servletRegistration = servletUrlMapper.getMappingObjectByUri(path);
+            //没有匹配的servlet, 交给默认servlet处理静态资源
+            if(servletRegistration == null){
+                servletRegistration = getServletRegistration(DEFAULT_SERVLET_NAME);
+                if(servletRegistration == null){
+                    return null;
+                }
+            }
+            ServletFilterRegistration[] allNeedFilters = matchFilterByPath(path);
 
-            FilterChain filterChain = new ServletFilterChain(this,servlet, allNeedFilters);
+            ServletFilterChain filterChain = ServletFilterChain.newInstance(this,servletRegistration, allNeedFilters);
+            if(Optimize.isEnableServletLatencyHistogram()){
+                String urlPattern = servletUrlMapper.getMappingPatternByUri(path);
+                filterChain.setMappingLatencyHistogram(servletRegistration.getMappingLatencyHistogram(urlPattern == null? "/" : urlPattern));
+            }
             return ServletRequestDispatcher.newInstance(filterChain);
         } catch (Exception e) {
             logger.error("Throwing exception when getting Filter from ServletFilterRegistration of path " + path, e);
@@ -262,10 +300,9 @@ public class ServletContext implements javax.servlet.ServletContext {
             if (servletRegistration == null) {
                 return null;
             }
-            Servlet servlet = servletRegistration.getServlet();
-            List<Filter> allNeedFilters = matchFilterByName(name);
+            ServletFilterRegistration[] allNeedFilters = matchFilterByName(name);
 
-            FilterChain filterChain = new ServletFilterChain(this,servlet, allNeedFilters);
+            FilterChain filterChain = ServletFilterChain.newInstance(this,servletRegistration, allNeedFilters);
             return ServletRequestDispatcher.newInstance(filterChain);
         } catch (Exception e) {
             logger.error("Throwing exception when getting Filter from ServletFilterRegistration of name " + name, e);
@@ -325,6 +362,13 @@ public class ServletContext implements javax.servlet.ServletContext {
         return serverInfo;
     }
 
+    /**
+     * @return Server响应头的值
+     */
+    public CharSequence getServerHeader() {
+        return serverHeader;
+    }
+
     @Override
     public String getInitParameter(String name) {
         return initParamMap.get(name);
@@ -1,13 +1,38 @@
 package com.github.netty.servlet;
 
+import com.github.netty.core.constants.HttpHeaderConstants;
+import com.github.netty.core.support.Optimize;
+import com.github.netty.core.util.MimeTypeUtil;
+import com.github.netty.servlet.support.FileRange;
+import com.github.netty.servlet.support.ResponseCompressor;
+import com.github.netty.servlet.support.StaticResourceCache;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.ReferenceCountUtil;
+
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- *
+ * 默认servlet, 处理静态资源
+ *  1.从文档根目录中查找文件, 不允许通过 .. 访问根目录以外的文件
+ *  2.支持 If-None-Match(ETag) 和 If-Modified-Since 返回304
+ *  3.支持单段和多段 Range 请求 (206/416)
+ *  4.文件内容在响应结束时由io线程写出, 明文连接走sendfile, 不占用servlet线程和堆内存
+ *  5.小文件缓存在堆外内存里, 带有预先压缩好的gzip版本 {@link StaticResourceCache}
  * @author acer01
  *  2018/7/15/015
  */
@@ -15,9 +40,348 @@ public class ServletDefaultHttpServlet extends HttpServlet {
 
     public static final ServletDefaultHttpServlet INSTANCE = new ServletDefaultHttpServlet();
 
+    private static final String WELCOME_FILE = "index.html";
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    //多段Range的最大段数, 超过后忽略Range返回整个文件
+    private static final int MAX_RANGE_COUNT = 16;
+
+    private final File[] documentRoots;
+    private final StaticResourceCache resourceCache;
+
+    public ServletDefaultHttpServlet(File... documentRoots) {
+        this.documentRoots = new File[documentRoots.length];
+        for(int i=0; i<documentRoots.length; i++){
+            this.documentRoots[i] = documentRoots[i].getAbsoluteFile();
+        }
+        long cacheMaxBytes = Optimize.getStaticResourceCacheMaxBytes();
+        this.resourceCache = cacheMaxBytes > 0 && documentRoots.length > 0?
+                new StaticResourceCache(cacheMaxBytes, Optimize.getStaticResourceCacheMaxFileSize(), Optimize.getStaticResourceCacheCheckInterval()) : null;
+    }
+
+    public File[] getDocumentRoots() {
+        return documentRoots.clone();
+    }
+
     @Override
     protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        byte[] bytes = "ok".getBytes();
-        resp.getOutputStream().write(bytes);
+        String method = req.getMethod();
+        boolean head = "HEAD".equals(method);
+        if(!head && !"GET".equals(method)){
+            resp.setHeader(HttpHeaderConstants.ALLOW.toString(), "GET, HEAD");
+            resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+
+        //缓存命中的时候不访问文件系统
+        String path = getRelativePath(req);
+        StaticResourceCache.CachedResource resource = resourceCache == null? null : resourceCache.get(path);
+        File file = resource == null? getFile(path) : resource.getFile();
+        if(file == null){
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String contentType = MimeTypeUtil.getMimeTypeByFileName(file.getName());
+        if(contentType == null){
+            contentType = DEFAULT_MIME_TYPE;
+        }
+        if(resource == null && resourceCache != null){
+            resource = resourceCache.put(path, file, ResponseCompressor.isCompressible(contentType));
+        }
+
+        try {
+            serveFile(req, resp, head, file, resource, contentType);
+        }finally {
+            if(resource != null){
+                resource.release();
+            }
+        }
+    }
+
+    private void serveFile(HttpServletRequest req, HttpServletResponse resp, boolean head, File file,
+                           StaticResourceCache.CachedResource resource, String contentType) throws IOException {
+        long length = resource == null? file.length() : resource.getLength();
+        long lastModified = resource == null? file.lastModified() : resource.getLastModified();
+        String rangeHeader = req.getHeader(HttpHeaderConstants.RANGE.toString());
+
+        //Range针对的是原文件, 有Range的时候不用压缩版本
+        ByteBuf gzipContent = resource == null? null : resource.getGzipContent();
+        boolean useGzip = gzipContent != null && rangeHeader == null
+                && ResponseCompressor.isAcceptGzip(req.getHeader(HttpHeaderConstants.ACCEPT_ENCODING.toString()));
+        String etag = "W/\"" + length + "-" + lastModified + (useGzip? "-gzip\"" : "\"");
+        if(gzipContent != null){
+            resp.setHeader(HttpHeaderConstants.VARY.toString(), HttpHeaderConstants.ACCEPT_ENCODING.toString());
+        }
+
+        resp.setHeader(HttpHeaderConstants.ETAG.toString(), etag);
+        resp.setHeader(HttpHeaderConstants.LAST_MODIFIED.toString(), DateFormatter.format(new Date(lastModified)));
+        resp.setHeader(HttpHeaderConstants.ACCEPT_RANGES.toString(), "bytes");
+
+        if(isNotModified(req, etag, lastModified)){
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        List<long[]> ranges = null;
+        if(rangeHeader != null && isIfRangeMatch(req, etag, lastModified)){
+            ranges = parseRanges(rangeHeader, length);
+            if(ranges != null && ranges.isEmpty()){
+                resp.setHeader(HttpHeaderConstants.CONTENT_RANGE.toString(), "bytes */" + length);
+                resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+        }
+
+        List<Object> bodyParts = new ArrayList<>(ranges == null? 1 : ranges.size() * 2 + 1);
+        long contentLength;
+        if(useGzip){
+            resp.setContentType(contentType);
+            resp.setHeader(HttpHeaderConstants.CONTENT_ENCODING.toString(), HttpHeaderConstants.GZIP.toString());
+            bodyParts.add(gzipContent.retainedDuplicate());
+            contentLength = gzipContent.readableBytes();
+        }else if(ranges == null){
+            resp.setContentType(contentType);
+            bodyParts.add(newBodyPart(file, resource, 0, length));
+            contentLength = length;
+        }else if(ranges.size() == 1){
+            long[] range = ranges.get(0);
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            resp.setContentType(contentType);
+            resp.setHeader(HttpHeaderConstants.CONTENT_RANGE.toString(), "bytes " + range[0] + "-" + range[1] + "/" + length);
+            contentLength = range[1] - range[0] + 1;
+            bodyParts.add(newBodyPart(file, resource, range[0], contentLength));
+        }else {
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            resp.setContentType("multipart/byteranges; boundary=" + boundary);
+            contentLength = 0;
+            for(long[] range : ranges){
+                ByteBuf partHead = newAsciiBuffer("\r\n--" + boundary + "\r\n"
+                        + HttpHeaderConstants.CONTENT_TYPE + ": " + contentType + "\r\n"
+                        + HttpHeaderConstants.CONTENT_RANGE + ": bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n");
+                long partLength = range[1] - range[0] + 1;
+                bodyParts.add(partHead);
+                bodyParts.add(newBodyPart(file, resource, range[0], partLength));
+                contentLength += partHead.readableBytes() + partLength;
+            }
+            ByteBuf end = newAsciiBuffer("\r\n--" + boundary + "--\r\n");
+            bodyParts.add(end);
+            contentLength += end.readableBytes();
+        }
+
+        if(head){
+            releaseBodyParts(bodyParts);
+            resp.setContentLengthLong(contentLength);
+            return;
+        }
+        if(resp instanceof ServletHttpServletResponse){
+            ((ServletHttpServletResponse) resp).sendFile(bodyParts, contentLength);
+        }else {
+            //被过滤器包装过的响应, 需要经过包装类的输出流
+            resp.setContentLengthLong(contentLength);
+            copyBodyParts(bodyParts, resp.getOutputStream());
+        }
+    }
+
+    /**
+     * @return 缓存的内容 或者 文件的一段
+     */
+    private static Object newBodyPart(File file, StaticResourceCache.CachedResource resource, long offset, long length){
+        if(resource == null){
+            return new FileRange(file, offset, length);
+        }
+        return resource.getContent().retainedSlice((int) offset, (int) length);
+    }
+
+    @Override
+    public void destroy() {
+        if(resourceCache != null){
+            resourceCache.clear();
+        }
+    }
+
+    /**
+     * @return 请求路径中去掉上下文路径的部分
+     */
+    private String getRelativePath(HttpServletRequest req){
+        String path = req.getRequestURI();
+        String contextPath = req.getContextPath();
+        if(contextPath != null && !contextPath.isEmpty() && path.startsWith(contextPath)){
+            path = path.substring(contextPath.length());
+        }
+        //路径中的+不是空格
+        return QueryStringDecoder.decodeComponent(path.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 在文档根目录中查找文件
+     * @param path 相对路径
+     * @return 可读的文件, 找不到或者在根目录以外返回null
+     */
+    private File getFile(String path) throws IOException {
+        if(path.indexOf('\0') != -1){
+            return null;
+        }
+
+        for(File root : documentRoots){
+            File file = new File(root, path);
+            if(file.isDirectory()){
+                file = new File(file, WELCOME_FILE);
+            }
+            if(!file.isFile() || !file.canRead()){
+                continue;
+            }
+            //规范化以后必须还在根目录下面, 防止 ../ 访问到其他文件
+            String rootPath = root.getCanonicalPath();
+            String filePath = file.getCanonicalPath();
+            if(!rootPath.endsWith(File.separator)){
+                rootPath = rootPath + File.separator;
+            }
+            if(!filePath.startsWith(rootPath)){
+                continue;
+            }
+            //WEB-INF和META-INF下的文件不能直接访问 (只比较第一级目录, 不能误伤 WEB-INF.html 这样的文件)
+            String relativePath = filePath.substring(rootPath.length());
+            int separatorIndex = relativePath.indexOf(File.separatorChar);
+            String firstSegment = separatorIndex == -1? relativePath : relativePath.substring(0,separatorIndex);
+            if(firstSegment.equalsIgnoreCase("WEB-INF") || firstSegment.equalsIgnoreCase("META-INF")){
+                return null;
+            }
+            return file;
+        }
+        return null;
+    }
+
+    /**
+     * If-None-Match 优先于 If-Modified-Since
+     */
+    private boolean isNotModified(HttpServletRequest req, String etag, long lastModified){
+        String ifNoneMatch = req.getHeader(HttpHeaderConstants.IF_NONE_MATCH.toString());
+        if(ifNoneMatch != null){
+            for(String tag : ifNoneMatch.split(",")){
+                tag = tag.trim();
+                if("*".equals(tag) || weakTag(tag).equals(weakTag(etag))){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String ifModifiedSince = req.getHeader(HttpHeaderConstants.IF_MODIFIED_SINCE.toString());
+        if(ifModifiedSince != null){
+            Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+            //http日期只精确到秒
+            return since != null && lastModified / 1000 <= since.getTime() / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * 没有 If-Range, 或者 If-Range 和当前文件一致时, Range才有效
+     */
+    private boolean isIfRangeMatch(HttpServletRequest req, String etag, long lastModified){
+        String ifRange = req.getHeader(HttpHeaderConstants.IF_RANGE.toString());
+        if(ifRange == null){
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if(ifRange.startsWith("\"") || ifRange.startsWith("W/")){
+            return weakTag(ifRange).equals(weakTag(etag));
+        }
+        Date date = DateFormatter.parseHttpDate(ifRange);
+        return date != null && date.getTime() / 1000 == lastModified / 1000;
+    }
+
+    private static String weakTag(String tag){
+        return tag.startsWith("W/")? tag.substring(2) : tag;
+    }
+
+    /**
+     * 解析Range请求头
+     * @param rangeHeader 例: bytes=0-99,200-,-50
+     * @param length 文件长度
+     * @return 每段的[开始,结束] (包含结束). null=格式不对或者段数太多, 忽略Range. 空集合=所有段都超出了文件范围
+     */
+    private static List<long[]> parseRanges(String rangeHeader, long length){
+        if(!rangeHeader.startsWith("bytes=")){
+            return null;
+        }
+        String[] specs = rangeHeader.substring("bytes=".length()).split(",");
+        if(specs.length > MAX_RANGE_COUNT){
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int index = spec.indexOf('-');
+                if (index == -1) {
+                    return null;
+                }
+                long start;
+                long end;
+                if (index == 0) {
+                    //最后n个字节
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, index));
+                    end = index == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(index + 1));
+                    if (end < start) {
+                        return null;
+                    }
+                    end = Math.min(end, length - 1);
+                }
+                if (start >= length) {
+                    continue;
+                }
+                ranges.add(new long[]{start, end});
+            }
+        }catch (NumberFormatException e){
+            return null;
+        }
+        return ranges;
+    }
+
+    private static ByteBuf newAsciiBuffer(String str){
+        return Unpooled.copiedBuffer(str, StandardCharsets.US_ASCII);
+    }
+
+    private static void releaseBodyParts(List<Object> bodyParts){
+        for(Object part : bodyParts){
+            ReferenceCountUtil.release(part);
+        }
+    }
+
+    private static void copyBodyParts(List<Object> bodyParts, ServletOutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[8192];
+        try {
+            for (Object part : bodyParts) {
+                if (part instanceof ByteBuf) {
+                    ByteBuf byteBuf = (ByteBuf) part;
+                    byteBuf.readBytes(outputStream, byteBuf.readableBytes());
+                    continue;
+                }
+                FileRange range = (FileRange) part;
+                try (RandomAccessFile file = new RandomAccessFile(range.getFile(), "r")) {
+                    file.seek(range.getOffset());
+                    long remaining = range.getLength();
+                    while (remaining > 0) {
+                        int len = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (len == -1) {
+                            break;
+                        }
+                        outputStream.write(buffer, 0, len);
+                        remaining -= len;
+                    }
+                }
+            }
+        }finally {
+            releaseBodyParts(bodyParts);
+        }
     }
 }
@@ -1,37 +1,65 @@
 package com.github.netty.servlet;
 
+import com.github.netty.core.support.AbstractRecyclable;
+import com.github.netty.core.support.AbstractRecycler;
+import com.github.netty.core.support.LatencyHistogram;
+import com.github.netty.core.support.Optimize;
 import com.github.netty.servlet.support.ServletEventListenerManager;
 
 import javax.servlet.*;
 import java.io.IOException;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * 过滤器数组是按路径(或servlet名称)预先算好并缓存的, 所有请求共享, 不能修改
+ * 这个对象只是每个请求自己的游标, 用完回收
  * @author 84215
  */
-public class ServletFilterChain implements FilterChain {
+public class ServletFilterChain extends AbstractRecyclable implements FilterChain {
+
+    private static final ServletFilterRegistration[] EMPTY_FILTERS = {};
 
     /**
-     * 考虑到每个请求只有一个线程处理，而且ServletContext在每次请求时都会new 一个SimpleFilterChain对象
-     * 所以这里把过滤器链的Iterator作为FilterChain的私有变量，没有线程安全问题
+     * 每个请求只有一个线程处理，而且每次请求都会取一个新的游标，所以pos没有线程安全问题
      */
-    private final List<Filter> filterList;
-    private final Servlet servlet;
+    private ServletFilterRegistration[] filters;
+    private Servlet servlet;
+    private ServletRegistration servletRegistration;
     private ServletContext servletContext;
     private int pos;
 
-    public static Map<Filter,AtomicLong> FILTER_TIME_MAP = new ConcurrentHashMap<>();
-    public static AtomicLong SERVLET_TIME = new AtomicLong();
-    public static AtomicLong FILTER_TIME = new AtomicLong();
-    long begin = System.currentTimeMillis();
+    /**
+     * 延迟统计, 需要开启 {@link Optimize#isEnableServletLatencyHistogram()}
+     * downstreamTime = 当前过滤器之后的过滤器和servlet的耗时, 用于算出过滤器自身的耗时
+     */
+    private boolean enableLatency;
+    private long downstreamTime;
+    private LatencyHistogram mappingLatencyHistogram;
+
+    private static final AbstractRecycler<ServletFilterChain> RECYCLER = new AbstractRecycler<ServletFilterChain>() {
+        @Override
+        protected ServletFilterChain newInstance() {
+            return new ServletFilterChain();
+        }
+    };
 
-    ServletFilterChain(ServletContext servletContext, Servlet servlet, List<Filter> filterList){
-        this.servletContext = servletContext;
-        this.filterList = filterList;
-        this.servlet = servlet;
+    private ServletFilterChain(){}
+
+    public static ServletFilterChain newInstance(ServletContext servletContext, ServletRegistration servletRegistration, ServletFilterRegistration[] filters){
+        ServletFilterChain instance = RECYCLER.get();
+        instance.servletContext = servletContext;
+        instance.filters = filters == null? EMPTY_FILTERS : filters;
+        instance.servletRegistration = servletRegistration;
+        instance.servlet = servletRegistration.getServlet();
+        instance.pos = 0;
+        instance.enableLatency = Optimize.isEnableServletLatencyHistogram();
+        return instance;
+    }
+
+    /**
+     * @param mappingLatencyHistogram 匹配到的url规则的延迟统计 (过滤器+servlet)
+     */
+    public void setMappingLatencyHistogram(LatencyHistogram mappingLatencyHistogram) {
+        this.mappingLatencyHistogram = mappingLatencyHistogram;
     }
 
     /**
@@ -41,36 +69,83 @@ public class ServletFilterChain implements FilterChain {
      */
     @Override
     public void doFilter(ServletRequest request, ServletResponse response) throws IOException, ServletException {
-        ServletEventListenerManager listenerManager = servletContext.getServletEventListenerManager();
-
+        ensureNotRecycled();
         if(pos == 0){
+            ServletEventListenerManager listenerManager = servletContext.getServletEventListenerManager();
+            //getParts()需要知道目标servlet的上传配置
+            if(request instanceof ServletHttpServletRequest){
+                ((ServletHttpServletRequest) request).setMultipartConfig(servletRegistration.getMultipartConfigElement());
+            }
             if(listenerManager.hasServletRequestListener()) {
                 listenerManager.onServletRequestInitialized(new ServletRequestEvent(servletContext,request));
             }
+            try {
+                if(enableLatency && mappingLatencyHistogram != null){
+                    long beginTime = System.nanoTime();
+                    try {
+                        doNext(request, response);
+                    }finally {
+                        mappingLatencyHistogram.record(System.nanoTime() - beginTime);
+                    }
+                }else {
+                    doNext(request, response);
+                }
+            }finally {
+                if(listenerManager.hasServletRequestListener()) {
+                    listenerManager.onServletRequestDestroyed(new ServletRequestEvent(servletContext,request));
+                }
+            }
+        }else {
+            doNext(request, response);
         }
+    }
 
-        if(pos < filterList.size()){
-            Filter filter = filterList.get(pos);
-            pos++;
-            filter.doFilter(request, response, this);
+    private void doNext(ServletRequest request, ServletResponse response) throws IOException, ServletException {
+        if(pos < filters.length){
+            ServletFilterRegistration registration = filters[pos++];
+            if(!enableLatency){
+                registration.getFilter().doFilter(request, response, this);
+                return;
+            }
 
-            FILTER_TIME_MAP.put(filter,FILTER_TIME);
-        }else {
+            long parentDownstreamTime = downstreamTime;
+            downstreamTime = 0;
+            long beginTime = System.nanoTime();
             try {
-                long c = System.currentTimeMillis();
-                FILTER_TIME.addAndGet(c - begin);
-
+                registration.getFilter().doFilter(request, response, this);
+            }finally {
+                long time = System.nanoTime() - beginTime;
+                registration.getLatencyHistogram().record(time - downstreamTime);
+                downstreamTime = parentDownstreamTime + time;
+            }
+        }else {
+            if(!enableLatency){
                 servlet.service(request, response);
+                return;
+            }
 
-                long end = System.currentTimeMillis() - c;
-                SERVLET_TIME.addAndGet(end);
+            long beginTime = System.nanoTime();
+            try {
+                servlet.service(request, response);
             }finally {
-                if(listenerManager.hasServletRequestListener()) {
-                    listenerManager.onServletRequestDestroyed(new ServletRequestEvent(servletContext,request));
-                }
+                long time = System.nanoTime() - beginTime;
+                servletRegistration.getLatencyHistogram().record(time);
+                downstreamTime += time;
             }
         }
+    }
 
+    @Override
+    public void recycle() {
+        filters = null;
+        servlet = null;
+        servletRegistration = null;
+        servletContext = null;
+        pos = 0;
+        enableLatency = false;
+        downstreamTime = 0;
+        mappingLatencyHistogram = null;
+        RECYCLER.recycle(this);
     }
 
 }
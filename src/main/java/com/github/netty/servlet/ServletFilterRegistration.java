@@ -1,5 +1,7 @@
 package com.github.netty.servlet;
 
+import com.github.netty.core.support.LatencyHistogram;
+
 import javax.servlet.DispatcherType;
 import javax.servlet.Filter;
 import javax.servlet.FilterConfig;
@@ -22,6 +24,7 @@ public class ServletFilterRegistration implements FilterRegistration,FilterRegis
     private Set<String> mappingSet;
     private Set<String> servletNameMappingSet;
     private boolean asyncSupported;
+    private LatencyHistogram latencyHistogram;
 
     public ServletFilterRegistration(String filterName, Filter servlet,ServletContext servletContext) {
         this.filterName = filterName;
@@ -65,6 +68,16 @@ public class ServletFilterRegistration implements FilterRegistration,FilterRegis
         return filter;
     }
 
+    /**
+     * @return 过滤器自身的耗时 (不含后面的过滤器和servlet)
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        if(latencyHistogram == null){
+            latencyHistogram = LatencyHistogram.get("filter:" + filterName);
+        }
+        return latencyHistogram;
+    }
+
     public boolean isAsyncSupported() {
         return asyncSupported;
     }
@@ -110,6 +123,7 @@ public class ServletFilterRegistration implements FilterRegistration,FilterRegis
     @Override
     public void addMappingForServletNames(EnumSet<DispatcherType> dispatcherTypes, boolean isMatchAfter, String... servletNames) {
         servletNameMappingSet.addAll(Arrays.asList(servletNames));
+        servletContext.clearFilterNameCache();
 //        for(String servletName : servletNames) {
 //            servletContext.find
 //            servletContext.addFilterMapping(servletName,filterName,filter);
@@ -125,7 +139,7 @@ public class ServletFilterRegistration implements FilterRegistration,FilterRegis
     public void addMappingForUrlPatterns(EnumSet<DispatcherType> dispatcherTypes, boolean isMatchAfter, String... urlPatterns) {
         mappingSet.addAll(Arrays.asList(urlPatterns));
         for(String pattern : urlPatterns) {
-            servletContext.addFilterMapping(pattern,filterName,filter);
+            servletContext.addFilterMapping(pattern,filterName,this);
         }
     }
 
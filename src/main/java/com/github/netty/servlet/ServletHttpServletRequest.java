@@ -3,18 +3,28 @@ package com.github.netty.servlet;
 import com.github.netty.core.NettyHttpRequest;
 import com.github.netty.core.constants.HttpConstants;
 import com.github.netty.core.constants.HttpHeaderConstants;
+import com.github.netty.core.support.AbstractRecyclable;
 import com.github.netty.core.support.AbstractRecycler;
-import com.github.netty.core.support.Recyclable;
 import com.github.netty.core.util.HttpHeaderUtil;
 import com.github.netty.core.util.StringUtil;
 import com.github.netty.core.util.TodoOptimize;
 import com.github.netty.servlet.support.HttpServletObject;
+import com.github.netty.servlet.support.ParameterDecoder;
 import com.github.netty.servlet.support.ServletEventListenerManager;
 import com.github.netty.servlet.util.ProxyUtil;
 import com.github.netty.servlet.util.ServletUtil;
 import com.github.netty.session.Session;
 import com.github.netty.session.SessionService;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.multipart.HttpData;
+import io.netty.handler.codec.http.multipart.HttpPostMultipartRequestDecoder;
+import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
+import io.netty.handler.codec.http.multipart.InterfaceHttpData;
 
 import javax.servlet.*;
 import javax.servlet.http.Cookie;
@@ -28,6 +38,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.security.Principal;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -37,7 +48,7 @@ import java.util.concurrent.ConcurrentHashMap;
  * @author acer01
  *  2018/7/15/015
  */
-public class ServletHttpServletRequest implements javax.servlet.http.HttpServletRequest,Recyclable {
+public class ServletHttpServletRequest extends AbstractRecyclable implements javax.servlet.http.HttpServletRequest {
 
     private static final AbstractRecycler<ServletHttpServletRequest> RECYCLER = new AbstractRecycler<ServletHttpServletRequest>() {
         @Override
@@ -53,6 +64,12 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
     };
 
     public static final String DISPATCHER_TYPE = ServletRequestDispatcher.class.getName().concat(".DISPATCHER_TYPE");
+    //没有上传配置时, 超过这个字节数的上传内容写到临时文件
+    private static final long DEFAULT_MULTIPART_FILE_SIZE_THRESHOLD = 16 * 1024;
+    //解码器里已经解析过的内容超过这个字节数就丢掉, 不让它一直留在内存里
+    private static final int MULTIPART_DISCARD_THRESHOLD = 64 * 1024;
+    //http2的流里请求的协议版本还是HTTP/1.1, getProtocol()时按连接返回
+    private static final String HTTP_2_PROTOCOL = "HTTP/2.0";
 
     private HttpServletObject httpServletObject;
     private NettyHttpRequest nettyRequest;
@@ -70,15 +87,17 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     private boolean decodePathsFlag = false;
     private boolean decodeCookieFlag = false;
-    private boolean decodeParameterByUrlFlag = false;
-    private boolean decodeParameterByBodyFlag = false;
+    private boolean decodeParameterFlag = false;
 
     private ServletHttpSession httpSession = new ServletHttpSession();
     private ServletInputStream inputStream = new ServletInputStream();
     private Map<String,Object> attributeMap = new ConcurrentHashMap<>(16);
-    private Map<String,String[]> parameterMap;
+    private final ParameterDecoder parameterDecoder = new ParameterDecoder();
     private Cookie[] cookies;
     private Locale locale;
+    private MultipartConfigElement multipartConfig;
+    private HttpPostMultipartRequestDecoder multipartDecoder;
+    private List<Part> parts;
 
     protected ServletHttpServletRequest() {}
 
@@ -87,14 +106,26 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
         Objects.requireNonNull(nettyRequest);
 
         ServletHttpServletRequest instance = RECYCLER.get();
-        instance.httpServletObject = httpServletObject;
-        instance.nettyRequest = nettyRequest;
-        instance.nettyHeaders = nettyRequest.headers();
-        instance.inputStream.wrap(nettyRequest.content());
-        instance.httpSession.setServletContext(httpServletObject.getServletContext());
+        instance.init(httpServletObject,nettyRequest);
         return instance;
     }
 
+    /**
+     * 初始化, 连接绑定的请求对象在处理下一个请求时直接调用这个方法复用
+     * @param httpServletObject
+     * @param nettyRequest
+     */
+    public void init(HttpServletObject httpServletObject, NettyHttpRequest nettyRequest) {
+        Objects.requireNonNull(httpServletObject);
+        Objects.requireNonNull(nettyRequest);
+
+        this.httpServletObject = httpServletObject;
+        this.nettyRequest = nettyRequest;
+        this.nettyHeaders = nettyRequest.headers();
+        this.inputStream.wrap(nettyRequest.content());
+        this.httpSession.setServletContext(httpServletObject.getServletContext());
+    }
+
     public boolean isAsync(){
         return asyncContext != null && asyncContext.isStarted();
     }
@@ -109,10 +140,6 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
         return attributeMap;
     }
 
-    private boolean isDecodeParameter(){
-        return decodeParameterByBodyFlag || decodeParameterByUrlFlag;
-    }
-
     private void decodeCharacterEncoding() {
         String characterEncoding = ServletUtil.decodeCharacterEncoding(getContentType());
         if (characterEncoding == null) {
@@ -142,19 +169,23 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
      * 流得到POST数据。如果满足这些条件，那么从request对象的输入流中直接读取POST数据将不再有效。
      */
     private void decodeParameter(){
-        ServletContext servletContext = getServletContext();
-        Map<String,String[]> parameterMap = new HashMap<>(16);
-        Charset charset = servletContext.getDefaultCharset();
-        ServletUtil.decodeByUrl(parameterMap, nettyRequest.uri(),charset);
-        this.decodeParameterByUrlFlag = true;
-
+        //查询字符串按容器的默认字符集, 表单按请求的字符集 (在getParameter之前调用setCharacterEncoding可以改变)
+        Charset uriCharset = getServletContext().getDefaultCharset();
+        Charset bodyCharset = Charset.forName(getCharacterEncoding());
+        ByteBuf body = null;
         if(HttpConstants.POST.equalsIgnoreCase(getMethod())
-                && getContentLength() > 0
-                && HttpHeaderUtil.isFormUrlEncoder(getContentType())){
-            ServletUtil.decodeByBody(parameterMap,nettyRequest,charset);
-            this.decodeParameterByBodyFlag = true;
+                && getContentLengthLong() != 0
+                && HttpHeaderUtil.isFormUrlEncoder(getContentType())
+                && !inputStream.isClosed()){
+            //流式模式下会等请求体全部到达. 读取后输入流里就没有内容了
+            try {
+                body = inputStream.readRemainingContent();
+            } catch (IOException e) {
+                throw new IllegalStateException("读取表单内容失败",e);
+            }
         }
-        this.parameterMap = parameterMap;
+        parameterDecoder.decode(nettyRequest.uri(), body, uriCharset, bodyCharset);
+        this.decodeParameterFlag = true;
     }
 
     private void decodeCookie(){
@@ -394,24 +425,28 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
             return httpSession;
         }
 
-        String sessionId = getRequestedSessionId();
         ServletContext servletContext = getServletContext();
         SessionService sessionService = servletContext.getSessionService();
-        Session session = sessionService.getSession(sessionId);
 
-        if(session != null){
-            httpSession.wrap(session);
-            httpSession.access();
-            httpSession.setNewSessionFlag(false);
-            return httpSession;
+        //客户端没有带会话id, 就不用去会话服务里查了 (远程会话是一次rpc)
+        String sessionId = getRequestedSessionId();
+        if(StringUtil.isNotEmpty(sessionId)) {
+            Session session = sessionService.getSession(sessionId);
+            if (session != null) {
+                httpSession.wrap(session);
+                httpSession.access();
+                httpSession.setNewSessionFlag(false);
+                return httpSession;
+            }
         }
 
         if(!create) {
             return null;
         }
 
+        //客户端带的id已经失效时也用新的id, 防止会话固定攻击
         long currTime = System.currentTimeMillis();
-        session = new Session(sessionId);
+        Session session = new Session(newSessionId());
         session.setCreationTime(currTime);
         session.setLastAccessedTime(currTime);
         session.setMaxInactiveInterval(servletContext.getSessionCookieConfig().getSessionTimeout());
@@ -422,6 +457,14 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
         return httpSession;
     }
 
+    /**
+     * 获取本次请求已经拿到的会话, 不会创建, 也不会查询会话服务
+     * @return 会话, null=业务没有使用会话或者会话已经失效
+     */
+    public ServletHttpSession getSessionIfActive() {
+        return httpSession.isValid()? httpSession : null;
+    }
+
     @Override
     public ServletHttpSession getSession() {
         return getSession(true);
@@ -472,7 +515,8 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     @Override
     public String getRequestedSessionId() {
-        if(StringUtil.isNotEmpty(sessionId)){
+        //已经解析过
+        if(sessionIdSource != 0){
             return sessionId;
         }
 
@@ -486,8 +530,9 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
                 sessionIdSource = HttpConstants.SESSION_ID_SOURCE_URL;
                 sessionId = getParameter(HttpConstants.JSESSION_ID_PARAMS);
             }else {
+                //客户端没有带会话id, 等业务需要会话时再创建
                 sessionIdSource = HttpConstants.SESSION_ID_SOURCE_NOT_FOUND_CREATE;
-                sessionId = newSessionId();
+                sessionId = null;
             }
         }
 
@@ -517,6 +562,16 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     @Override
     public void setCharacterEncoding(String env) throws UnsupportedEncodingException {
+        //null = 重新按Content-Type取
+        if(env != null) {
+            try {
+                if (!Charset.isSupported(env)) {
+                    throw new UnsupportedEncodingException(env);
+                }
+            } catch (IllegalCharsetNameException e) {
+                throw new UnsupportedEncodingException(env);
+            }
+        }
         characterEncoding = env;
     }
 
@@ -536,17 +591,16 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
     }
 
     @Override
-    public ServletInputStream getInputStream() throws IOException {
+    public ServletInputStream getInputStream() {
         return inputStream;
     }
 
     @Override
     public String getParameter(String name) {
-        String[] values = getParameterMap().get(name);
-        if(values == null || values.length == 0){
-            return null;
+        if(!decodeParameterFlag) {
+            decodeParameter();
         }
-        return values[0];
+        return parameterDecoder.getParameter(name);
     }
 
     @Override
@@ -556,25 +610,23 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     @Override
     public String[] getParameterValues(String name) {
-        Collection<String[]> collection = getParameterMap().values();
-        List<String> list = new LinkedList<>();
-        for(String[] arr : collection){
-            Collections.addAll(list, arr);
+        if(!decodeParameterFlag) {
+            decodeParameter();
         }
-        return list.toArray(new String[list.size()]);
+        return parameterDecoder.getParameterValues(name);
     }
 
     @Override
     public Map<String, String[]> getParameterMap() {
-        if(!isDecodeParameter()) {
+        if(!decodeParameterFlag) {
             decodeParameter();
         }
-        return Collections.unmodifiableMap(parameterMap);
+        return parameterDecoder.getParameterMap();
     }
 
     @Override
     public String getProtocol() {
-        return nettyRequest.protocolVersion().toString();
+        return httpServletObject.isHttp2()? HTTP_2_PROTOCOL : nettyRequest.protocolVersion().toString();
     }
 
     @Override
@@ -741,6 +793,10 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
         ServletAsyncContext asyncContext = new ServletAsyncContext(httpServletObject,servletContext, servletContext.getAsyncExecutorService(),servletRequest,servletResponse);
         asyncContext.setTimeout(servletContext.getAsyncTimeout());
+        //在dispatch()派发的请求里再次开始异步, 通知之前的监听器
+        if(this.asyncContext != null){
+            this.asyncContext.notifyStartAsync(asyncContext);
+        }
         this.asyncContext = asyncContext;
         return asyncContext;
     }
@@ -804,16 +860,108 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     }
 
+    /**
+     * 设置目标servlet的上传配置
+     * @param multipartConfig 上传配置, null=没有配置 (使用默认值)
+     */
+    public void setMultipartConfig(MultipartConfigElement multipartConfig) {
+        this.multipartConfig = multipartConfig;
+    }
+
     @Override
     public Collection<Part> getParts() throws IOException, ServletException {
-        return null;
+        if(parts == null){
+            decodeParts();
+        }
+        return parts;
     }
 
     @Override
     public Part getPart(String name) throws IOException, ServletException {
+        for(Part part : getParts()){
+            if(part.getName().equals(name)){
+                return part;
+            }
+        }
         return null;
     }
 
+    /**
+     * 解析multipart请求体. 请求体一块一块交给解码器, 超过阈值的内容写到临时文件, 整个请求体不会同时放在内存里
+     */
+    private void decodeParts() throws IOException, ServletException {
+        String contentType = getContentType();
+        if(contentType == null || !contentType.toLowerCase().startsWith(HttpHeaderConstants.MULTIPART_FORM_DATA.toString())){
+            throw new ServletException("不是multipart/form-data请求 : " + contentType);
+        }
+
+        MultipartConfigElement config = multipartConfig;
+        long maxRequestSize = config == null? -1 : config.getMaxRequestSize();
+        long maxFileSize = config == null? -1 : config.getMaxFileSize();
+        long fileSizeThreshold = config == null? DEFAULT_MULTIPART_FILE_SIZE_THRESHOLD : config.getFileSizeThreshold();
+        String location = config == null? null : config.getLocation();
+
+        long contentLength = getContentLengthLong();
+        if(maxRequestSize > 0 && contentLength > maxRequestSize){
+            throw new IllegalStateException("上传的内容超过限制 : " + contentLength + " > " + maxRequestSize);
+        }
+
+        //解码器只需要请求头, 请求体之后一块一块给
+        Charset charset = Charset.forName(getCharacterEncoding());
+        HttpRequest headRequest = new DefaultHttpRequest(nettyRequest.protocolVersion(),nettyRequest.method(),nettyRequest.uri(),nettyHeaders);
+        HttpPostMultipartRequestDecoder decoder = new HttpPostMultipartRequestDecoder(
+                ServletUtil.newMultipartDataFactory(charset,fileSizeThreshold,maxFileSize), headRequest, charset);
+        decoder.setDiscardThreshold(MULTIPART_DISCARD_THRESHOLD);
+        //上次解析失败留下的解码器, 先删除它的临时文件再替换
+        destroyMultipartDecoder();
+        this.multipartDecoder = decoder;
+
+        try {
+            long totalBytes = 0;
+            ByteBuf chunk;
+            while ((chunk = inputStream.readContentChunk()) != null){
+                totalBytes += chunk.readableBytes();
+                try {
+                    if (maxRequestSize > 0 && totalBytes > maxRequestSize) {
+                        throw new IllegalStateException("上传的内容超过限制 : " + maxRequestSize);
+                    }
+                    //解码器会复制内容, 给完就可以释放
+                    decoder.offer(new DefaultHttpContent(chunk));
+                }finally {
+                    chunk.release();
+                }
+            }
+            decoder.offer(LastHttpContent.EMPTY_LAST_CONTENT);
+        }catch (HttpPostRequestDecoder.ErrorDataDecoderException e){
+            //文件超过maxFileSize时netty抛出的是IOException
+            if(e.getCause() instanceof IOException){
+                throw new IllegalStateException("上传的内容超过限制 : " + e.getCause().getMessage(), e);
+            }
+            throw new ServletException("解析multipart请求失败", e);
+        }
+
+        //用next()取出, 取出的数据由工厂在destroy()时统一释放和删除 (getBodyHttpDatas()取的会在destroy()时被释放两次)
+        List<Part> parts = new ArrayList<>();
+        try {
+            while (decoder.hasNext()) {
+                InterfaceHttpData data = decoder.next();
+                if (data instanceof HttpData) {
+                    parts.add(new ServletPart((HttpData) data, location));
+                }
+            }
+        }catch (HttpPostRequestDecoder.EndOfDataDecoderException e){
+            //已经取完
+        }
+        this.parts = Collections.unmodifiableList(parts);
+    }
+
+    private void destroyMultipartDecoder(){
+        if(multipartDecoder != null){
+            multipartDecoder.destroy();
+            multipartDecoder = null;
+        }
+    }
+
     @Override
     public <T extends HttpUpgradeHandler> T upgrade(Class<T> handlerClass) throws IOException, ServletException {
         return null;
@@ -821,6 +969,7 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
 
     @Override
     public void recycle() {
+        boolean channelBound = httpServletObject.isChannelBound();
         if(!inputStream.isClosed()) {
             try {
                 inputStream.close();
@@ -836,11 +985,17 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
             sessionService.removeSession(httpSession.getId());
         }
 
+        //删除上传的临时文件
+        destroyMultipartDecoder();
+        this.parts = null;
+        this.multipartConfig = null;
+
         this.httpSession.recycle();
+        //表单内容是请求体的切片, 要在请求体之前释放 (输入流和nettyRequest按引用计数判断请求体是否已经释放)
+        this.parameterDecoder.recycle();
         this.nettyRequest.recycle();
 
-        this.decodeParameterByUrlFlag = false;
-        this.decodeParameterByBodyFlag = false;
+        this.decodeParameterFlag = false;
         this.decodeCookieFlag = false;
         this.decodePathsFlag = false;
         this.sessionIdSource = 0;
@@ -851,7 +1006,6 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
         this.requestUri = null;
         this.characterEncoding = null;
         this.sessionId = null;
-        this.parameterMap = null;
         this.cookies = null;
         this.locale = null;
         this.asyncContext = null;
@@ -860,6 +1014,9 @@ public class ServletHttpServletRequest implements javax.servlet.http.HttpServlet
         this.httpServletObject = null;
 
         this.attributeMap.clear();
-        RECYCLER.recycle(this);
+        //连接绑定的对象留给下一个请求, 不放回回收站
+        if(!channelBound) {
+            RECYCLER.recycle(this);
+        }
     }
 }
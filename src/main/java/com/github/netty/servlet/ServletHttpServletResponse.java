@@ -3,14 +3,13 @@ package com.github.netty.servlet;
 import com.github.netty.core.NettyHttpResponse;
 import com.github.netty.core.constants.HttpConstants;
 import com.github.netty.core.constants.HttpHeaderConstants;
+import com.github.netty.core.support.AbstractRecyclable;
 import com.github.netty.core.support.AbstractRecycler;
 import com.github.netty.core.support.CompositeByteBufX;
-import com.github.netty.core.support.Recyclable;
 import com.github.netty.servlet.support.HttpServletObject;
 import com.github.netty.servlet.support.MediaType;
 import com.github.netty.core.util.HttpHeaderUtil;
 import com.github.netty.servlet.util.ProxyUtil;
-import com.github.netty.core.util.TodoOptimize;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.handler.codec.http.DefaultHttpResponse;
@@ -20,6 +19,7 @@ import io.netty.handler.codec.http.HttpVersion;
 
 import javax.servlet.http.Cookie;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.*;
 
@@ -28,7 +28,7 @@ import java.util.*;
  * @author acer01
  *  2018/7/15/015
  */
-public class ServletHttpServletResponse implements javax.servlet.http.HttpServletResponse,Recyclable {
+public class ServletHttpServletResponse extends AbstractRecyclable implements javax.servlet.http.HttpServletResponse {
 
     private static final AbstractRecycler<ServletHttpServletResponse> RECYCLER = new AbstractRecycler<ServletHttpServletResponse>() {
         @Override
@@ -62,16 +62,25 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
         Objects.requireNonNull(httpServletObject);
 
         ServletHttpServletResponse instance = RECYCLER.get();
+        instance.init(httpServletObject);
+        return instance;
+    }
+
+    /**
+     * 初始化, 连接绑定的响应对象在处理下一个请求时直接调用这个方法复用
+     * @param httpServletObject
+     */
+    public void init(HttpServletObject httpServletObject) {
+        Objects.requireNonNull(httpServletObject);
 
         //Netty自带的http响应对象，初始化为200
         NettyHttpResponse nettyResponse = NettyHttpResponse.newInstance(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, false));
-        instance.nettyResponse = nettyResponse;
-        instance.nettyHeaders = nettyResponse.headers();
-        instance.httpServletObject = httpServletObject;
-        //常用最大字节数 4096 * 6 = 24576字节
-        instance.outputStream.wrap(new CompositeByteBufX(false,6));
-        instance.outputStream.setHttpServletObject(httpServletObject);
-        return instance;
+        this.nettyResponse = nettyResponse;
+        this.nettyHeaders = nettyResponse.headers();
+        this.httpServletObject = httpServletObject;
+        //缓冲区满了就会写出, 组件数量 = 缓冲区大小 / 内存块大小 + 大的写入次数
+        this.outputStream.wrap(new CompositeByteBufX(true,16));
+        this.outputStream.setHttpServletObject(httpServletObject);
     }
 
     public List<Cookie> getCookies() {
@@ -114,11 +123,17 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
 
     @Override
     public String encodeURL(String url) {
-        if(!httpServletObject.getHttpServletRequest().isRequestedSessionIdFromCookie()){
+        ServletHttpServletRequest request = httpServletObject.getHttpServletRequest();
+        if(request.isRequestedSessionIdFromCookie()){
             //来自Cookie的Session ID,则客户端肯定支持Cookie，无需重写URL
             return url;
         }
-        return url + ";" + HttpConstants.JSESSION_ID_PARAMS + "=" + httpServletObject.getHttpServletRequest().getRequestedSessionId();
+        //没有使用会话, 不需要重写URL
+        ServletHttpSession httpSession = request.getSessionIfActive();
+        if(httpSession == null){
+            return url;
+        }
+        return url + ";" + HttpConstants.JSESSION_ID_PARAMS + "=" + httpSession.getId();
     }
 
     @Override
@@ -299,7 +314,13 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
 
     @Override
     public PrintWriter getWriter() throws IOException {
-        writer = new PrintWriter(outputStream);
+        if(writer != null){
+            return writer;
+        }
+        if(characterEncoding == null){
+            characterEncoding = httpServletObject.getServletContext().getDefaultCharset().name();
+        }
+        writer = new PrintWriter(new OutputStreamWriter(outputStream,characterEncoding));
         return writer;
     }
 
@@ -325,24 +346,49 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
         }
     }
 
+    /**
+     * 必须在写入内容之前调用
+     * @param size 缓冲区大小, 超过后提交响应头并转为分段写出
+     */
     @Override
     public void setBufferSize(int size) {
-
+        checkNotCommitted();
+        if(outputStream.getContentLength() > 0){
+            throw new IllegalStateException("Cannot change buffer size after data has been written");
+        }
+        outputStream.setBufferSize(size);
     }
 
     @Override
     public int getBufferSize() {
-        return 0;
+        return outputStream.getBufferSize();
     }
 
     @Override
     public void flushBuffer() throws IOException {
-        outputStream.flush();
+        if(writer != null){
+            writer.flush();
+        }
+        outputStream.flushBuffer();
     }
 
     @Override
     public void resetBuffer() {
-        //
+        checkNotCommitted();
+        outputStream.resetBuffer();
+        writer = null;
+    }
+
+    /**
+     * 用文件作为响应体, 在响应结束时写出 (明文连接走sendfile, 不经过堆内存)
+     * @param bodyParts 元素是 {@link io.netty.buffer.ByteBuf} (写出后自动释放) 或者 {@link com.github.netty.servlet.support.FileRange}
+     * @param contentLength 响应体总长度
+     * @throws IOException 输出流已关闭
+     */
+    public void sendFile(List<Object> bodyParts, long contentLength) throws IOException {
+        checkNotCommitted();
+        writer = null;
+        outputStream.setFileBody(bodyParts, contentLength);
     }
 
     @Override
@@ -350,11 +396,22 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
         return commit;
     }
 
-    @TodoOptimize("重置流")
+    /**
+     * 响应头已经写出
+     */
+    void markCommitted() {
+        commit = true;
+    }
+
     @Override
     public void reset() {
         resetBuffer();
-        writer = null;
+        nettyHeaders.clear();
+        nettyResponse.setStatus(HttpResponseStatus.OK);
+        cookies = null;
+        contentType = null;
+        characterEncoding = null;
+        locale = null;
     }
 
     @Override
@@ -369,6 +426,10 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
 
     @Override
     public void recycle() {
+        //没有手动flush的writer, 内容还在writer的缓冲里
+        if(writer != null){
+            writer.flush();
+        }
         try {
             outputStream.close(ChannelFutureCloseListener.newInstance(this));
         } catch (IOException e) {
@@ -379,7 +440,7 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
     /**
      * 优化lambda实例数量, 减少gc次数
      */
-    static class ChannelFutureCloseListener implements ChannelFutureListener,Recyclable{
+    static class ChannelFutureCloseListener extends AbstractRecyclable implements ChannelFutureListener{
         private ServletHttpServletResponse closeTarget;
 
         private static final AbstractRecycler<ChannelFutureCloseListener> RECYCLER = new AbstractRecycler<ChannelFutureCloseListener>() {
@@ -403,6 +464,8 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
 
         @Override
         public void operationComplete(ChannelFuture future) throws Exception {
+            ensureNotRecycled();
+            HttpServletObject httpServletObject = closeTarget.httpServletObject;
             closeTarget.nettyResponse.recycle();
 
             closeTarget.outputStream.setHttpServletObject(null);
@@ -416,7 +479,12 @@ public class ServletHttpServletResponse implements javax.servlet.http.HttpServle
             closeTarget.nettyHeaders = null;
             closeTarget.commit = false;
 
-            ServletHttpServletResponse.RECYCLER.recycle(closeTarget);
+            //连接绑定的对象留给下一个请求, 不放回回收站
+            if(httpServletObject != null && httpServletObject.isChannelBound()){
+                httpServletObject.onResponseRecycled();
+            }else {
+                ServletHttpServletResponse.RECYCLER.recycle(closeTarget);
+            }
             ChannelFutureCloseListener.this.recycle();
         }
     }
@@ -1,16 +1,23 @@
 package com.github.netty.servlet;
 
+import com.github.netty.core.support.Optimize;
 import com.github.netty.core.support.Wrapper;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.util.ReferenceCountUtil;
 
 import javax.servlet.ReadListener;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- *
+ * 两种模式
+ *  1.聚合模式 : 包装一个完整的请求体
+ *  2.流式模式 : io线程不断地把HttpContent放进队列, servlet线程从队列中读取, 队列积压过多时关闭channel的autoRead
  * @author acer01
  *  2018/7/15/015
  */
@@ -20,7 +27,18 @@ public class ServletInputStream extends javax.servlet.ServletInputStream impleme
     private ByteBuf source;
     private ReadListener readListener;
 
-    private int contentLength;
+    private long contentLength;
+
+    /**
+     * 流式模式的状态, 除了source以外都由contentQueue加锁保护
+     */
+    private boolean streaming;
+    private final ArrayDeque<ByteBuf> contentQueue = new ArrayDeque<>(8);
+    private int queueBytes;
+    private boolean receiveLastContent;
+    private boolean pauseAutoRead;
+    private IOException abortCause;
+    private Channel channel;
 
     public ServletInputStream() {
     }
@@ -29,10 +47,17 @@ public class ServletInputStream extends javax.servlet.ServletInputStream impleme
         wrap(source);
     }
 
-    public int getContentLength() {
+    /**
+     * @return 请求头中的内容长度, 流式模式下如果是分段传输则返回-1
+     */
+    public long getContentLength() {
         return contentLength;
     }
 
+    public boolean isStreaming() {
+        return streaming;
+    }
+
     @Override
     public int readLine(byte[] b, int off, int len) throws IOException {
         Objects.requireNonNull(b);
@@ -46,7 +71,15 @@ public class ServletInputStream extends javax.servlet.ServletInputStream impleme
     @Override
     public boolean isFinished() {
         checkNotClosed();
-        return source.readableBytes() == 0;
+        if(source != null && source.isReadable()){
+            return false;
+        }
+        if(!streaming){
+            return true;
+        }
+        synchronized (contentQueue) {
+            return receiveLastContent && contentQueue.isEmpty();
+        }
     }
 
     /**
@@ -55,7 +88,15 @@ public class ServletInputStream extends javax.servlet.ServletInputStream impleme
     @Override
     public boolean isReady() {
         checkNotClosed();
-        return source.readableBytes() > 0;
+        if(source != null && source.isReadable()){
+            return true;
+        }
+        if(!streaming){
+            return false;
+        }
+        synchronized (contentQueue) {
+            return !contentQueue.isEmpty();
+        }
     }
 
     @Override
@@ -63,6 +104,9 @@ public class ServletInputStream extends javax.servlet.ServletInputStream impleme
         checkNotClosed();
         Objects.requireNonNull(readListener);
         this.readListener = readListener;
+        if(streaming && isReady()){
+            notifyDataAvailable(readListener);
+        }
     }
 
     /**
@@ -71,8 +115,16 @@ public class ServletInputStream extends javax.servlet.ServletInputStream impleme
     @Override
     public long skip(long n) throws IOException {
         checkNotClosed();
-        long skipLen = Math.min(source.readableBytes(), n); //实际可以跳过的字节数
-        source.skipBytes((int) skipLen);
+        long skipLen = 0;
+        while (skipLen < n){
+            ByteBuf byteBuf = awaitReadableContent();
+            if(byteBuf == null){
+                break;
+            }
+            int len = (int) Math.min(byteBuf.readableBytes(), n - skipLen); //实际可以跳过的字节数
+            byteBuf.skipBytes(len);
+            skipLen += len;
+        }
         return skipLen;
     }
 
@@ -81,7 +133,13 @@ public class ServletInputStream extends javax.servlet.ServletInputStream impleme
      */
     @Override
     public int available() throws IOException {
-        return null == source ? 0 : source.readableBytes();
+        int available = null == source ? 0 : source.readableBytes();
+        if(streaming){
+            synchronized (contentQueue) {
+                available += queueBytes;
+            }
+        }
+        return available;
     }
 
     @Override
@@ -89,7 +147,15 @@ public class ServletInputStream extends javax.servlet.ServletInputStream impleme
         if (closed.compareAndSet(false,true)) {
             if(source != null && source.refCnt() > 0){
                 ReferenceCountUtil.safeRelease(source);
-                source = null;
+            }
+            source = null;
+            if(streaming) {
+                synchronized (contentQueue) {
+                    releaseQueue();
+                    //剩下没读的内容会被丢弃, 需要让连接继续读取, 否则下一个请求就卡住了
+                    resumeAutoRead();
+                    contentQueue.notifyAll();
+                }
             }
         }
     }
@@ -104,13 +170,13 @@ public class ServletInputStream extends javax.servlet.ServletInputStream impleme
         if (0 == len) {
             return 0;
         }
-        if (isFinished()) {
+        ByteBuf byteBuf = awaitReadableContent();
+        if (byteBuf == null) {
             return -1;
         }
-        ByteBuf byteBuf = readContent(len);//读取len个字节
-        int readableBytes = byteBuf.readableBytes();
+        int readableBytes = Math.min(len, byteBuf.readableBytes());
         byteBuf.readBytes(b, off, readableBytes);//复制到b
-        return readableBytes - byteBuf.readableBytes();//返回实际读取的字节数
+        return readableBytes;//返回实际读取的字节数
     }
 
     /**
@@ -118,21 +184,91 @@ public class ServletInputStream extends javax.servlet.ServletInputStream impleme
      */
     @Override
     public int read() throws IOException {
-        if (isFinished()) {
+        ByteBuf byteBuf = awaitReadableContent();
+        if (byteBuf == null) {
             return -1;
         }
-        return readContent(1).getByte(0);
+        return byteBuf.readByte() & 0xFF;
     }
 
     /**
-     * 从current的HttpContent中读取length个字节
+     * 读取剩下的全部内容 (用于表单这种需要完整内容才能解析的场景)
+     * @return 剩余内容, 由调用者释放
+     * @throws IOException 连接中断
      */
-    private ByteBuf readContent(int length) {
-        if (length < source.readableBytes()) {
-            return source.readSlice(length);
-        } else {
+    public ByteBuf readRemainingContent() throws IOException {
+        checkNotClosed();
+        if(!streaming){
+            ByteBuf remaining = source.retainedSlice();
+            source.skipBytes(source.readableBytes());
+            return remaining;
+        }
+
+        CompositeByteBuf composite = Unpooled.compositeBuffer(Integer.MAX_VALUE);
+        ByteBuf byteBuf;
+        while ((byteBuf = awaitReadableContent()) != null){
+            composite.addComponent(true,byteBuf.retainedSlice());
+            byteBuf.skipBytes(byteBuf.readableBytes());
+        }
+        return composite;
+    }
+
+    /**
+     * 读取下一块内容 (用于multipart这种可以边收边解析的场景, 不会把整个请求体放进内存)
+     * @return 内容, 由调用者释放. null=读取完毕
+     * @throws IOException 连接中断
+     */
+    public ByteBuf readContentChunk() throws IOException {
+        ByteBuf byteBuf = awaitReadableContent();
+        if(byteBuf == null){
+            return null;
+        }
+        ByteBuf chunk = byteBuf.retainedSlice();
+        byteBuf.skipBytes(byteBuf.readableBytes());
+        return chunk;
+    }
+
+    /**
+     * 获取当前可读的内容, 流式模式下如果队列为空则等待io线程放入新内容
+     * @return 可读的内容, null=读取完毕
+     */
+    private ByteBuf awaitReadableContent() throws IOException {
+        checkNotClosed();
+        if(source != null && source.isReadable()){
             return source;
         }
+        if(!streaming){
+            return null;
+        }
+
+        ByteBuf next;
+        synchronized (contentQueue) {
+            while (contentQueue.isEmpty()){
+                if(abortCause != null){
+                    throw abortCause;
+                }
+                if(receiveLastContent || closed.get()){
+                    return null;
+                }
+                try {
+                    contentQueue.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("读取请求内容时被中断",e);
+                }
+            }
+            next = contentQueue.poll();
+            queueBytes -= next.readableBytes();
+            if(pauseAutoRead && queueBytes <= Optimize.getServletStreamRequestLowWaterMark()){
+                resumeAutoRead();
+            }
+        }
+
+        if(source != null){
+            ReferenceCountUtil.safeRelease(source);
+        }
+        source = next;
+        return next;
     }
 
     private void checkNotClosed() {
@@ -153,6 +289,113 @@ public class ServletInputStream extends javax.servlet.ServletInputStream impleme
         this.source = source;
         this.contentLength = source.capacity();
         this.readListener = null;
+        this.streaming = false;
+    }
+
+    /**
+     * 切换为流式模式, 之后的内容由 {@link #onContent(ByteBuf, boolean)} 陆续放入
+     * @param channel 用于背压控制的连接
+     * @param contentLength 请求头中的内容长度, 没有则为-1
+     */
+    public void wrapStream(Channel channel, long contentLength) {
+        Objects.requireNonNull(channel);
+
+        this.closed.set(false);
+        this.source = null;
+        this.contentLength = contentLength;
+        this.readListener = null;
+        synchronized (contentQueue) {
+            this.streaming = true;
+            this.channel = channel;
+            this.queueBytes = 0;
+            this.receiveLastContent = false;
+            this.pauseAutoRead = false;
+            this.abortCause = null;
+        }
+    }
+
+    /**
+     * io线程放入一块请求内容 (流式模式)
+     * @param content 内容, 所有权交给输入流
+     * @param last 是否是最后一块
+     */
+    public void onContent(ByteBuf content, boolean last) {
+        ReadListener readListener;
+        synchronized (contentQueue) {
+            if(closed.get() || !streaming){
+                ReferenceCountUtil.safeRelease(content);
+                return;
+            }
+            if(content.isReadable()) {
+                contentQueue.offer(content);
+                queueBytes += content.readableBytes();
+            }else {
+                ReferenceCountUtil.safeRelease(content);
+            }
+            if(last){
+                receiveLastContent = true;
+            }
+            //积压超过高水位, 暂停从socket读取, 等servlet读到低水位再恢复
+            if(!pauseAutoRead && queueBytes > Optimize.getServletStreamRequestHighWaterMark()){
+                pauseAutoRead = true;
+                channel.config().setAutoRead(false);
+            }
+            contentQueue.notifyAll();
+            readListener = this.readListener;
+        }
+
+        if(readListener != null){
+            notifyDataAvailable(readListener);
+            if(last){
+                try {
+                    readListener.onAllDataRead();
+                } catch (Throwable throwable) {
+                    readListener.onError(throwable);
+                }
+            }
+        }
+    }
+
+    /**
+     * 连接在内容接收完之前断开了 (流式模式)
+     * @param cause 原因
+     */
+    public void onAbort(Throwable cause) {
+        ReadListener readListener;
+        synchronized (contentQueue) {
+            if(!streaming || receiveLastContent){
+                return;
+            }
+            abortCause = cause instanceof IOException? (IOException) cause : new IOException(cause);
+            contentQueue.notifyAll();
+            readListener = this.readListener;
+        }
+        if(readListener != null){
+            readListener.onError(cause);
+        }
+    }
+
+    private void notifyDataAvailable(ReadListener readListener){
+        try {
+            readListener.onDataAvailable();
+        } catch (Throwable throwable) {
+            readListener.onError(throwable);
+        }
+    }
+
+    private void resumeAutoRead(){
+        if(pauseAutoRead){
+            pauseAutoRead = false;
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    private void releaseQueue(){
+        ByteBuf byteBuf;
+        while ((byteBuf = contentQueue.poll()) != null){
+            ReferenceCountUtil.safeRelease(byteBuf);
+        }
+        queueBytes = 0;
     }
 
     @Override
@@ -1,24 +1,31 @@
 package com.github.netty.servlet;
 
 import com.github.netty.core.support.CompositeByteBufX;
+import com.github.netty.core.support.Optimize;
+import com.github.netty.core.support.PartialPooledByteBufAllocator;
 import com.github.netty.core.support.Wrapper;
-import com.github.netty.core.util.ByteBufferUtil;
 import com.github.netty.core.util.ExceptionUtil;
 import com.github.netty.servlet.support.ChannelInvoker;
 import com.github.netty.servlet.support.HttpServletObject;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 
 import javax.servlet.WriteListener;
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
  * 需要对keep-alive的支持
+ *
+ * 内容先放在缓冲区里, 不超过缓冲区大小的响应在关闭时一次性写出 (带Content-Length).
+ * 超过缓冲区大小或者调用了flushBuffer(), 就先提交响应头, 之后按分段(chunked)写出
  * @author 84215
  */
 public class ServletOutputStream extends javax.servlet.ServletOutputStream implements Wrapper<CompositeByteBufX>{
@@ -29,7 +36,16 @@ public class ServletOutputStream extends javax.servlet.ServletOutputStream imple
     //监听器，暂时没处理
     private WriteListener writeListener;
     private CompositeByteBufX source;
+    //正在合并小写入的内存块
+    private ByteBuf chunk;
     private HttpServletObject httpServletObject;
+    //缓冲区大小, 超过后转为分段写出
+    private int bufferSize = Optimize.getServletResponseBufferSize();
+    //是否已经提交了响应头, 转为分段写出
+    private boolean streaming;
+    //文件响应体, 关闭时代替缓冲区写出
+    private List<Object> fileBodyParts;
+    private long fileBodyLength;
 
     ServletOutputStream() {
     }
@@ -53,6 +69,10 @@ public class ServletOutputStream extends javax.servlet.ServletOutputStream imple
         this.writeListener = writeListener;
     }
 
+    /**
+     * 小的写入复制到池化的堆外内存块里合并, 大的写入直接包装调用者的数组 (零拷贝)
+     * 这样组合缓冲区的组件数量和最后聚集写的代价都是有上限的
+     */
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
         checkClosed();
@@ -61,8 +81,22 @@ public class ServletOutputStream extends javax.servlet.ServletOutputStream imple
             return;
         }
 
-        ByteBuf content = Unpooled.wrappedBuffer(b,off,len);
-        this.source.addComponent(content);
+        if(len >= Optimize.getServletOutputStreamWrapThreshold()){
+            sealChunk();
+            ByteBuf content = Unpooled.wrappedBuffer(b,off,len);
+            this.source.addComponent(true,content);
+        }else {
+            while (len > 0) {
+                ByteBuf chunk = writableChunk();
+                int writeLen = Math.min(len, chunk.writableBytes());
+                chunk.writeBytes(b, off, writeLen);
+                off += writeLen;
+                len -= writeLen;
+            }
+        }
+        if(getContentLength() >= bufferSize){
+            writeBuffer();
+        }
     }
 
     @Override
@@ -72,19 +106,134 @@ public class ServletOutputStream extends javax.servlet.ServletOutputStream imple
 
     @Override
     public void write(int b) throws IOException {
-        int byteLen = 4;
-        byte[] bytes = new byte[byteLen];
-        ByteBufferUtil.setInt(bytes,0,b);
-        write(bytes,0,byteLen);
+        checkClosed();
+
+        writableChunk().writeByte(b);
+        if(getContentLength() >= bufferSize){
+            writeBuffer();
+        }
+    }
+
+    /**
+     * @return 还有剩余空间的内存块, 写满的内存块放进组合缓冲区
+     */
+    private ByteBuf writableChunk(){
+        if(chunk != null && chunk.isWritable()){
+            return chunk;
+        }
+        sealChunk();
+        chunk = PartialPooledByteBufAllocator.INSTANCE.ioBuffer(Optimize.getServletOutputStreamChunkSize());
+        return chunk;
+    }
+
+    /**
+     * 把当前的内存块放进组合缓冲区
+     */
+    private void sealChunk(){
+        if(chunk == null){
+            return;
+        }
+        if(chunk.isReadable()) {
+            source.addComponent(true, chunk);
+        }else {
+            chunk.release();
+        }
+        chunk = null;
     }
 
+    /**
+     * 不提交响应, 只有缓冲区满了或者调用了 {@link ServletHttpServletResponse#flushBuffer()} 才写出.
+     * 否则模板引擎和json框架每次flush都会把小响应变成分段写出
+     */
     @Override
     public void flush() throws IOException {
         checkClosed();
     }
 
+    /**
+     * 提交响应头, 并把缓冲区中的内容写出
+     * @throws IOException 连接已关闭
+     */
+    void flushBuffer() throws IOException {
+        checkClosed();
+        writeBuffer();
+    }
+
+    /**
+     * 丢弃缓冲区中还没写出的内容
+     */
+    void resetBuffer() {
+        if(chunk != null){
+            chunk.release();
+            chunk = null;
+        }
+        if(source != null && source.refCnt() > 0) {
+            source.release();
+        }
+        source = newBuffer();
+    }
+
+    /**
+     * 用文件作为响应体, 缓冲区中的内容会被丢弃
+     * @param bodyParts 元素是 {@link ByteBuf} 或者 {@link com.github.netty.servlet.support.FileRange}
+     * @param contentLength 响应体总长度
+     */
+    void setFileBody(List<Object> bodyParts, long contentLength) throws IOException {
+        checkClosed();
+        if(streaming){
+            throw new IllegalStateException("Cannot send file after response has been committed");
+        }
+        resetBuffer();
+        this.fileBodyParts = bodyParts;
+        this.fileBodyLength = contentLength;
+    }
+
+    void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return 缓冲区中还没写出的内容长度
+     */
     public int getContentLength(){
-        return source.capacity();
+        int length = source.readableBytes();
+        if(chunk != null){
+            length += chunk.readableBytes();
+        }
+        return length;
+    }
+
+    private void writeBuffer() throws IOException {
+        if(!streaming){
+            streaming = true;
+            httpServletObject.getHttpServletResponse().markCommitted();
+            channelInvoker.writeHead(httpServletObject);
+        }
+        sealChunk();
+        if(!source.isReadable()){
+            return;
+        }
+
+        ChannelFuture future = channelInvoker.writeContent(httpServletObject, source);
+        source = newBuffer();
+
+        //背压: 发不出去的时候等这一段写完再继续, 不能在io线程上等待
+        Channel channel = httpServletObject.getChannelHandlerContext().channel();
+        if(!channel.isWritable() && !channel.eventLoop().inEventLoop()){
+            future.awaitUninterruptibly();
+        }
+        if(future.isDone() && !future.isSuccess()){
+            throw new IOException("响应写出失败", future.cause());
+        }
+    }
+
+    private static CompositeByteBufX newBuffer(){
+        //缓冲区满了就会写出, 组件数量 = 缓冲区大小 / 内存块大小 + 大的写入次数
+        return new CompositeByteBufX(true,16);
     }
 
     @Override
@@ -106,7 +255,22 @@ public class ServletOutputStream extends javax.servlet.ServletOutputStream imple
     public void close(ChannelFutureListener finishListener) throws IOException {
         if (closed.compareAndSet(false,true)) {
             try {
-                source.writerIndex(source.capacity());
+                sealChunk();
+                if(fileBodyParts != null){
+                    ChannelFutureListener[] finishListeners = finishListener == null? null : new ChannelFutureListener[]{finishListener};
+                    try {
+                        channelInvoker.writeFileAndIfNeedClose(httpServletObject, fileBodyParts, fileBodyLength, finishListeners);
+                    }finally {
+                        //文件响应不用缓冲区
+                        source.release();
+                    }
+                    return;
+                }
+                if(streaming){
+                    ChannelFutureListener[] finishListeners = finishListener == null? null : new ChannelFutureListener[]{finishListener};
+                    channelInvoker.writeLastContentAndIfNeedClose(httpServletObject, source, finishListeners);
+                    return;
+                }
 
 //                ChannelFutureListener releaseListener = newReleaseListener();
 //                ChannelFutureListener[] finishListeners = finishListener == null ?
@@ -116,10 +280,12 @@ public class ServletOutputStream extends javax.servlet.ServletOutputStream imple
 
                 channelInvoker.writeAndReleaseFlushAndIfNeedClose(httpServletObject, source, finishListeners);
             }catch(Throwable e){
+                //响应可能只写了一部分, 不能留给下一个请求. 关闭连接后再结束响应
+                closeChannel(finishListener);
                 ExceptionUtil.printRootCauseStackTrace(e);
                 errorEvent(e);
             }
-        }else {
+        }else if(finishListener != null){
             try {
                 finishListener.operationComplete(null);
             } catch (Exception e) {
@@ -128,6 +294,16 @@ public class ServletOutputStream extends javax.servlet.ServletOutputStream imple
         }
     }
 
+    /**
+     * 关闭连接的操作排在已经提交的写出之后, 回调执行时那些写出不会再用到响应对象
+     */
+    private void closeChannel(ChannelFutureListener finishListener){
+        ChannelFuture closeFuture = httpServletObject.getChannelHandlerContext().channel().close();
+        if(finishListener != null){
+            closeFuture.addListener(finishListener);
+        }
+    }
+
     private ChannelFutureListener newReleaseListener(){
         ChannelFutureListener releaseListener = future -> {
             try {
@@ -158,6 +334,11 @@ public class ServletOutputStream extends javax.servlet.ServletOutputStream imple
     public void wrap(CompositeByteBufX source) {
         this.source = source;
         this.closed.set(false);
+        this.writeListener = null;
+        this.streaming = false;
+        this.fileBodyParts = null;
+        this.fileBodyLength = 0;
+        this.bufferSize = Optimize.getServletResponseBufferSize();
     }
 
     @Override
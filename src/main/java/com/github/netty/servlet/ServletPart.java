@@ -0,0 +1,134 @@
+package com.github.netty.servlet;
+
+import com.github.netty.core.constants.HttpHeaderConstants;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.handler.codec.http.multipart.FileUpload;
+import io.netty.handler.codec.http.multipart.HttpData;
+
+import javax.servlet.http.Part;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * multipart/form-data 请求中的一部分 (普通字段或上传的文件)
+ * 内容小于阈值的在内存里, 超过的在临时文件里, 临时文件在请求结束时删除
+ * @author 84215
+ */
+public class ServletPart implements Part {
+
+    private static final String CONTENT_DISPOSITION = "content-disposition";
+    private static final String CONTENT_TYPE = HttpHeaderConstants.CONTENT_TYPE.toString().toLowerCase();
+
+    private final HttpData data;
+    private final String location;
+
+    ServletPart(HttpData data, String location) {
+        this.data = data;
+        this.location = location;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        //不能调用磁盘数据的getByteBuf(), 会把整个文件读进内存
+        if(data.isInMemory()){
+            return new ByteBufInputStream(data.getByteBuf().duplicate());
+        }
+        return new FileInputStream(data.getFile());
+    }
+
+    @Override
+    public String getContentType() {
+        return data instanceof FileUpload? ((FileUpload) data).getContentType() : null;
+    }
+
+    @Override
+    public String getName() {
+        return data.getName();
+    }
+
+    @Override
+    public String getSubmittedFileName() {
+        return data instanceof FileUpload? ((FileUpload) data).getFilename() : null;
+    }
+
+    @Override
+    public long getSize() {
+        return data.length();
+    }
+
+    /**
+     * 保存到文件, 相对路径在上传配置的location下. 磁盘上的临时文件直接移动过去, 不再复制
+     * @param fileName 文件名
+     * @throws IOException 写文件出错
+     */
+    @Override
+    public void write(String fileName) throws IOException {
+        File file = new File(fileName);
+        if(!file.isAbsolute() && location != null && location.length() > 0){
+            file = new File(location, fileName);
+        }
+        if(!data.renameTo(file)){
+            throw new IOException("保存上传的文件失败: " + file);
+        }
+    }
+
+    @Override
+    public void delete() throws IOException {
+        data.delete();
+    }
+
+    @Override
+    public String getHeader(String name) {
+        if(name == null){
+            return null;
+        }
+        String lowerName = name.toLowerCase();
+        if(CONTENT_DISPOSITION.equals(lowerName)){
+            StringBuilder builder = new StringBuilder("form-data; name=\"").append(getName()).append('"');
+            String filename = getSubmittedFileName();
+            if(filename != null){
+                builder.append("; filename=\"").append(filename).append('"');
+            }
+            return builder.toString();
+        }
+        if(CONTENT_TYPE.equals(lowerName)){
+            return getContentType();
+        }
+        return null;
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+        String value = getHeader(name);
+        return value == null? Collections.emptyList() : Collections.singletonList(value);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        List<String> headerNames = new ArrayList<>(2);
+        headerNames.add(CONTENT_DISPOSITION);
+        if(getContentType() != null){
+            headerNames.add(CONTENT_TYPE);
+        }
+        return headerNames;
+    }
+
+    @Override
+    public String toString() {
+        return "ServletPart{" + getName() + ", size=" + getSize() + (data.isInMemory()? ", memory}" : ", file=" + getFileName() + "}");
+    }
+
+    private String getFileName(){
+        try {
+            return data.getFile().getName();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
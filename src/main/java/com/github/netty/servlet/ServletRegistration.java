@@ -1,7 +1,11 @@
 package com.github.netty.servlet;
 
+import com.github.netty.core.support.LatencyHistogram;
+
 import javax.servlet.*;
+import javax.servlet.annotation.MultipartConfig;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -18,6 +22,10 @@ public class ServletRegistration implements javax.servlet.ServletRegistration, j
     private ServletRegistration self;
     private Set<String> mappingSet;
     private boolean asyncSupported;
+    private MultipartConfigElement multipartConfigElement;
+    private LatencyHistogram latencyHistogram;
+    //key=url规则
+    private final Map<String,LatencyHistogram> mappingLatencyHistogramMap = new ConcurrentHashMap<>();
 
     public ServletRegistration(String servletName, Servlet servlet,ServletContext servletContext) {
         this.servletName = servletName;
@@ -28,6 +36,12 @@ public class ServletRegistration implements javax.servlet.ServletRegistration, j
         this.asyncSupported = false;
         this.self = this;
 
+        //servlet类上的 @MultipartConfig 注解, 之后可以被setMultipartConfig覆盖
+        MultipartConfig multipartConfig = servlet == null? null : servlet.getClass().getAnnotation(MultipartConfig.class);
+        if(multipartConfig != null){
+            this.multipartConfigElement = new MultipartConfigElement(multipartConfig);
+        }
+
         this.servletConfig = new ServletConfig() {
             @Override
             public String getServletName() {
@@ -59,15 +73,44 @@ public class ServletRegistration implements javax.servlet.ServletRegistration, j
         return servlet;
     }
 
+    /**
+     * @return servlet的service()耗时
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        if(latencyHistogram == null){
+            latencyHistogram = LatencyHistogram.get("servlet:" + servletName);
+        }
+        return latencyHistogram;
+    }
+
+    /**
+     * @param urlPattern 匹配到这个servlet的url规则
+     * @return 这个url规则的耗时 (过滤器+servlet)
+     */
+    public LatencyHistogram getMappingLatencyHistogram(String urlPattern) {
+        LatencyHistogram histogram = mappingLatencyHistogramMap.get(urlPattern);
+        if(histogram == null){
+            histogram = mappingLatencyHistogramMap.computeIfAbsent(urlPattern, k -> LatencyHistogram.get("mapping:" + k));
+        }
+        return histogram;
+    }
+
     public boolean isAsyncSupported() {
         return asyncSupported;
     }
 
+    /**
+     * @return 上传文件的配置, null=没有配置
+     */
+    public MultipartConfigElement getMultipartConfigElement() {
+        return multipartConfigElement;
+    }
+
     @Override
     public Set<String> addMapping(String... urlPatterns) {
         mappingSet.addAll(Arrays.asList(urlPatterns));
         for(String pattern : urlPatterns) {
-            servletContext.addServletMapping(pattern,servletName,servlet);
+            servletContext.addServletMapping(pattern,servletName,this);
         }
         return mappingSet;
     }
@@ -127,7 +170,7 @@ public class ServletRegistration implements javax.servlet.ServletRegistration, j
 
     @Override
     public void setMultipartConfig(MultipartConfigElement multipartConfig) {
-
+        this.multipartConfigElement = multipartConfig;
     }
 
     @Override
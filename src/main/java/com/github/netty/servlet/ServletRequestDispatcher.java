@@ -1,5 +1,6 @@
 package com.github.netty.servlet;
 
+import com.github.netty.core.support.AbstractRecyclable;
 import com.github.netty.core.support.AbstractRecycler;
 import com.github.netty.core.support.Recyclable;
 import com.github.netty.core.util.TodoOptimize;
@@ -13,7 +14,7 @@ import java.io.IOException;
  * @author acer01
  *  2018/7/14/014
  */
-public class ServletRequestDispatcher implements RequestDispatcher,Recyclable {
+public class ServletRequestDispatcher extends AbstractRecyclable implements RequestDispatcher {
 
     private FilterChain filterChain;
 
@@ -64,6 +65,7 @@ public class ServletRequestDispatcher implements RequestDispatcher,Recyclable {
     }
 
     public void dispatch(ServletRequest request, ServletResponse response,DispatcherType dispatcherType) throws ServletException, IOException {
+        ensureNotRecycled();
         try {
             request.setAttribute(ServletHttpServletRequest.DISPATCHER_TYPE, dispatcherType);
             filterChain.doFilter(request, response);
@@ -74,6 +76,9 @@ public class ServletRequestDispatcher implements RequestDispatcher,Recyclable {
 
     @Override
     public void recycle() {
+        if(filterChain instanceof Recyclable){
+            ((Recyclable) filterChain).recycle();
+        }
         filterChain = null;
         RECYCLER.recycle(this);
     }
@@ -5,8 +5,9 @@ import com.github.netty.core.NettyHttpRequest;
 import com.github.netty.core.NettyHttpResponse;
 import com.github.netty.core.constants.HttpConstants;
 import com.github.netty.core.constants.HttpHeaderConstants;
+import com.github.netty.core.support.AbstractRecyclable;
 import com.github.netty.core.support.AbstractRecycler;
-import com.github.netty.core.support.Recyclable;
+import com.github.netty.core.support.Optimize;
 import com.github.netty.servlet.ServletHttpServletRequest;
 import com.github.netty.servlet.ServletHttpServletResponse;
 import com.github.netty.servlet.ServletHttpSession;
@@ -14,14 +15,28 @@ import com.github.netty.core.util.ExceptionUtil;
 import com.github.netty.core.util.HttpHeaderUtil;
 import com.github.netty.servlet.util.ServletUtil;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.DefaultHttpContent;
 import io.netty.handler.codec.http.DefaultLastHttpContent;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.util.ReferenceCountUtil;
 
 import javax.servlet.http.Cookie;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -33,6 +48,8 @@ public class ChannelInvoker {
 
     private static final StringBuilder SESSION_COOKIE_1 = new StringBuilder(HttpConstants.JSESSION_ID_COOKIE + "=");
     private static final StringBuilder SESSION_COOKIE_2 = new StringBuilder(";" + HttpHeaderConstants.PATH + "=/;" + HttpHeaderConstants.HTTPONLY);
+    //ssl下每次从文件读取的大小
+    private static final int CHUNKED_FILE_SIZE = 8192;
 
     public void writeAndReleaseFlushAndIfNeedClose(HttpServletObject httpServletObject, ByteBuf content, ChannelFutureListener[] finishListeners) {
         ChannelHandlerContext context = httpServletObject.getChannelHandlerContext();
@@ -43,29 +60,202 @@ public class ChannelInvoker {
 
         boolean isKeepAlive = HttpHeaderUtil.isKeepAlive(nettyRequest);
 
+        if(isNeedCompress(nettyRequest,nettyResponse,servletResponse,content)){
+            ByteBuf compressContent = ResponseCompressor.gzip(context.alloc(),content);
+            content.release();
+            content = compressContent;
+
+            HttpHeaders headers = nettyResponse.headers();
+            headers.set(HttpHeaderConstants.CONTENT_ENCODING, HttpHeaderConstants.GZIP);
+            headers.add(HttpHeaderConstants.VARY, HttpHeaderConstants.ACCEPT_ENCODING);
+            //业务设置的是压缩前的长度
+            headers.remove(HttpHeaderConstants.CONTENT_LENGTH);
+        }
+
         settingResponse(isKeepAlive,content.readableBytes(),nettyResponse,servletRequest,servletResponse);
-        writeResponse(isKeepAlive,context,nettyResponse,content,finishListeners);
+        writeResponse(isKeepAlive,httpServletObject,nettyResponse,content,finishListeners);
     }
 
-    private void writeResponse(boolean isKeepAlive,ChannelHandlerContext context,NettyHttpResponse nettyResponse,ByteBuf content,ChannelFutureListener[] finishListeners) {
-        HttpContent httpContent = new DefaultLastHttpContent(content);
+    /**
+     * 是否需要压缩响应 (只用于一次性写出的响应)
+     */
+    private boolean isNeedCompress(NettyHttpRequest nettyRequest, NettyHttpResponse nettyResponse,
+                                   ServletHttpServletResponse servletResponse, ByteBuf content){
+        if(!Optimize.isEnableServletResponseCompress()
+                || content.readableBytes() < Optimize.getServletResponseCompressMinSize()){
+            return false;
+        }
+        HttpHeaders headers = nettyResponse.headers();
+        if(headers.contains(HttpHeaderConstants.CONTENT_ENCODING)
+                || HttpMethod.HEAD.equals(nettyRequest.method())){
+            return false;
+        }
+        return ResponseCompressor.isCompressible(servletResponse.getContentType())
+                && ResponseCompressor.isAcceptGzip(nettyRequest.headers().get(HttpHeaderConstants.ACCEPT_ENCODING));
+    }
 
-        ChannelFutureListener flushListener = null;
-        if(finishListeners != null && finishListeners.length == 0) {
-            flushListener = ChannelFutureFlushListener.newInstance(isKeepAlive,finishListeners);
+    /**
+     * 提交响应头, 之后的内容以分段(chunked)的方式写出
+     * 注: 如果业务自己设置了Content-Length, 则按照Content-Length写出, 不再分段
+     * @param httpServletObject
+     */
+    public void writeHead(HttpServletObject httpServletObject) {
+        ChannelHandlerContext context = httpServletObject.getChannelHandlerContext();
+        ServletHttpServletRequest servletRequest = httpServletObject.getHttpServletRequest();
+        ServletHttpServletResponse servletResponse = httpServletObject.getHttpServletResponse();
+        NettyHttpRequest nettyRequest = servletRequest.getNettyRequest();
+        NettyHttpResponse nettyResponse = servletResponse.getNettyResponse();
+
+        boolean isKeepAlive = HttpHeaderUtil.isKeepAlive(nettyRequest);
+        if(!HttpHeaderUtil.isContentLengthSet(nettyResponse)){
+            if(nettyRequest.protocolVersion().isKeepAliveDefault()) {
+                HttpHeaderUtil.setTransferEncodingChunked(nettyResponse, true);
+            }else {
+                //http1.0不支持分段, 只能用关闭连接来表示响应结束
+                isKeepAlive = false;
+            }
         }
 
-        context.write(nettyResponse, context.voidPromise());
-        ChannelFuture flushChannelFuture = context.writeAndFlush(httpContent);
-        if(flushListener != null) {
-            flushChannelFuture.addListener(flushListener);
+        settingResponse(isKeepAlive,-1,nettyResponse,servletRequest,servletResponse);
+        context.write(sequenced(httpServletObject,nettyResponse), context.voidPromise());
+    }
+
+    /**
+     * 写出一段响应内容 (需要先调用 {@link #writeHead(HttpServletObject)})
+     * @param httpServletObject
+     * @param content 内容, 写出后自动释放
+     * @return 写出的回调
+     */
+    public ChannelFuture writeContent(HttpServletObject httpServletObject, ByteBuf content) {
+        ChannelHandlerContext context = httpServletObject.getChannelHandlerContext();
+        return context.writeAndFlush(sequenced(httpServletObject,new DefaultHttpContent(content)));
+    }
+
+    /**
+     * 写出最后一段响应内容, 并结束本次响应 (需要先调用 {@link #writeHead(HttpServletObject)})
+     * @param httpServletObject
+     * @param content 内容, 写出后自动释放
+     * @param finishListeners 响应结束的回调
+     */
+    public void writeLastContentAndIfNeedClose(HttpServletObject httpServletObject, ByteBuf content, ChannelFutureListener[] finishListeners) {
+        ChannelHandlerContext context = httpServletObject.getChannelHandlerContext();
+        NettyHttpResponse nettyResponse = httpServletObject.getHttpServletResponse().getNettyResponse();
+        boolean isKeepAlive = !HttpHeaderConstants.CLOSE.toString().equalsIgnoreCase(
+                String.valueOf(nettyResponse.headers().get(HttpHeaderConstants.CONNECTION)));
+
+        ChannelFuture flushChannelFuture = context.writeAndFlush(sequenced(httpServletObject,new DefaultLastHttpContent(content)));
+        addFlushListener(isKeepAlive,flushChannelFuture,finishListeners);
+    }
+
+    /**
+     * 写出文件内容, 并结束本次响应.
+     * 明文连接用sendfile (DefaultFileRegion) 直接从文件写到socket, ssl连接和http2的流由ChunkedWriteHandler分段读取文件写出
+     * 文件都打开之后才写出响应头, 有文件打不开时抛出异常, 不会只写出一个响应头
+     * @param httpServletObject
+     * @param bodyParts 响应体, 元素是 {@link ByteBuf} (写出后自动释放) 或者 {@link FileRange}
+     * @param contentLength 响应体总长度
+     * @param finishListeners 响应结束的回调
+     */
+    public void writeFileAndIfNeedClose(HttpServletObject httpServletObject, List<Object> bodyParts, long contentLength, ChannelFutureListener[] finishListeners) throws IOException {
+        ChannelHandlerContext context = httpServletObject.getChannelHandlerContext();
+        ServletHttpServletRequest servletRequest = httpServletObject.getHttpServletRequest();
+        ServletHttpServletResponse servletResponse = httpServletObject.getHttpServletResponse();
+        NettyHttpRequest nettyRequest = servletRequest.getNettyRequest();
+        NettyHttpResponse nettyResponse = servletResponse.getNettyResponse();
+
+        boolean isKeepAlive = HttpHeaderUtil.isKeepAlive(nettyRequest);
+        HttpHeaderUtil.setContentLength(nettyResponse, contentLength);
+        settingResponse(isKeepAlive,-1,nettyResponse,servletRequest,servletResponse);
+
+        //http2的流是子channel, 帧需要经过编码, 也不能用sendfile
+        boolean zeroCopy = context.pipeline().get(SslHandler.class) == null && !(context.channel() instanceof Http2StreamChannel);
+        List<Object> bodyMessages = openBodyParts(bodyParts, zeroCopy);
+        context.write(sequenced(httpServletObject,nettyResponse), context.voidPromise());
+        for(Object message : bodyMessages){
+            context.write(sequenced(httpServletObject,message), context.voidPromise());
         }
+        ChannelFuture flushChannelFuture = context.writeAndFlush(sequenced(httpServletObject,LastHttpContent.EMPTY_LAST_CONTENT));
+        addFlushListener(isKeepAlive,flushChannelFuture,finishListeners);
+    }
+
+    /**
+     * 把响应体转成要写出的消息, 每段文件单独打开, 写完后由FileRegion或者ChunkedInput自己关闭
+     * @throws IOException 有文件打不开. 这时已经打开的文件都会关闭, 内存块都会释放
+     */
+    private List<Object> openBodyParts(List<Object> bodyParts, boolean zeroCopy) throws IOException {
+        List<Object> messages = new ArrayList<>(bodyParts.size());
+        try {
+            for(Object part : bodyParts){
+                if(part instanceof ByteBuf){
+                    messages.add(new DefaultHttpContent((ByteBuf) part));
+                    continue;
+                }
+                FileRange range = (FileRange) part;
+                FileChannel fileChannel = new RandomAccessFile(range.getFile(), "r").getChannel();
+                try {
+                    if(zeroCopy){
+                        messages.add(new DefaultFileRegion(fileChannel, range.getOffset(), range.getLength()));
+                    }else {
+                        ChunkedNioFile chunkedFile = new ChunkedNioFile(fileChannel, range.getOffset(), range.getLength(), CHUNKED_FILE_SIZE);
+                        messages.add(new ChunkedHttpContentInput(chunkedFile));
+                    }
+                }catch (IOException | RuntimeException e){
+                    fileChannel.close();
+                    throw e;
+                }
+            }
+            return messages;
+        }catch (IOException | RuntimeException e){
+            for(Object message : messages){
+                closeBodyMessage(message);
+            }
+            //还没有转成消息的内存块
+            for(int i = messages.size(); i < bodyParts.size(); i++){
+                ReferenceCountUtil.safeRelease(bodyParts.get(i));
+            }
+            throw e;
+        }
+    }
+
+    private void closeBodyMessage(Object message){
+        if(message instanceof ChunkedInput){
+            try {
+                ((ChunkedInput) message).close();
+            } catch (Exception e) {
+                ExceptionUtil.printRootCauseStackTrace(e);
+            }
+        }else {
+            //DefaultFileRegion释放时关闭文件
+            ReferenceCountUtil.safeRelease(message);
+        }
+    }
+
+    private void writeResponse(boolean isKeepAlive,HttpServletObject httpServletObject,NettyHttpResponse nettyResponse,ByteBuf content,ChannelFutureListener[] finishListeners) {
+        ChannelHandlerContext context = httpServletObject.getChannelHandlerContext();
+        HttpContent httpContent = new DefaultLastHttpContent(content);
+
+        context.write(sequenced(httpServletObject,nettyResponse), context.voidPromise());
+        ChannelFuture flushChannelFuture = context.writeAndFlush(sequenced(httpServletObject,httpContent));
+        addFlushListener(isKeepAlive,flushChannelFuture,finishListeners);
+    }
+
+    /**
+     * 管道化的请求需要给消息带上编号, 由 {@link HttpResponseSequencer} 按请求顺序写出
+     */
+    private Object sequenced(HttpServletObject httpServletObject, Object message){
+        int sequence = httpServletObject.getResponseSequence();
+        return sequence < 0? message : HttpResponseSequencer.wrap(sequence, message);
+    }
+
+    private void addFlushListener(boolean isKeepAlive,ChannelFuture flushChannelFuture,ChannelFutureListener[] finishListeners){
+        //写出失败或者不保持连接的时候, 即使没有回调也需要关闭连接
+        flushChannelFuture.addListener(ChannelFutureFlushListener.newInstance(isKeepAlive,finishListeners));
     }
 
     /**
      * 设置基本的请求头
      * @param isKeepAlive 保持连接
-     * @param totalLength 总内容长度
+     * @param totalLength 总内容长度 (-1 = 分段写出, 不设置长度)
      * @param nettyResponse netty响应
      * @param servletRequest servlet请求
      * @param servletResponse servlet响应
@@ -74,7 +264,7 @@ public class ChannelInvoker {
                                 ServletHttpServletRequest servletRequest, ServletHttpServletResponse servletResponse) {
         HttpHeaderUtil.setKeepAlive(nettyResponse, isKeepAlive);
 
-        if (isKeepAlive && !HttpHeaderUtil.isContentLengthSet(nettyResponse)) {
+        if (isKeepAlive && totalLength >= 0 && !HttpHeaderUtil.isContentLengthSet(nettyResponse)) {
             HttpHeaderUtil.setContentLength(nettyResponse, totalLength);
         }
 
@@ -84,27 +274,20 @@ public class ChannelInvoker {
 
         HttpHeaders headers = nettyResponse.headers();
         if (null != contentType) {
-            //Content Type 响应头的内容
-            String value = (null == characterEncoding) ? contentType :
-                    new StringBuilder(contentType)
-                            .append(';')
-                            .append(HttpHeaderConstants.CHARSET)
-                            .append('=')
-                            .append(characterEncoding).toString();
-
-            headers.set(HttpHeaderConstants.CONTENT_TYPE, value);
-        }
-        // 时间日期响应头
-        headers.set(HttpHeaderConstants.DATE, ServletUtil.newDateGMT());
+            //Content Type 响应头的内容 (相同的组合只拼接一次)
+            headers.set(HttpHeaderConstants.CONTENT_TYPE, ServletUtil.getContentTypeHeader(contentType, characterEncoding));
+        }
+        // 时间日期响应头 (每秒格式化一次)
+        headers.set(HttpHeaderConstants.DATE, ServletUtil.getDateHeader());
         //服务器信息响应头
-        headers.set(HttpHeaderConstants.SERVER, servletRequest.getServletContext().getServerInfo());
+        headers.set(HttpHeaderConstants.SERVER, servletRequest.getServletContext().getServerHeader());
 
         // cookies处理
         //long curTime = System.currentTimeMillis(); //用于根据maxAge计算Cookie的Expires
-        //先处理Session ，如果是新Session 或 session失效 需要通过Cookie写入
-        ServletHttpSession httpSession = servletRequest.getSession(true);
-        if (httpSession.isNew()) {
-            String cookieStr = new StringBuilder(SESSION_COOKIE_1).append(servletRequest.getRequestedSessionId()).append(SESSION_COOKIE_2).toString();
+        //先处理Session, 只有业务在本次请求中创建了新Session才需要通过Cookie写入 (不主动创建Session)
+        ServletHttpSession httpSession = servletRequest.getSessionIfActive();
+        if (httpSession != null && httpSession.isNew()) {
+            String cookieStr = new StringBuilder(SESSION_COOKIE_1).append(httpSession.getId()).append(SESSION_COOKIE_2).toString();
             headers.add(HttpHeaderConstants.SET_COOKIE, cookieStr);
         }
 
@@ -118,10 +301,53 @@ public class ChannelInvoker {
         }
     }
 
+    /**
+     * 把文件块包装成HttpContent, 这样一个响应里可以有多段文件 (HttpChunkedInput结尾会多写一个LastHttpContent)
+     */
+    private static class ChunkedHttpContentInput implements ChunkedInput<HttpContent> {
+        private final ChunkedInput<ByteBuf> input;
+
+        private ChunkedHttpContentInput(ChunkedInput<ByteBuf> input) {
+            this.input = input;
+        }
+
+        @Override
+        public boolean isEndOfInput() throws Exception {
+            return input.isEndOfInput();
+        }
+
+        @Override
+        public void close() throws Exception {
+            input.close();
+        }
+
+        @Deprecated
+        @Override
+        public HttpContent readChunk(ChannelHandlerContext ctx) throws Exception {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public HttpContent readChunk(ByteBufAllocator allocator) throws Exception {
+            ByteBuf buf = input.readChunk(allocator);
+            return buf == null? null : new DefaultHttpContent(buf);
+        }
+
+        @Override
+        public long length() {
+            return input.length();
+        }
+
+        @Override
+        public long progress() {
+            return input.progress();
+        }
+    }
+
     /**
      * 优化lambda实例数量, 减少gc次数
      */
-    private static class ChannelFutureFlushListener implements ChannelFutureListener,Recyclable{
+    private static class ChannelFutureFlushListener extends AbstractRecyclable implements ChannelFutureListener{
         private boolean isKeepAlive;
         private ChannelFutureListener[] finishListeners;
 
@@ -148,14 +374,21 @@ public class ChannelInvoker {
 
         @Override
         public void operationComplete(ChannelFuture future) throws Exception {
+            ensureNotRecycled();
             try {
-                if(isKeepAlive){
+                //最后一段没写出去, 响应不完整, 连接不能再用
+                if(isKeepAlive && future.isSuccess()){
+                    if(finishListeners == null){
+                        return;
+                    }
                     for(ChannelFutureListener listener : finishListeners){
                         listener.operationComplete(future);
                     }
                 }else {
                     ChannelFuture channelFuture = future.channel().close();
-                    channelFuture.addListeners(finishListeners);
+                    if(finishListeners != null) {
+                        channelFuture.addListeners(finishListeners);
+                    }
                 }
             }catch (Throwable throwable){
                 ExceptionUtil.printRootCauseStackTrace(throwable);
@@ -0,0 +1,59 @@
+package com.github.netty.servlet.support;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.*;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 准入控制, 放在请求体聚合之前, 每个连接一个, 只在io线程上使用
+ *
+ * 收到请求头时如果servlet线程池已经排满, 就不再接收这个请求的请求体 (收到就丢弃, 不聚合也不解析),
+ * 往后传一个空请求体的 {@link RejectedRequest}, 由NettyServletHandler按请求顺序响应503
+ * @author 84215
+ */
+public class DispatchAdmissionHandler extends ChannelInboundHandlerAdapter {
+
+    private final ServletDispatcher dispatcher;
+    //正在丢弃被拒绝的请求的请求体
+    private boolean discarding;
+
+    public DispatchAdmissionHandler(ServletDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if(msg instanceof HttpRequest){
+            discarding = false;
+            if(dispatcher.isOverload()){
+                dispatcher.onReject();
+                HttpRequest request = (HttpRequest) msg;
+                discarding = !(msg instanceof LastHttpContent);
+                RejectedRequest rejectedRequest = new RejectedRequest(request);
+                ReferenceCountUtil.release(msg);
+                ctx.fireChannelRead(rejectedRequest);
+                return;
+            }
+        }else if(discarding && msg instanceof HttpContent){
+            if(msg instanceof LastHttpContent){
+                discarding = false;
+            }
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    /**
+     * 被拒绝的请求, 只有请求头. 是完整请求, 聚合器会直接放行
+     */
+    public static class RejectedRequest extends DefaultFullHttpRequest {
+        public RejectedRequest(HttpRequest request) {
+            super(request.protocolVersion(), request.method(), request.uri(), Unpooled.EMPTY_BUFFER,
+                    request.headers(), EmptyHttpHeaders.INSTANCE);
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.github.netty.servlet.support;
+
+import java.io.File;
+
+/**
+ * 文件中的一段内容, 写出时不经过堆内存 (sendfile或者分段读取)
+ * @author 84215
+ */
+public class FileRange {
+
+    private final File file;
+    private final long offset;
+    private final long length;
+
+    public FileRange(File file, long offset, long length) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return file + "[" + offset + "," + (offset + length) + ")";
+    }
+}
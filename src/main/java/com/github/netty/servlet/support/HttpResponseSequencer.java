@@ -0,0 +1,247 @@
+package com.github.netty.servlet.support;
+
+import com.github.netty.core.support.AbstractRecyclable;
+import com.github.netty.core.support.AbstractRecycler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * http1.1管道化(pipelining)的响应排序, 每个连接一个, 只在io线程上使用
+ *
+ * 同一个连接上连续发来的请求会被派发到执行器并发执行, 先执行完的不一定是先收到的.
+ * 但是http1.1要求响应按请求的顺序返回, 所以收到请求时按顺序编号,
+ * 写出时只有轮到的编号可以直接写, 其他编号的消息先排队, 等前面的响应写完最后一段(LastHttpContent)再依次写出.
+ * 请求处理结束(回收)时还会写一个结束标记 {@link #wrapEnd(int)}, 没有写LastHttpContent就结束的响应(异常, 被放弃的请求)靠它让出位置,
+ * 已经写了一部分的响应后面接不上别的响应了, 只能关闭连接.
+ * 中间响应(100 Continue)不算响应结束. 聚合器直接写的没有编号, 它属于正在接收的、还没编号的下一个请求
+ * @author 84215
+ */
+public class HttpResponseSequencer extends ChannelOutboundHandlerAdapter {
+
+    //下一个请求的编号
+    private int requestSequence;
+    //当前可以写出的编号
+    private int writeSequence;
+    //当前编号的响应是否已经写出了一部分
+    private boolean writeStarted;
+    //还没轮到的响应 key=编号
+    private final Map<Integer,ArrayDeque<PendingWrite>> pendingMap = new HashMap<>(8);
+    //响应结束的标记, 不会写到网络上
+    private static final Object SEQUENCE_END = new Object();
+
+    /**
+     * 给新收到的请求编号 (必须在io线程上按收到的顺序调用)
+     * @return 编号
+     */
+    public int nextRequestSequence() {
+        return requestSequence++;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if(!(msg instanceof SequencedMessage)){
+            if(isInterimResponse(msg)){
+                write(ctx, wrap(requestSequence, msg), promise);
+            }else {
+                ctx.write(msg, promise);
+            }
+            return;
+        }
+
+        SequencedMessage sequencedMessage = (SequencedMessage) msg;
+        int sequence = sequencedMessage.sequence;
+        Object message = sequencedMessage.message;
+        sequencedMessage.recycle();
+
+        //已经结束的编号, 正常写完后的结束标记直接忽略, 其他的是结束后又写的消息, 丢掉
+        if(sequence - writeSequence < 0){
+            if(message != SEQUENCE_END){
+                ReferenceCountUtil.safeRelease(message);
+                promise.tryFailure(new IllegalStateException("response sequence " + sequence + " already finished"));
+            }
+            return;
+        }
+        if(sequence != writeSequence){
+            pendingMap.computeIfAbsent(sequence, k -> new ArrayDeque<>(4)).add(new PendingWrite(message, promise));
+            return;
+        }
+
+        if(message == SEQUENCE_END){
+            if(writeStarted){
+                ctx.close();
+                return;
+            }
+        }else {
+            ctx.write(message, promise);
+            if(!isLast(message)){
+                writeStarted = true;
+                return;
+            }
+        }
+        writeSequence++;
+        writeStarted = false;
+        writePending(ctx);
+    }
+
+    /**
+     * 前一个响应写完了, 把排队的后续响应写出去
+     */
+    private void writePending(ChannelHandlerContext ctx){
+        ArrayDeque<PendingWrite> pendingQueue;
+        boolean written = false;
+        while ((pendingQueue = pendingMap.remove(writeSequence)) != null){
+            boolean finish = false;
+            PendingWrite pendingWrite;
+            while ((pendingWrite = pendingQueue.poll()) != null){
+                if(finish){
+                    release(pendingWrite, null);
+                }else if(pendingWrite.message == SEQUENCE_END){
+                    //没写LastHttpContent就结束了
+                    if(writeStarted){
+                        release(pendingQueue, new ClosedChannelException());
+                        ctx.close();
+                        return;
+                    }
+                    finish = true;
+                }else {
+                    ctx.write(pendingWrite.message, pendingWrite.promise);
+                    written = true;
+                    writeStarted = true;
+                    if (isLast(pendingWrite.message)) {
+                        finish = true;
+                    }
+                }
+            }
+            //这个响应还没写完, 之后的消息会直接写出
+            if(!finish){
+                break;
+            }
+            writeSequence++;
+            writeStarted = false;
+        }
+        //排队期间的flush已经被前面的响应消耗了, 这里补一次
+        if(written){
+            ctx.flush();
+        }
+    }
+
+    /**
+     * @return true = 响应的最后一段. 100 Continue 是FullHttpResponse, 但是后面还有真正的响应
+     */
+    private static boolean isLast(Object message){
+        return message instanceof LastHttpContent && !isInterimResponse(message);
+    }
+
+    private static boolean isInterimResponse(Object message){
+        return message instanceof HttpResponse
+                && ((HttpResponse) message).status().codeClass() == HttpStatusClass.INFORMATIONAL;
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        releasePending();
+        super.close(ctx, promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        releasePending();
+    }
+
+    private void releasePending(){
+        if(pendingMap.isEmpty()){
+            return;
+        }
+        ClosedChannelException cause = new ClosedChannelException();
+        for(ArrayDeque<PendingWrite> pendingQueue : pendingMap.values()){
+            release(pendingQueue, cause);
+        }
+        pendingMap.clear();
+    }
+
+    private static void release(ArrayDeque<PendingWrite> pendingQueue, Throwable cause){
+        PendingWrite pendingWrite;
+        while ((pendingWrite = pendingQueue.poll()) != null){
+            release(pendingWrite, cause);
+        }
+    }
+
+    /**
+     * @param cause null = 响应已经结束之后又写的消息
+     */
+    private static void release(PendingWrite pendingWrite, Throwable cause){
+        if(pendingWrite.message == SEQUENCE_END){
+            return;
+        }
+        ReferenceCountUtil.safeRelease(pendingWrite.message);
+        pendingWrite.promise.tryFailure(cause != null? cause : new IllegalStateException("response already finished"));
+    }
+
+    /**
+     * 包装一条带编号的消息
+     * @param sequence 请求的编号
+     * @param message 原消息
+     * @return 带编号的消息
+     */
+    public static Object wrap(int sequence, Object message) {
+        return SequencedMessage.newInstance(sequence, message);
+    }
+
+    /**
+     * 请求处理结束的标记, 不管响应有没有写完都要写一次 (用voidPromise)
+     * @param sequence 请求的编号
+     * @return 带编号的结束标记
+     */
+    public static Object wrapEnd(int sequence) {
+        return SequencedMessage.newInstance(sequence, SEQUENCE_END);
+    }
+
+    private static class PendingWrite {
+        private final Object message;
+        private final ChannelPromise promise;
+
+        private PendingWrite(Object message, ChannelPromise promise) {
+            this.message = message;
+            this.promise = promise;
+        }
+    }
+
+    /**
+     * 优化实例数量, 减少gc次数
+     */
+    private static class SequencedMessage extends AbstractRecyclable {
+        private int sequence;
+        private Object message;
+
+        private static final AbstractRecycler<SequencedMessage> RECYCLER = new AbstractRecycler<SequencedMessage>() {
+            @Override
+            protected SequencedMessage newInstance() {
+                return new SequencedMessage();
+            }
+        };
+
+        private static SequencedMessage newInstance(int sequence, Object message) {
+            SequencedMessage instance = RECYCLER.get();
+            instance.sequence = sequence;
+            instance.message = message;
+            return instance;
+        }
+
+        @Override
+        public void recycle() {
+            message = null;
+            RECYCLER.recycle(this);
+        }
+    }
+
+}
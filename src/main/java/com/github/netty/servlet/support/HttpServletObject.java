@@ -1,23 +1,35 @@
 package com.github.netty.servlet.support;
 
 import com.github.netty.core.NettyHttpRequest;
+import com.github.netty.core.support.AbstractRecyclable;
 import com.github.netty.core.support.AbstractRecycler;
+import com.github.netty.core.support.Optimize;
 import com.github.netty.core.support.Recyclable;
 import com.github.netty.servlet.ServletContext;
 import com.github.netty.servlet.ServletHttpServletRequest;
 import com.github.netty.servlet.ServletHttpServletResponse;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
 import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
  * @author acer01
  *  2018/8/1/001
  */
-public class HttpServletObject implements Recyclable{
+public class HttpServletObject extends AbstractRecyclable {
 
     private static final AbstractRecycler<HttpServletObject> RECYCLER = new AbstractRecycler<HttpServletObject>() {
         @Override
@@ -30,17 +42,89 @@ public class HttpServletObject implements Recyclable{
     private ServletHttpServletResponse httpServletResponse;
     private ChannelHandlerContext channelHandlerContext;
     private ServletContext servletContext;
+    //管道化请求在连接上的编号, 写出的响应按编号排序. -1 = 不需要排序
+    private int responseSequence = -1;
+
+    /**
+     * http1.1的连接同一时间一般只处理一个请求, 所以每个连接绑定一组对象 (请求, 响应, 输入输出流, session等), 处理完一个请求后留给下一个请求
+     * 管道化并发执行或者异步请求还没结束时, 绑定的对象正在使用, 这时临时创建新的
+     */
+    private static final AttributeKey<HttpServletObject> CHANNEL_BOUND_KEY = AttributeKey.valueOf(HttpServletObject.class + "#ChannelBound");
+    private boolean channelBound;
+    //连接绑定的对象还没回收完的数量 (请求和响应分别回收, 响应在写完之后才回收). 0 = 空闲
+    private final AtomicInteger unrecycledCount = new AtomicInteger();
 
     private HttpServletObject() {
     }
 
     public static HttpServletObject newInstance(ServletContext servletContext, ChannelHandlerContext context, FullHttpRequest fullHttpRequest) {
-        HttpServletObject instance = RECYCLER.get();
+        HttpServletObject instance = acquire(context.channel());
 
         instance.servletContext = servletContext;
         instance.channelHandlerContext = context;
-        instance.httpServletRequest = newHttpServletRequest(instance,fullHttpRequest);
-        instance.httpServletResponse = newHttpServletResponse(instance);
+        if(instance.httpServletRequest == null) {
+            instance.httpServletRequest = newHttpServletRequest(instance, fullHttpRequest);
+            instance.httpServletResponse = newHttpServletResponse(instance);
+        }else {
+            instance.httpServletRequest.init(instance, NettyHttpRequest.newInstance(fullHttpRequest));
+            instance.httpServletResponse.init(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * 优先使用连接绑定的对象 (只在io线程调用)
+     */
+    private static HttpServletObject acquire(Channel channel){
+        if(Optimize.isEnableChannelBoundServletObject() && !(channel instanceof Http2StreamChannel)) {
+            Attribute<HttpServletObject> attribute = channel.attr(CHANNEL_BOUND_KEY);
+            HttpServletObject bound = attribute.get();
+            if (bound == null) {
+                //回收站里可能是上一个连接留下的, 连同请求响应一起复用
+                bound = RECYCLER.get();
+                bound.channelBound = true;
+                attribute.set(bound);
+            }
+            if (bound.unrecycledCount.compareAndSet(0, 2)) {
+                return bound;
+            }
+        }
+        return RECYCLER.get();
+    }
+
+    /**
+     * 连接关闭时, 空闲的绑定对象连同请求响应一起放回回收站, 留给新的连接 (只在io线程调用)
+     * 还在处理请求的不放回, 交给gc
+     */
+    public static void releaseChannelBound(Channel channel){
+        if(!Optimize.isEnableChannelBoundServletObject() || !channel.hasAttr(CHANNEL_BOUND_KEY)){
+            return;
+        }
+        HttpServletObject bound = channel.attr(CHANNEL_BOUND_KEY).getAndSet(null);
+        if(bound != null && bound.unrecycledCount.get() == 0){
+            bound.channelBound = false;
+            RECYCLER.recycle(bound);
+        }
+    }
+
+    /**
+     * 流式模式, 只收到了请求头就创建, 请求体之后由io线程陆续放进输入流
+     * @param servletContext
+     * @param context
+     * @param httpRequest 请求头
+     * @return
+     */
+    public static HttpServletObject newInstance(ServletContext servletContext, ChannelHandlerContext context, HttpRequest httpRequest) {
+        if(httpRequest instanceof FullHttpRequest){
+            return newInstance(servletContext,context,(FullHttpRequest) httpRequest);
+        }
+
+        //共用请求头, 请求体为空, 只是为了复用FullHttpRequest的包装
+        FullHttpRequest headRequest = new DefaultFullHttpRequest(
+                httpRequest.protocolVersion(),httpRequest.method(),httpRequest.uri(),
+                Unpooled.EMPTY_BUFFER,httpRequest.headers(), EmptyHttpHeaders.INSTANCE);
+        HttpServletObject instance = newInstance(servletContext,context,headRequest);
+        instance.httpServletRequest.getInputStream().wrapStream(context.channel(), HttpUtil.getContentLength(httpRequest,-1L));
         return instance;
     }
 
@@ -66,6 +150,7 @@ public class HttpServletObject implements Recyclable{
     }
 
     public ServletHttpServletRequest getHttpServletRequest() {
+        ensureNotRecycled();
         return httpServletRequest;
     }
 
@@ -74,13 +159,44 @@ public class HttpServletObject implements Recyclable{
     }
 
     public ServletHttpServletResponse getHttpServletResponse() {
+        ensureNotRecycled();
         return httpServletResponse;
     }
 
     public ChannelHandlerContext getChannelHandlerContext() {
+        ensureNotRecycled();
         return channelHandlerContext;
     }
 
+    /**
+     * @return 是否是连接绑定的对象 (回收时不放回回收站, 留给连接上的下一个请求)
+     */
+    public boolean isChannelBound() {
+        return channelBound;
+    }
+
+    /**
+     * 响应写完并重置之后调用
+     */
+    public void onResponseRecycled() {
+        unrecycledCount.decrementAndGet();
+    }
+
+    /**
+     * @return 是否是http2的流 (流里的帧转换成了http1.1的对象, 请求上的协议版本还是HTTP/1.1)
+     */
+    public boolean isHttp2() {
+        return channelHandlerContext.channel() instanceof Http2StreamChannel;
+    }
+
+    public int getResponseSequence() {
+        return responseSequence;
+    }
+
+    public void setResponseSequence(int responseSequence) {
+        this.responseSequence = responseSequence;
+    }
+
     public InetSocketAddress getServletServerAddress(){
         return servletContext.getServletServerAddress();
     }
@@ -109,18 +225,30 @@ public class HttpServletObject implements Recyclable{
 
     @Override
     public void recycle() {
-        httpServletResponse.recycle();
+        try {
+            httpServletResponse.recycle();
+        }finally {
+            //不管响应有没有正常写完, 都要让排序器知道这个编号结束了, 否则后面管道化的响应会一直排队
+            if(responseSequence >= 0){
+                channelHandlerContext.write(HttpResponseSequencer.wrapEnd(responseSequence), channelHandlerContext.voidPromise());
+            }
+        }
         httpServletRequest.recycle();
 
         if(channelHandlerContext instanceof Recyclable){
             ((Recyclable) channelHandlerContext).recycle();
         }
 
-        httpServletResponse = null;
-        httpServletRequest = null;
         channelHandlerContext = null;
         servletContext = null;
+        responseSequence = -1;
 
+        if(channelBound){
+            unrecycledCount.decrementAndGet();
+            return;
+        }
+        httpServletResponse = null;
+        httpServletRequest = null;
         RECYCLER.recycle(this);
     }
 
@@ -0,0 +1,298 @@
+package com.github.netty.servlet.support;
+
+import com.github.netty.core.support.Recyclable;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * 请求参数解析 (查询字符串 + application/x-www-form-urlencoded 请求体)
+ *
+ * 1.不复制内容, 直接在uri字符串和请求体ByteBuf上扫描, 只把每个参数名和值的位置记在int数组里, 数组跟着请求对象复用
+ * 2.getParameter时只解码要找的那个参数, getParameterMap时才把全部参数解码成map
+ * 3.查询字符串的参数排在请求体的参数前面 (servlet规范)
+ * 4.查询字符串和请求体都只用'&'分隔参数, ';'是普通字符 (和浏览器提交表单的规则一致, 两边解析结果不会不一样)
+ * 5.查询字符串按容器的默认字符集解码, 请求体按请求的字符集解码 (setCharacterEncoding可以改变)
+ *
+ * @author 84215
+ */
+public class ParameterDecoder implements Recyclable {
+
+    //每个参数占5个int: 来源(0=uri,1=body), 名称开始, 名称结束, 值开始, 值结束
+    private static final int FIELD_COUNT = 5;
+    private static final int SOURCE_URI = 0;
+    private static final int SOURCE_BODY = 1;
+
+    private int[] offsets = new int[FIELD_COUNT * 16];
+    private int count;
+    private String uri;
+    private ByteBuf body;
+    private Charset uriCharset;
+    private Charset bodyCharset;
+    private Map<String,String[]> parameterMap;
+    //解码时用的临时数组
+    private byte[] decodeBuffer;
+
+    /**
+     * 扫描参数的位置
+     * @param uri 请求uri, 包含查询字符串
+     * @param body 表单请求体, 没有则为null. 由解析器负责释放
+     * @param uriCharset 查询字符串的字符集
+     * @param bodyCharset 请求体的字符集
+     */
+    public void decode(String uri, ByteBuf body, Charset uriCharset, Charset bodyCharset) {
+        this.uri = uri;
+        this.body = body;
+        this.uriCharset = uriCharset;
+        this.bodyCharset = bodyCharset;
+        this.count = 0;
+        this.parameterMap = null;
+
+        int queryIndex = uri.indexOf('?');
+        if(queryIndex != -1){
+            int end = uri.indexOf('#', queryIndex);
+            scanUri(queryIndex + 1, end == -1? uri.length() : end);
+        }
+        if(body != null){
+            scanBody(body.readerIndex(), body.writerIndex());
+        }
+    }
+
+    public String getParameter(String name) {
+        if(parameterMap != null){
+            String[] values = parameterMap.get(name);
+            return values == null || values.length == 0? null : values[0];
+        }
+        for (int i = 0; i < count; i++) {
+            if(nameEquals(i, name)){
+                return decodeValue(i);
+            }
+        }
+        return null;
+    }
+
+    public String[] getParameterValues(String name) {
+        if(parameterMap != null){
+            return parameterMap.get(name);
+        }
+        int matchCount = 0;
+        for (int i = 0; i < count; i++) {
+            if(nameEquals(i, name)){
+                matchCount++;
+            }
+        }
+        if(matchCount == 0){
+            return null;
+        }
+        String[] values = new String[matchCount];
+        int valueIndex = 0;
+        for (int i = 0; i < count && valueIndex < matchCount; i++) {
+            if(nameEquals(i, name)){
+                values[valueIndex++] = decodeValue(i);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return 全部参数, 按第一次出现的顺序
+     */
+    public Map<String,String[]> getParameterMap() {
+        if(parameterMap != null){
+            return parameterMap;
+        }
+        Map<String,String[]> parameterMap = new LinkedHashMap<>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            String name = decodeName(i);
+            String value = decodeValue(i);
+            String[] values = parameterMap.get(name);
+            if(values == null){
+                values = new String[]{value};
+            }else {
+                values = Arrays.copyOf(values, values.length + 1);
+                values[values.length - 1] = value;
+            }
+            parameterMap.put(name, values);
+        }
+        this.parameterMap = Collections.unmodifiableMap(parameterMap);
+        return this.parameterMap;
+    }
+
+    @Override
+    public void recycle() {
+        if(body != null){
+            ReferenceCountUtil.safeRelease(body);
+            body = null;
+        }
+        uri = null;
+        uriCharset = null;
+        bodyCharset = null;
+        count = 0;
+        parameterMap = null;
+    }
+
+    private void scanUri(int start, int end){
+        int nameStart = start;
+        int valueStart = -1;
+        for (int i = start; i <= end; i++) {
+            char c = i == end? '&' : uri.charAt(i);
+            if(c == '=' && valueStart == -1){
+                valueStart = i + 1;
+            }else if(c == '&'){
+                addParameter(SOURCE_URI, nameStart, valueStart, i);
+                nameStart = i + 1;
+                valueStart = -1;
+            }
+        }
+    }
+
+    private void scanBody(int start, int end){
+        int nameStart = start;
+        int valueStart = -1;
+        for (int i = start; i <= end; i++) {
+            byte b = i == end? (byte) '&' : body.getByte(i);
+            if(b == '=' && valueStart == -1){
+                valueStart = i + 1;
+            }else if(b == '&'){
+                addParameter(SOURCE_BODY, nameStart, valueStart, i);
+                nameStart = i + 1;
+                valueStart = -1;
+            }
+        }
+    }
+
+    private void addParameter(int source, int nameStart, int valueStart, int end){
+        int nameEnd = valueStart == -1? end : valueStart - 1;
+        //跳过空的参数, 例: a=1&&b=2
+        if(nameEnd == nameStart){
+            return;
+        }
+        int index = count * FIELD_COUNT;
+        if(index + FIELD_COUNT > offsets.length){
+            offsets = Arrays.copyOf(offsets, offsets.length << 1);
+        }
+        offsets[index] = source;
+        offsets[index + 1] = nameStart;
+        offsets[index + 2] = nameEnd;
+        offsets[index + 3] = valueStart == -1? end : valueStart;
+        offsets[index + 4] = end;
+        count++;
+    }
+
+    /**
+     * 参数名没有编码时直接逐个字符比较, 不创建字符串
+     */
+    private boolean nameEquals(int parameterIndex, String name){
+        int index = parameterIndex * FIELD_COUNT;
+        int start = offsets[index + 1];
+        int end = offsets[index + 2];
+        if(offsets[index] == SOURCE_URI){
+            if(!needDecode(uri, start, end) && isAscii(uri, start, end)){
+                return end - start == name.length() && uri.regionMatches(start, name, 0, name.length());
+            }
+        }else if(!needDecode(body, start, end) && isAscii(name, 0, name.length())){
+            if(end - start != name.length()){
+                return false;
+            }
+            for (int i = 0; i < name.length(); i++) {
+                if(body.getByte(start + i) != (byte) name.charAt(i)){
+                    return false;
+                }
+            }
+            return true;
+        }
+        //有编码或者非ascii的名称, 按字符集解码后再比较
+        return name.equals(decodeName(parameterIndex));
+    }
+
+    private String decodeName(int parameterIndex){
+        int index = parameterIndex * FIELD_COUNT;
+        return decode(offsets[index], offsets[index + 1], offsets[index + 2]);
+    }
+
+    private String decodeValue(int parameterIndex){
+        int index = parameterIndex * FIELD_COUNT;
+        return decode(offsets[index], offsets[index + 3], offsets[index + 4]);
+    }
+
+    private String decode(int source, int start, int end){
+        if(start == end){
+            return "";
+        }
+        if(source == SOURCE_URI){
+            if(!needDecode(uri, start, end) && isAscii(uri, start, end)){
+                return uri.substring(start, end);
+            }
+        }else if(!needDecode(body, start, end)){
+            return body.toString(start, end - start, bodyCharset);
+        }
+
+        Charset charset = source == SOURCE_URI? uriCharset : bodyCharset;
+        //把 %xx 和 + 还原成字节, 再按字符集转成字符串
+        byte[] buffer = decodeBuffer;
+        if(buffer == null || buffer.length < (end - start) * 3){
+            buffer = decodeBuffer = new byte[Math.max(64, (end - start) * 3)];
+        }
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            int c = source == SOURCE_URI? uri.charAt(i) : body.getByte(i) & 0xFF;
+            if(c == '+'){
+                buffer[length++] = ' ';
+            }else if(c == '%' && i + 2 < end){
+                int high = hexValue(source, i + 1);
+                int low = hexValue(source, i + 2);
+                if(high == -1 || low == -1){
+                    buffer[length++] = '%';
+                }else {
+                    buffer[length++] = (byte) ((high << 4) | low);
+                    i += 2;
+                }
+            }else if(c > 0xFF){
+                //uri里没有编码的非ascii字符 (netty解析的uri每个字节是一个字符, 一般不会走到这里)
+                byte[] bytes = String.valueOf((char) c).getBytes(charset);
+                System.arraycopy(bytes, 0, buffer, length, bytes.length);
+                length += bytes.length;
+            }else {
+                buffer[length++] = (byte) c;
+            }
+        }
+        return new String(buffer, 0, length, charset);
+    }
+
+    private int hexValue(int source, int index){
+        int c = source == SOURCE_URI? uri.charAt(index) : body.getByte(index);
+        return Character.digit(c, 16);
+    }
+
+    private static boolean needDecode(String value, int start, int end){
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if(c == '%' || c == '+'){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean needDecode(ByteBuf value, int start, int end){
+        for (int i = start; i < end; i++) {
+            byte b = value.getByte(i);
+            if(b == '%' || b == '+'){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAscii(String value, int start, int end){
+        for (int i = start; i < end; i++) {
+            if(value.charAt(i) > 0x7F){
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.github.netty.servlet.support;
+
+import com.github.netty.core.support.Optimize;
+import com.github.netty.core.util.ThreadUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 响应压缩 (gzip)
+ *  1.只压缩白名单里的文本类型, 图片/视频/压缩包这些本身已经压缩过的类型不压缩
+ *  2.Deflater和CRC32每个线程一个, 重复使用 (不用每次new, 也不用等gc回收堆外的zlib内存). 虚拟线程用完就丢, 每次新建并马上释放
+ *  3.压缩在写出之前完成, Content-Length是压缩后的长度
+ * @author 84215
+ */
+public class ResponseCompressor {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private static final String[] COMPRESSIBLE_TYPE_PREFIXES = {
+            "text/", "application/json", "application/javascript", "application/x-javascript",
+            "application/xml", "application/xhtml+xml", "image/svg+xml"};
+    private static final String[] COMPRESSIBLE_TYPE_SUFFIXES = {"+json", "+xml"};
+
+    private static final FastThreadLocal<Compressor> COMPRESSOR = new FastThreadLocal<Compressor>(){
+        @Override
+        protected Compressor initialValue() throws Exception {
+            //null = 虚拟线程, 不缓存
+            if(ThreadUtil.isVirtual(Thread.currentThread())){
+                return null;
+            }
+            return new Compressor(Optimize.getServletResponseCompressLevel());
+        }
+
+        @Override
+        protected void onRemoval(Compressor value) throws Exception {
+            if(value != null) {
+                value.deflater.end();
+            }
+        }
+    };
+
+    private ResponseCompressor() {
+    }
+
+    /**
+     * @param contentType 响应的内容类型, 可以带 ;charset=
+     * @return true=可以压缩
+     */
+    public static boolean isCompressible(String contentType){
+        if(contentType == null){
+            return false;
+        }
+        int end = contentType.indexOf(';');
+        String mimeType = (end == -1? contentType : contentType.substring(0, end)).trim().toLowerCase();
+        for(String prefix : COMPRESSIBLE_TYPE_PREFIXES){
+            if(mimeType.startsWith(prefix)){
+                return true;
+            }
+        }
+        for(String suffix : COMPRESSIBLE_TYPE_SUFFIXES){
+            if(mimeType.endsWith(suffix)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param acceptEncoding 请求头 Accept-Encoding
+     * @return true=客户端接受gzip
+     */
+    public static boolean isAcceptGzip(CharSequence acceptEncoding){
+        if(acceptEncoding == null){
+            return false;
+        }
+        for(String encoding : acceptEncoding.toString().split(",")){
+            encoding = encoding.trim();
+            if(encoding.startsWith("gzip") || encoding.startsWith("*")){
+                //gzip;q=0 表示不接受
+                return !encoding.replace(" ","").matches(".*;q=0(\\.0*)?$");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 压缩成gzip格式
+     * @param allocator 分配压缩结果的内存
+     * @param content 原内容, 不会被修改和释放
+     * @return 压缩后的内容
+     */
+    public static ByteBuf gzip(ByteBufAllocator allocator, ByteBuf content){
+        Compressor compressor = COMPRESSOR.get();
+        if(compressor != null){
+            return compressor.gzip(allocator, content);
+        }
+        compressor = new Compressor(Optimize.getServletResponseCompressLevel());
+        try {
+            return compressor.gzip(allocator, content);
+        }finally {
+            compressor.deflater.end();
+        }
+    }
+
+    private static class Compressor {
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] input = new byte[BUFFER_SIZE];
+        private final byte[] output = new byte[BUFFER_SIZE];
+
+        private Compressor(int level) {
+            //nowrap = 不要zlib头, gzip的头和尾自己写
+            this.deflater = new Deflater(level, true);
+        }
+
+        private ByteBuf gzip(ByteBufAllocator allocator, ByteBuf content){
+            int length = content.readableBytes();
+            ByteBuf out = allocator.buffer(length / 2 + GZIP_HEADER.length + GZIP_TRAILER_SIZE);
+            try {
+                out.writeBytes(GZIP_HEADER);
+                crc.reset();
+                deflater.reset();
+
+                //jdk8的Deflater只接受数组, 分块复制到线程复用的数组里
+                for (ByteBuffer nioBuffer : content.nioBuffers()) {
+                    while (nioBuffer.hasRemaining()) {
+                        int len = Math.min(input.length, nioBuffer.remaining());
+                        nioBuffer.get(input, 0, len);
+                        crc.update(input, 0, len);
+                        deflater.setInput(input, 0, len);
+                        while (!deflater.needsInput()) {
+                            deflate(out);
+                        }
+                    }
+                }
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(out);
+                }
+
+                long crcValue = crc.getValue();
+                out.writeIntLE((int) crcValue);
+                out.writeIntLE(length);
+                return out;
+            }catch (RuntimeException e){
+                out.release();
+                throw e;
+            }
+        }
+
+        private void deflate(ByteBuf out){
+            int len = deflater.deflate(output, 0, output.length);
+            if(len > 0) {
+                out.writeBytes(output, 0, len);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,214 @@
+package com.github.netty.servlet.support;
+
+import com.github.netty.core.support.LatencyHistogram;
+import com.github.netty.core.support.LoggerFactoryX;
+import com.github.netty.core.support.LoggerX;
+import com.github.netty.core.support.Optimize;
+import com.github.netty.core.support.ThreadFactoryX;
+import com.github.netty.core.util.ThreadUtil;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * servlet的调度方式 (servlet在哪个线程上执行)
+ *
+ * EVENT_LOOP: 直接在io线程执行, 没有线程切换. 但是一个慢的servlet会卡住同一个io线程上的所有连接
+ * BOUNDED_POOL: 固定线程数 + 有界队列. 排队数达到上限后, 新请求在收到请求头时就响应503 ({@link DispatchAdmissionHandler}), 不再接收请求体
+ * VIRTUAL_THREAD: 每个请求一个虚拟线程. 运行时反射检测jdk21+, 低版本退回BOUNDED_POOL.
+ *      虚拟线程用完就丢, 回收栈, 延迟统计, 压缩器这些按线程分配的缓存在虚拟线程上不分配 ({@link ThreadUtil#isVirtual(Thread)})
+ *
+ * 统计: 排队数, 执行中的数量, 拒绝数 (一直统计), 排队耗时 dispatch:queue (需要开启 {@link Optimize#isEnableServletLatencyHistogram()})
+ * @author 84215
+ */
+public class ServletDispatcher {
+
+    private static final LoggerX LOGGER = LoggerFactoryX.getLogger(ServletDispatcher.class);
+    private static final List<ServletDispatcher> DISPATCHER_LIST = new CopyOnWriteArrayList<>();
+
+    //从派发到开始执行的耗时
+    public static final LatencyHistogram QUEUE_LATENCY_HISTOGRAM = LatencyHistogram.get("dispatch:queue");
+
+    public enum Mode {
+        EVENT_LOOP,
+        BOUNDED_POOL,
+        VIRTUAL_THREAD
+    }
+
+    private final Mode mode;
+    //null = 在io线程执行
+    private final Executor executor;
+    private final int maxPendingCount;
+    //已经派发还没开始执行的数量
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong rejectCount = new AtomicLong();
+
+    private ServletDispatcher(Mode mode, Executor executor, int maxPendingCount) {
+        this.mode = mode;
+        this.executor = executor;
+        this.maxPendingCount = maxPendingCount;
+    }
+
+    /**
+     * 按 {@link Optimize#getServletDispatchMode()} 创建
+     * @return 调度器
+     */
+    public static ServletDispatcher newInstance(){
+        return newInstance(Optimize.getServletDispatchMode());
+    }
+
+    public static ServletDispatcher newInstance(Mode mode){
+        ServletDispatcher dispatcher;
+        switch (mode){
+            case VIRTUAL_THREAD:{
+                Executor executor = newVirtualThreadExecutor();
+                if(executor != null){
+                    dispatcher = new ServletDispatcher(mode, executor, Integer.MAX_VALUE);
+                    break;
+                }
+                LOGGER.warn("当前jdk不支持虚拟线程(需要jdk21+), servlet调度方式改为 " + Mode.BOUNDED_POOL);
+                return newInstance(Mode.BOUNDED_POOL);
+            }
+            case BOUNDED_POOL:{
+                int poolSize = Optimize.getServletDispatchPoolSize();
+                if(poolSize <= 0){
+                    poolSize = Runtime.getRuntime().availableProcessors() * 2;
+                }
+                int maxQueueSize = Math.max(1, Optimize.getServletDispatchMaxQueueSize());
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(maxQueueSize),
+                        new ThreadFactoryX("Servlet", ServletDispatcher.class),
+                        new ThreadPoolExecutor.AbortPolicy());
+                dispatcher = new ServletDispatcher(mode, executor, maxQueueSize);
+                break;
+            }
+            case EVENT_LOOP:
+            default:{
+                dispatcher = new ServletDispatcher(Mode.EVENT_LOOP, null, Integer.MAX_VALUE);
+                break;
+            }
+        }
+        DISPATCHER_LIST.add(dispatcher);
+        return dispatcher;
+    }
+
+    public static List<ServletDispatcher> getDispatcherList() {
+        return Collections.unmodifiableList(DISPATCHER_LIST);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() 是jdk21的方法, 编译目标是jdk8, 只能反射调用
+     * @return null = 不支持
+     */
+    private static Executor newVirtualThreadExecutor(){
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) method.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true = 在io线程上直接执行
+     */
+    public boolean isEventLoop(){
+        return executor == null;
+    }
+
+    /**
+     * 收到请求头时调用, 用于在接收请求体之前拒绝
+     * @return true = 排队已满, 应该直接响应503
+     */
+    public boolean isOverload(){
+        return pendingCount.get() >= maxPendingCount;
+    }
+
+    /**
+     * 派发任务. 任务开始和结束时需要调用 {@link #onTaskStart(long)}, {@link #onTaskEnd()}
+     * @param task 任务
+     * @return false = 队列已满被拒绝, 任务没有执行
+     */
+    public boolean dispatch(Runnable task){
+        if(executor == null){
+            task.run();
+            return true;
+        }
+        pendingCount.incrementAndGet();
+        try {
+            executor.execute(task);
+            return true;
+        }catch (RejectedExecutionException e){
+            pendingCount.decrementAndGet();
+            onReject();
+            return false;
+        }
+    }
+
+    /**
+     * @param dispatchTime 派发时的 System.nanoTime(), 0 = 不统计排队耗时
+     */
+    public void onTaskStart(long dispatchTime){
+        if(executor == null){
+            return;
+        }
+        if(dispatchTime != 0){
+            QUEUE_LATENCY_HISTOGRAM.record(System.nanoTime() - dispatchTime);
+        }
+        pendingCount.decrementAndGet();
+        activeCount.incrementAndGet();
+    }
+
+    public void onTaskEnd(){
+        if(executor == null){
+            return;
+        }
+        activeCount.decrementAndGet();
+    }
+
+    public void onReject(){
+        rejectCount.incrementAndGet();
+    }
+
+    public void shutdown(){
+        if(executor instanceof ExecutorService){
+            ((ExecutorService) executor).shutdown();
+        }
+        DISPATCHER_LIST.remove(this);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    public long getRejectCount() {
+        return rejectCount.get();
+    }
+
+    public int getMaxPendingCount() {
+        return maxPendingCount;
+    }
+
+    @Override
+    public String toString() {
+        return "ServletDispatcher{" +
+                "mode=" + mode +
+                ", 排队=" + pendingCount.get() + (maxPendingCount == Integer.MAX_VALUE? "" : "/" + maxPendingCount) +
+                ", 执行中=" + activeCount.get() +
+                ", 拒绝=" + rejectCount.get() +
+                '}';
+    }
+}
@@ -0,0 +1,701 @@
+package com.github.netty.servlet.support;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.multipart.Attribute;
+import io.netty.handler.codec.http.multipart.DiskAttribute;
+import io.netty.handler.codec.http.multipart.DiskFileUpload;
+import io.netty.handler.codec.http.multipart.FileUpload;
+import io.netty.handler.codec.http.multipart.HttpData;
+import io.netty.handler.codec.http.multipart.HttpDataFactory;
+import io.netty.handler.codec.http.multipart.InterfaceHttpData;
+import io.netty.handler.codec.http.multipart.MemoryAttribute;
+import io.netty.handler.codec.http.multipart.MemoryFileUpload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一个请求用一个的multipart上传工厂, 超过阈值的内容写到临时文件, 临时文件在请求结束时删除
+ *
+ * 和netty的 DefaultHttpDataFactory(minSize) 一样先放内存, 超过阈值转到磁盘. 不同的是临时文件不注册deleteOnExit
+ * (每个文件都会在jvm里留一条记录直到退出, 长时间运行会越积越多), 也不用改netty全局的 DiskFileUpload.deleteOnExitTemporaryFile,
+ * 不影响同一个jvm里其他用netty上传的代码
+ * @author acer01
+ *  2018/9/2/002
+ */
+public class ServletHttpDataFactory implements HttpDataFactory {
+
+    private final Charset charset;
+    private final long minSize;
+    private long maxSize = -1;
+    //这个请求创建的数据, 请求结束时统一释放 (磁盘上的删除临时文件)
+    private final List<HttpData> dataList = new ArrayList<>(4);
+
+    /**
+     * @param charset 字符集
+     * @param minSize 超过这个字节数写到磁盘
+     */
+    public ServletHttpDataFactory(Charset charset, long minSize) {
+        this.charset = charset;
+        this.minSize = minSize;
+    }
+
+    @Override
+    public void setMaxLimit(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public Attribute createAttribute(HttpRequest request, String name) {
+        Attribute attribute = new MixedAttribute(name, 0, minSize, charset);
+        attribute.setMaxSize(maxSize);
+        dataList.add(attribute);
+        return attribute;
+    }
+
+    @Override
+    public Attribute createAttribute(HttpRequest request, String name, long definedSize) {
+        Attribute attribute = new MixedAttribute(name, definedSize, minSize, charset);
+        attribute.setMaxSize(maxSize);
+        dataList.add(attribute);
+        return attribute;
+    }
+
+    @Override
+    public Attribute createAttribute(HttpRequest request, String name, String value) {
+        Attribute attribute;
+        try {
+            attribute = new MixedAttribute(name, 0, minSize, charset);
+            attribute.setMaxSize(maxSize);
+            attribute.setValue(value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        dataList.add(attribute);
+        return attribute;
+    }
+
+    @Override
+    public FileUpload createFileUpload(HttpRequest request, String name, String filename, String contentType,
+                                       String contentTransferEncoding, Charset charset, long size) {
+        FileUpload fileUpload = new MixedFileUpload(name, filename, contentType, contentTransferEncoding, charset, size, minSize);
+        fileUpload.setMaxSize(maxSize);
+        try {
+            fileUpload.checkSize(fileUpload.length());
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        dataList.add(fileUpload);
+        return fileUpload;
+    }
+
+    @Override
+    public void removeHttpDataFromClean(HttpRequest request, InterfaceHttpData data) {
+        dataList.remove(data);
+    }
+
+    @Override
+    public void cleanRequestHttpData(HttpRequest request) {
+        cleanAllHttpData();
+    }
+
+    @Override
+    public void cleanAllHttpData() {
+        for(HttpData data : dataList){
+            data.release();
+        }
+        dataList.clear();
+    }
+
+    @Override
+    public void cleanRequestHttpDatas(HttpRequest request) {
+        cleanAllHttpData();
+    }
+
+    @Override
+    public void cleanAllHttpDatas() {
+        cleanAllHttpData();
+    }
+
+    /**
+     * 临时文件不注册deleteOnExit
+     */
+    private static class ServletDiskFileUpload extends DiskFileUpload {
+        private ServletDiskFileUpload(String name, String filename, String contentType,
+                                      String contentTransferEncoding, Charset charset, long size) {
+            super(name, filename, contentType, contentTransferEncoding, charset, size);
+        }
+
+        @Override
+        protected boolean deleteOnExit() {
+            return false;
+        }
+    }
+
+    /**
+     * 临时文件不注册deleteOnExit
+     */
+    private static class ServletDiskAttribute extends DiskAttribute {
+        private ServletDiskAttribute(String name, long definedSize, Charset charset) {
+            super(name, definedSize, charset);
+        }
+
+        @Override
+        protected boolean deleteOnExit() {
+            return false;
+        }
+    }
+
+    /**
+     * 先放内存, 超过阈值转到磁盘的上传文件 (同netty的MixedFileUpload)
+     */
+    private static class MixedFileUpload implements FileUpload {
+        private FileUpload fileUpload;
+        private final long limitSize;
+        private final long definedSize;
+        private long maxSize = -1;
+
+        private MixedFileUpload(String name, String filename, String contentType, String contentTransferEncoding,
+                                Charset charset, long size, long limitSize) {
+            this.limitSize = limitSize;
+            this.definedSize = size;
+            if(size > limitSize){
+                fileUpload = new ServletDiskFileUpload(name, filename, contentType, contentTransferEncoding, charset, size);
+            }else {
+                fileUpload = new MemoryFileUpload(name, filename, contentType, contentTransferEncoding, charset, size);
+            }
+        }
+
+        private void toDisk() throws IOException {
+            if(!(fileUpload instanceof MemoryFileUpload)){
+                return;
+            }
+            FileUpload memoryFileUpload = fileUpload;
+            FileUpload diskFileUpload = new ServletDiskFileUpload(memoryFileUpload.getName(), memoryFileUpload.getFilename(),
+                    memoryFileUpload.getContentType(), memoryFileUpload.getContentTransferEncoding(), memoryFileUpload.getCharset(), definedSize);
+            diskFileUpload.setMaxSize(maxSize);
+            ByteBuf data = memoryFileUpload.getByteBuf();
+            if(data != null && data.isReadable()){
+                diskFileUpload.addContent(data.retain(), false);
+            }
+            memoryFileUpload.release();
+            fileUpload = diskFileUpload;
+        }
+
+        @Override
+        public void addContent(ByteBuf buffer, boolean last) throws IOException {
+            if(fileUpload instanceof MemoryFileUpload){
+                checkSize(fileUpload.length() + buffer.readableBytes());
+                if(fileUpload.length() + buffer.readableBytes() > limitSize){
+                    toDisk();
+                }
+            }
+            fileUpload.addContent(buffer, last);
+        }
+
+        @Override
+        public void setContent(ByteBuf buffer) throws IOException {
+            checkSize(buffer.readableBytes());
+            if(buffer.readableBytes() > limitSize){
+                toDisk();
+            }
+            fileUpload.setContent(buffer);
+        }
+
+        @Override
+        public void setContent(File file) throws IOException {
+            checkSize(file.length());
+            if(file.length() > limitSize){
+                toDisk();
+            }
+            fileUpload.setContent(file);
+        }
+
+        @Override
+        public void setContent(InputStream inputStream) throws IOException {
+            toDisk();
+            fileUpload.setContent(inputStream);
+        }
+
+        @Override
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        @Override
+        public void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+            fileUpload.setMaxSize(maxSize);
+        }
+
+        @Override
+        public void checkSize(long newSize) throws IOException {
+            if(maxSize >= 0 && newSize > maxSize){
+                throw new IOException("Size exceed allowed maximum capacity");
+            }
+        }
+
+        @Override
+        public String getFilename() {
+            return fileUpload.getFilename();
+        }
+
+        @Override
+        public void setFilename(String filename) {
+            fileUpload.setFilename(filename);
+        }
+
+        @Override
+        public void setContentType(String contentType) {
+            fileUpload.setContentType(contentType);
+        }
+
+        @Override
+        public String getContentType() {
+            return fileUpload.getContentType();
+        }
+
+        @Override
+        public void setContentTransferEncoding(String contentTransferEncoding) {
+            fileUpload.setContentTransferEncoding(contentTransferEncoding);
+        }
+
+        @Override
+        public String getContentTransferEncoding() {
+            return fileUpload.getContentTransferEncoding();
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return fileUpload.isCompleted();
+        }
+
+        @Override
+        public long length() {
+            return fileUpload.length();
+        }
+
+        @Override
+        public long definedLength() {
+            return fileUpload.definedLength();
+        }
+
+        @Override
+        public void delete() {
+            fileUpload.delete();
+        }
+
+        @Override
+        public byte[] get() throws IOException {
+            return fileUpload.get();
+        }
+
+        @Override
+        public ByteBuf getByteBuf() throws IOException {
+            return fileUpload.getByteBuf();
+        }
+
+        @Override
+        public ByteBuf getChunk(int length) throws IOException {
+            return fileUpload.getChunk(length);
+        }
+
+        @Override
+        public String getString() throws IOException {
+            return fileUpload.getString();
+        }
+
+        @Override
+        public String getString(Charset encoding) throws IOException {
+            return fileUpload.getString(encoding);
+        }
+
+        @Override
+        public void setCharset(Charset charset) {
+            fileUpload.setCharset(charset);
+        }
+
+        @Override
+        public Charset getCharset() {
+            return fileUpload.getCharset();
+        }
+
+        @Override
+        public boolean renameTo(File dest) throws IOException {
+            return fileUpload.renameTo(dest);
+        }
+
+        @Override
+        public boolean isInMemory() {
+            return fileUpload.isInMemory();
+        }
+
+        @Override
+        public File getFile() throws IOException {
+            return fileUpload.getFile();
+        }
+
+        @Override
+        public String getName() {
+            return fileUpload.getName();
+        }
+
+        @Override
+        public HttpDataType getHttpDataType() {
+            return fileUpload.getHttpDataType();
+        }
+
+        @Override
+        public int compareTo(InterfaceHttpData o) {
+            return fileUpload.compareTo(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return fileUpload.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return fileUpload.equals(obj);
+        }
+
+        @Override
+        public String toString() {
+            return "Mixed: " + fileUpload;
+        }
+
+        @Override
+        public ByteBuf content() {
+            return fileUpload.content();
+        }
+
+        @Override
+        public FileUpload copy() {
+            return fileUpload.copy();
+        }
+
+        @Override
+        public FileUpload duplicate() {
+            return fileUpload.duplicate();
+        }
+
+        @Override
+        public FileUpload retainedDuplicate() {
+            return fileUpload.retainedDuplicate();
+        }
+
+        @Override
+        public FileUpload replace(ByteBuf content) {
+            return fileUpload.replace(content);
+        }
+
+        @Override
+        public int refCnt() {
+            return fileUpload.refCnt();
+        }
+
+        @Override
+        public FileUpload retain() {
+            fileUpload.retain();
+            return this;
+        }
+
+        @Override
+        public FileUpload retain(int increment) {
+            fileUpload.retain(increment);
+            return this;
+        }
+
+        @Override
+        public FileUpload touch() {
+            fileUpload.touch();
+            return this;
+        }
+
+        @Override
+        public FileUpload touch(Object hint) {
+            fileUpload.touch(hint);
+            return this;
+        }
+
+        @Override
+        public boolean release() {
+            return fileUpload.release();
+        }
+
+        @Override
+        public boolean release(int decrement) {
+            return fileUpload.release(decrement);
+        }
+    }
+
+    /**
+     * 先放内存, 超过阈值转到磁盘的表单字段 (同netty的MixedAttribute)
+     */
+    private static class MixedAttribute implements Attribute {
+        private Attribute attribute;
+        private final long limitSize;
+        private long maxSize = -1;
+
+        private MixedAttribute(String name, long definedSize, long limitSize, Charset charset) {
+            this.limitSize = limitSize;
+            this.attribute = new MemoryAttribute(name, definedSize, charset);
+        }
+
+        private void toDisk() throws IOException {
+            if(!(attribute instanceof MemoryAttribute)){
+                return;
+            }
+            Attribute memoryAttribute = attribute;
+            Attribute diskAttribute = new ServletDiskAttribute(memoryAttribute.getName(), memoryAttribute.definedLength(), memoryAttribute.getCharset());
+            diskAttribute.setMaxSize(maxSize);
+            ByteBuf data = memoryAttribute.getByteBuf();
+            if(data != null && data.isReadable()){
+                diskAttribute.addContent(data.retain(), false);
+            }
+            memoryAttribute.release();
+            attribute = diskAttribute;
+        }
+
+        @Override
+        public void addContent(ByteBuf buffer, boolean last) throws IOException {
+            if(attribute instanceof MemoryAttribute){
+                checkSize(attribute.length() + buffer.readableBytes());
+                if(attribute.length() + buffer.readableBytes() > limitSize){
+                    toDisk();
+                }
+            }
+            attribute.addContent(buffer, last);
+        }
+
+        @Override
+        public void setContent(ByteBuf buffer) throws IOException {
+            checkSize(buffer.readableBytes());
+            if(buffer.readableBytes() > limitSize){
+                toDisk();
+            }
+            attribute.setContent(buffer);
+        }
+
+        @Override
+        public void setContent(File file) throws IOException {
+            checkSize(file.length());
+            if(file.length() > limitSize){
+                toDisk();
+            }
+            attribute.setContent(file);
+        }
+
+        @Override
+        public void setContent(InputStream inputStream) throws IOException {
+            toDisk();
+            attribute.setContent(inputStream);
+        }
+
+        @Override
+        public String getValue() throws IOException {
+            return attribute.getValue();
+        }
+
+        @Override
+        public void setValue(String value) throws IOException {
+            if(value != null){
+                byte[] bytes = value.getBytes(getCharset());
+                checkSize(bytes.length);
+                if(bytes.length > limitSize){
+                    toDisk();
+                }
+            }
+            attribute.setValue(value);
+        }
+
+        @Override
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        @Override
+        public void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+            attribute.setMaxSize(maxSize);
+        }
+
+        @Override
+        public void checkSize(long newSize) throws IOException {
+            if(maxSize >= 0 && newSize > maxSize){
+                throw new IOException("Size exceed allowed maximum capacity");
+            }
+        }
+
+        @Override
+        public boolean isCompleted() {
+            return attribute.isCompleted();
+        }
+
+        @Override
+        public long length() {
+            return attribute.length();
+        }
+
+        @Override
+        public long definedLength() {
+            return attribute.definedLength();
+        }
+
+        @Override
+        public void delete() {
+            attribute.delete();
+        }
+
+        @Override
+        public byte[] get() throws IOException {
+            return attribute.get();
+        }
+
+        @Override
+        public ByteBuf getByteBuf() throws IOException {
+            return attribute.getByteBuf();
+        }
+
+        @Override
+        public ByteBuf getChunk(int length) throws IOException {
+            return attribute.getChunk(length);
+        }
+
+        @Override
+        public String getString() throws IOException {
+            return attribute.getString();
+        }
+
+        @Override
+        public String getString(Charset encoding) throws IOException {
+            return attribute.getString(encoding);
+        }
+
+        @Override
+        public void setCharset(Charset charset) {
+            attribute.setCharset(charset);
+        }
+
+        @Override
+        public Charset getCharset() {
+            return attribute.getCharset();
+        }
+
+        @Override
+        public boolean renameTo(File dest) throws IOException {
+            return attribute.renameTo(dest);
+        }
+
+        @Override
+        public boolean isInMemory() {
+            return attribute.isInMemory();
+        }
+
+        @Override
+        public File getFile() throws IOException {
+            return attribute.getFile();
+        }
+
+        @Override
+        public String getName() {
+            return attribute.getName();
+        }
+
+        @Override
+        public HttpDataType getHttpDataType() {
+            return attribute.getHttpDataType();
+        }
+
+        @Override
+        public int compareTo(InterfaceHttpData o) {
+            return attribute.compareTo(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return attribute.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return attribute.equals(obj);
+        }
+
+        @Override
+        public String toString() {
+            return "Mixed: " + attribute;
+        }
+
+        @Override
+        public ByteBuf content() {
+            return attribute.content();
+        }
+
+        @Override
+        public Attribute copy() {
+            return attribute.copy();
+        }
+
+        @Override
+        public Attribute duplicate() {
+            return attribute.duplicate();
+        }
+
+        @Override
+        public Attribute retainedDuplicate() {
+            return attribute.retainedDuplicate();
+        }
+
+        @Override
+        public Attribute replace(ByteBuf content) {
+            return attribute.replace(content);
+        }
+
+        @Override
+        public int refCnt() {
+            return attribute.refCnt();
+        }
+
+        @Override
+        public Attribute retain() {
+            attribute.retain();
+            return this;
+        }
+
+        @Override
+        public Attribute retain(int increment) {
+            attribute.retain(increment);
+            return this;
+        }
+
+        @Override
+        public Attribute touch() {
+            attribute.touch();
+            return this;
+        }
+
+        @Override
+        public Attribute touch(Object hint) {
+            attribute.touch(hint);
+            return this;
+        }
+
+        @Override
+        public boolean release() {
+            return attribute.release();
+        }
+
+        @Override
+        public boolean release(int decrement) {
+            return attribute.release(decrement);
+        }
+    }
+
+}
@@ -0,0 +1,266 @@
+package com.github.netty.servlet.support;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 静态资源缓存 (按字节数限制大小的LRU)
+ *  1.文件内容第一次访问时读进池化的堆外内存, 可压缩的类型同时算好gzip版本, 之后的请求不再读文件, 也不再压缩
+ *  2.每隔checkInterval毫秒最多检查一次文件的修改时间和长度, 变了就重新加载
+ *  3.缓存持有一次引用, 每个请求拿到的是只读的 retainedDuplicate(), 写出后由netty释放, 淘汰时不影响还在写的请求
+ * @author 84215
+ */
+public class StaticResourceCache {
+
+    //小于这个字节数的文件不压缩
+    private static final int GZIP_MIN_SIZE = 256;
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final long checkInterval;
+    private final LinkedHashMap<String,Entry> entryMap = new LinkedHashMap<>(64,0.75F,true);
+    private long totalBytes;
+
+    public StaticResourceCache(long maxBytes, long maxFileSize, long checkInterval) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = Math.min(maxFileSize, maxBytes);
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * 获取缓存的资源
+     * @param path 请求路径
+     * @return 资源, 用完需要调用 {@link CachedResource#release()}. null=没有缓存或者文件已经修改
+     */
+    public CachedResource get(String path) {
+        Entry entry;
+        long now = System.currentTimeMillis();
+        synchronized (entryMap) {
+            entry = entryMap.get(path);
+            if(entry == null){
+                return null;
+            }
+            if(now - entry.checkTime < checkInterval){
+                return new CachedResource(entry);
+            }
+        }
+
+        //到了检查时间, 在锁外面访问文件系统
+        File file = entry.file;
+        boolean modified = file.lastModified() != entry.lastModified || file.length() != entry.length;
+        synchronized (entryMap) {
+            if(entryMap.get(path) != entry){
+                return null;
+            }
+            if(modified){
+                removeEntry(path);
+                return null;
+            }
+            entry.checkTime = now;
+            return new CachedResource(entry);
+        }
+    }
+
+    /**
+     * 加载文件放进缓存
+     * @param path 请求路径
+     * @param file 文件
+     * @param compressible 是否需要算gzip版本
+     * @return 资源, 用完需要调用 {@link CachedResource#release()}. null=文件太大不缓存, 或者读取时文件正在被修改
+     * @throws IOException 读取文件出错
+     */
+    public CachedResource put(String path, File file, boolean compressible) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if(length > maxFileSize){
+            return null;
+        }
+
+        ByteBuf content = readFile(file, (int) length);
+        //读到的字节数和长度对不上, 说明文件正在被修改, 这次不缓存
+        if(content.readableBytes() != length){
+            content.release();
+            return null;
+        }
+        Entry entry = new Entry(file, lastModified, length, System.currentTimeMillis());
+        entry.content = content;
+        if(compressible && length >= GZIP_MIN_SIZE){
+            try {
+                entry.gzipContent = gzip(entry.content);
+            }catch (IOException | RuntimeException | Error e){
+                //还没放进缓存, 没有别的地方会释放
+                content.release();
+                throw e;
+            }
+        }
+
+        synchronized (entryMap) {
+            removeEntry(path);
+            entryMap.put(path, entry);
+            totalBytes += entry.getBytes();
+
+            //超出总大小, 淘汰最久没有访问的
+            Iterator<Map.Entry<String,Entry>> iterator = entryMap.entrySet().iterator();
+            while (totalBytes > maxBytes && iterator.hasNext()){
+                Entry eldest = iterator.next().getValue();
+                if(eldest == entry){
+                    break;
+                }
+                iterator.remove();
+                totalBytes -= eldest.getBytes();
+                eldest.release();
+            }
+            return new CachedResource(entry);
+        }
+    }
+
+    public void clear() {
+        synchronized (entryMap) {
+            for(Entry entry : entryMap.values()){
+                entry.release();
+            }
+            entryMap.clear();
+            totalBytes = 0;
+        }
+    }
+
+    private void removeEntry(String path){
+        Entry old = entryMap.remove(path);
+        if(old != null){
+            totalBytes -= old.getBytes();
+            old.release();
+        }
+    }
+
+    private static ByteBuf readFile(File file, int length) throws IOException {
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(length, length);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel fileChannel = randomAccessFile.getChannel();
+            long position = 0;
+            while (content.isWritable()) {
+                int len = content.writeBytes(fileChannel, position, content.writableBytes());
+                if (len == -1) {
+                    break;
+                }
+                position += len;
+            }
+        }catch (IOException e){
+            content.release();
+            throw e;
+        }
+        return content;
+    }
+
+    /**
+     * @return 压缩后的内容, 压缩效果不好返回null
+     */
+    private static ByteBuf gzip(ByteBuf content) throws IOException {
+        ByteBuf heap = Unpooled.buffer(content.readableBytes() / 2);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(new ByteBufOutputStream(heap))) {
+            content.getBytes(content.readerIndex(), gzipOutputStream, content.readableBytes());
+        }
+        try {
+            //压缩后没有小10%以上就不值得让客户端解压
+            if (heap.readableBytes() > content.readableBytes() * 0.9) {
+                return null;
+            }
+            ByteBuf gzipContent = PooledByteBufAllocator.DEFAULT.directBuffer(heap.readableBytes(), heap.readableBytes());
+            gzipContent.writeBytes(heap);
+            return gzipContent;
+        }finally {
+            heap.release();
+        }
+    }
+
+    private static class Entry {
+        private final File file;
+        private final long lastModified;
+        private final long length;
+        private long checkTime;
+        private ByteBuf content;
+        private ByteBuf gzipContent;
+
+        private Entry(File file, long lastModified, long length, long checkTime) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.checkTime = checkTime;
+        }
+
+        private long getBytes(){
+            return gzipContent == null? length : length + gzipContent.readableBytes();
+        }
+
+        private void release(){
+            ReferenceCountUtil.safeRelease(content);
+            if(gzipContent != null) {
+                ReferenceCountUtil.safeRelease(gzipContent);
+            }
+        }
+    }
+
+    /**
+     * 一次请求拿到的缓存资源, 持有内容的引用直到 {@link #release()}
+     */
+    public static class CachedResource {
+        private final File file;
+        private final long lastModified;
+        private final long length;
+        private final ByteBuf content;
+        private final ByteBuf gzipContent;
+
+        private CachedResource(Entry entry) {
+            this.file = entry.file;
+            this.lastModified = entry.lastModified;
+            this.length = entry.length;
+            this.content = entry.content.retainedDuplicate().asReadOnly();
+            this.gzipContent = entry.gzipContent == null? null : entry.gzipContent.retainedDuplicate().asReadOnly();
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return 文件内容 (只读)
+         */
+        public ByteBuf getContent() {
+            return content;
+        }
+
+        /**
+         * @return gzip压缩后的内容, null=没有压缩版本
+         */
+        public ByteBuf getGzipContent() {
+            return gzipContent;
+        }
+
+        public void release() {
+            content.release();
+            if(gzipContent != null){
+                gzipContent.release();
+            }
+        }
+    }
+
+}
@@ -1,11 +1,13 @@
 package com.github.netty.servlet.support;
 
+import com.github.netty.core.support.AbstractRecyclable;
 import com.github.netty.core.support.AbstractRecycler;
-import com.github.netty.core.support.Recyclable;
-import com.github.netty.core.util.RecyclableUtil;
+import com.github.netty.core.support.Optimize;
 import com.github.netty.core.util.TodoOptimize;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 映射规范
@@ -43,20 +45,38 @@ import java.util.*;
  *      /index.bop              servlet4
  * 请注意，在/catalog/index.html和/catalog/racecar.bop的情况下，不使用映射到“/catalog”的servlet，因为不是精确匹配的
  *
+ * 实现:
+ *  1.精确匹配和路径匹配的规则按'/'分段放进一棵树, 查找时沿着请求路径往下走, 复杂度只和路径的段数有关, 和规则数量无关
+ *  2.扩展名匹配是一个map
+ *  3.查找结果按去掉contextPath和查询字符串的路径缓存, 超过上限按近似LRU淘汰. 落到默认对象(或者没有匹配)的路径不缓存,
+ *    这种路径要多少有多少(静态资源, 扫描器乱发的路径), 放进来只会挤掉热点. 增加或删除规则时清空缓存
+ *
  * @author acer01
  * Created on 2017-08-25 11:32.
  */
 public class UrlMapper<T> {
 
-    private UrlPatternContext urlPatternContext;
+    private final Node root = new Node();
+    //默认Servlet
+    private final List<Element> defaultList = new ArrayList<>(1);
+    //扩展名匹配
+    private final Map<String, List<Element>> extensionObjectMap = new HashMap<>();
+    //全部对象
+    private final List<Element> totalObjectList = new ArrayList<>();
+    //单个对象的查找结果 key=路径
+    private final MappingCache<Element> mappingCache;
+    //多个对象的查找结果 key=路径
+    private final MappingCache<T[]> mappingsCache;
     private String contextPath;
+    private int elementOrder;
 
     private final boolean singlePattern;
 
     public UrlMapper(String contextPath,boolean singlePattern) {
-        this.urlPatternContext = new UrlPatternContext();
         this.contextPath = contextPath;
         this.singlePattern = singlePattern;
+        this.mappingCache = new MappingCache<>(Optimize.getUrlMapperCacheSize());
+        this.mappingsCache = new MappingCache<>(Optimize.getUrlMapperCacheSize());
     }
 
     /**
@@ -67,75 +87,37 @@ public class UrlMapper<T> {
      * @param objectName 对象名称
      * @throws IllegalArgumentException 异常
      */
-    public void addMapping(String urlPattern, T object, String objectName) throws IllegalArgumentException {
+    public synchronized void addMapping(String urlPattern, T object, String objectName) throws IllegalArgumentException {
         Objects.requireNonNull(urlPattern);
         Objects.requireNonNull(object);
         Objects.requireNonNull(objectName);
 
-        Element element;
+        Element element = new Element(urlPattern, object, objectName, elementOrder++);
+        List<Element> elementList;
 
-        // 路径匹配
         if (urlPattern.endsWith("/*")) {
-            String pattern = urlPattern.substring(0, urlPattern.length() - 1);
-            for (Element ms : urlPatternContext.wildcardObjectList) {
-                if (ms.pattern.equals(pattern)) {
-                    if(singlePattern) {
-                        throw new IllegalArgumentException("URL Pattern('" + urlPattern + "') already exists!");
-                    }
-                }
-            }
-            element = new Element(pattern, object, objectName);
-            urlPatternContext.wildcardObjectList.add(element);
-            urlPatternContext.wildcardObjectList.sort((o1, o2) -> o2.pattern.compareTo(o1.pattern));
-            urlPatternContext.addElement(element);
-//            log.debug("Curretn Wildcard URL Pattern List = " + Arrays.toString(urlPatternContext.wildcardObjectList.toArray()));
-            return;
+            // 路径匹配
+            elementList = getOrCreateNode(urlPattern.substring(0, urlPattern.length() - 2)).wildcardList;
+        }else if("*".equals(urlPattern) || "/**".equals(urlPattern)){
+            // 匹配全部路径
+            elementList = root.wildcardList;
+        }else if (urlPattern.startsWith("*.")) {
+            // 扩展名匹配
+            elementList = extensionObjectMap.computeIfAbsent(urlPattern.substring(2), k -> new ArrayList<>(1));
+        }else if (urlPattern.length() ==1 && urlPattern.charAt(0) == '/') {
+            // Default资源匹配
+            elementList = defaultList;
+        }else {
+            // 精确匹配
+            elementList = getOrCreateNode(urlPattern.length() == 0? "/" : urlPattern).exactList;
         }
 
-        // 扩展名匹配
-        if (urlPattern.startsWith("*.")) {
-            String pattern = urlPattern.substring(2);
-            if (urlPatternContext.extensionObjectMap.get(pattern) != null) {
-                if(singlePattern) {
-                    throw new IllegalArgumentException("URL Pattern('" + urlPattern + "') already exists!");
-                }
-            }
-            element = new Element(pattern, object, objectName);
-            urlPatternContext.extensionObjectMap.put(pattern, element);
-            urlPatternContext.addElement(element);
-//            log.debug("Curretn Extension URL Pattern List = " + Arrays.toString(urlPatternContext.extensionObjectMap.keySet().toArray()));
-            return;
-        }
-
-        // Default资源匹配
-        if (urlPattern.length() ==1 && urlPattern.charAt(0) == '/') {
-            if (urlPatternContext.defaultObject != null) {
-                if(singlePattern) {
-                    throw new IllegalArgumentException("URL Pattern('" + urlPattern + "') already exists!");
-                }
-            }
-            element = new Element("", object, objectName);
-            urlPatternContext.defaultObject = element;
-            urlPatternContext.addElement(element);
-            return;
-        }
-
-        // 精确匹配
-        String pattern;
-        if (urlPattern.length() == 0) {
-            pattern = "/";
-        } else {
-            pattern = urlPattern;
-        }
-        if (urlPatternContext.exactObjectMap.get(pattern) != null) {
-            if(singlePattern) {
-                throw new IllegalArgumentException("URL Pattern('" + urlPattern + "') already exists!");
-            }
+        if(singlePattern && !elementList.isEmpty()) {
+            throw new IllegalArgumentException("URL Pattern('" + urlPattern + "') already exists!");
         }
-        element = new Element(pattern, object, objectName);
-        urlPatternContext.exactObjectMap.put(pattern, element);
-        urlPatternContext.addElement(element);
-//        log.debug("Curretn Exact URL Pattern List = " + Arrays.toString(urlPatternContext.exactObjectMap.keySet().toArray()));
+        elementList.add(element);
+        totalObjectList.add(element);
+        clearCache();
     }
 
     /**
@@ -143,62 +125,111 @@ public class UrlMapper<T> {
      *
      * @param urlPattern url匹配规则
      */
-    public void removeMapping(String urlPattern) {
-        //路径匹配
+    public synchronized void removeMapping(String urlPattern) {
+        List<Element> elementList;
         if (urlPattern.endsWith("/*")) {
-            String pattern = urlPattern.substring(0, urlPattern.length() - 2);
-            urlPatternContext.wildcardObjectList.removeIf(mappedServlet -> mappedServlet.pattern.equals(pattern));
-            return;
-        }
-
-        // 扩展名匹配
-        if (urlPattern.length() == 2 && urlPattern.charAt(0)=='*' && urlPattern.charAt(1)=='.') {
-            String pattern = urlPattern.substring(2);
-            urlPatternContext.extensionObjectMap.remove(pattern);
-            return;
+            Node node = findNode(urlPattern.substring(0, urlPattern.length() - 2));
+            elementList = node == null? null : node.wildcardList;
+        }else if("*".equals(urlPattern) || "/**".equals(urlPattern)){
+            elementList = root.wildcardList;
+        }else if (urlPattern.startsWith("*.")) {
+            elementList = extensionObjectMap.get(urlPattern.substring(2));
+        }else if ("/".equals(urlPattern)) {
+            elementList = defaultList;
+        }else {
+            Node node = findNode(urlPattern.length() == 0? "/" : urlPattern);
+            elementList = node == null? null : node.exactList;
         }
 
-        // Default资源匹配
-        if ("/".equals(urlPattern)) {
-            urlPatternContext.defaultObject = null;
-            return;
+        if(elementList != null) {
+            elementList.removeIf(element -> element.pattern.equals(urlPattern));
+            totalObjectList.removeIf(element -> element.pattern.equals(urlPattern));
+            clearCache();
         }
-
-        // 精确匹配
-        String pattern;
-        if (urlPattern.length() == 0) {
-            pattern = "/";
-        } else {
-            pattern = urlPattern;
-        }
-        urlPatternContext.exactObjectMap.remove(pattern);
     }
 
     public T getMappingObjectByUri(String absoluteUri) {
-        return getMapping(absoluteUri);
+        Element element = getMapping(absoluteUri);
+        return element == null? null : element.object;
     }
 
-    public List<T> getMappingObjectsByUri(String absoluteUri) {
-        List<T> list = RecyclableUtil.newRecyclableList(10);
+    /**
+     * @param absoluteUri 请求路径
+     * @return 匹配到的url规则, 没有匹配则返回null
+     */
+    public String getMappingPatternByUri(String absoluteUri) {
+        Element element = getMapping(absoluteUri);
+        return element == null? null : element.pattern;
+    }
+
+    /**
+     * 获取匹配路径的全部对象 (用于过滤器), 按增加的顺序排列
+     * @param absoluteUri 请求路径
+     * @param emptyArray 用于确定数组类型的空数组
+     * @return 匹配的对象, 数组是缓存共享的, 调用者不能修改
+     */
+    public T[] getMappingObjectsByUri(String absoluteUri,T[] emptyArray) {
+        String path = toPath(absoluteUri);
+        T[] array = path == null? null : mappingsCache.get(path);
+        if(array != null){
+            return array;
+        }
 
-        for(Element element : urlPatternContext.totalObjectList){
-            if("*".equals(element.pattern) || "/".equals(element.pattern) || "/*".equals(element.pattern) || "/**".equals(element.pattern)){
-                list.add(element.object);
-            }else if(absoluteUri.startsWith(element.pattern)){
-                list.add(element.object);
+        List<Element> elementList = new ArrayList<>();
+        if(path != null){
+            //沿途每一层的路径匹配都算
+            Node node = root;
+            elementList.addAll(node.wildcardList);
+            int start = 1;
+            while (start <= path.length() && path.length() > 1){
+                int end = path.indexOf('/', start);
+                if(end == -1){
+                    end = path.length();
+                }
+                node = node.children.get(path.substring(start, end));
+                if(node == null){
+                    break;
+                }
+                elementList.addAll(node.wildcardList);
+                start = end + 1;
+            }
+            if(node != null){
+                elementList.addAll(node.exactList);
             }
+            List<Element> extensionList = getExtensionList(path);
+            if(extensionList != null){
+                elementList.addAll(extensionList);
+            }
+        }else {
+            elementList.addAll(root.wildcardList);
         }
-        return list;
+        //过滤器的"/"也匹配全部路径
+        elementList.addAll(defaultList);
+        elementList.sort(Comparator.comparingInt(element -> element.order));
+
+        array = Arrays.copyOf(emptyArray, elementList.size());
+        for (int i = 0; i < array.length; i++) {
+            array[i] = elementList.get(i).object;
+        }
+        if(path != null) {
+            mappingsCache.put(path, array);
+        }
+        return array;
     }
 
+    /**
+     * @return 去掉contextPath和查询字符串的路径, 不在contextPath下返回null. 没有contextPath和查询字符串时返回原字符串, 不创建对象
+     */
     private String toPath(String absolutePath){
         // 处理ContextPath，获取访问的相对URI
-        boolean noContextPath = absolutePath.equals(contextPath) || absolutePath.equals(contextPath + "/");
         if (!absolutePath.startsWith(contextPath)) {
             return null;
         }
+        int contextPathLength = contextPath.length();
+        boolean noContextPath = absolutePath.length() == contextPathLength
+                || (absolutePath.length() == contextPathLength + 1 && absolutePath.charAt(contextPathLength) == '/');
 
-        String path = noContextPath ? "/" : absolutePath.substring(contextPath.length());
+        String path = noContextPath ? "/" : absolutePath.substring(contextPathLength);
         //去掉查询字符串
         int queryInx = path.indexOf('?');
         if(queryInx > -1){
@@ -207,103 +238,236 @@ public class UrlMapper<T> {
         return path;
     }
 
-    @TodoOptimize("1.暂不考虑JSP的处理 ,2.暂不考虑Welcome资源 ,3.暂不考虑请求静态目录资源")
-    private T getMapping(String absolutePath) {
-        if(urlPatternContext.totalObjectList.size() == 1){
-            return urlPatternContext.totalObjectList.get(0).object;
+    @TodoOptimize("1.暂不考虑JSP的处理 ,2.暂不考虑Welcome资源")
+    private Element getMapping(String absolutePath) {
+        //只有一个匹配全部路径的对象时, 不需要再匹配
+        if(totalObjectList.size() == 1){
+            Element element = totalObjectList.get(0);
+            if(defaultList.contains(element) || root.wildcardList.contains(element)) {
+                return element;
+            }
         }
+
         String path = toPath(absolutePath);
-        // 路径为空时，重定向到“/”
-        if(path == null || "/".equals(path)){
-            if (urlPatternContext.defaultObject == null) {
-                return null;
-            }
-//            return MappingData.newInstance (urlPatternContext.defaultObject.object,urlPatternContext.defaultObject.objectName);
-            return urlPatternContext.defaultObject.object;
+        Element element = path == null? null : mappingCache.get(path);
+        if(element != null){
+            return element;
+        }
+
+        element = findMapping(path);
+        //落到默认对象或者没有匹配的不缓存
+        if(element != null && element != first(defaultList)){
+            mappingCache.put(path, element);
+        }
+        return element;
+    }
+
+    private Element findMapping(String path) {
+        // 不在ContextPath下
+        if(path == null){
+            return first(defaultList);
         }
 
         //1. 暂不考虑JSP的处理
 
+        //沿着路径往下走, 记住最长的路径匹配
+        Node node = root;
+        Element wildcard = first(node.wildcardList);
+        int start = 1;
+        while (start <= path.length() && path.length() > 1){
+            int end = path.indexOf('/', start);
+            if(end == -1){
+                end = path.length();
+            }
+            node = node.children.get(path.substring(start, end));
+            if(node == null){
+                break;
+            }
+            if(!node.wildcardList.isEmpty()){
+                wildcard = node.wildcardList.get(0);
+            }
+            start = end + 1;
+        }
+
         // 优先进行精确匹配
-        Element element = urlPatternContext.exactObjectMap.get(path);
-        if (element != null) {
-//            return MappingData.newInstance(element.object,element.objectName);
-            return element.object;
+        if (node != null && !node.exactList.isEmpty()) {
+            return node.exactList.get(0);
         }
 
         // 然后进行路径匹配
-        if (!path.endsWith("/")) {
-            path = path + "/";
-        }
-        for (Element ms : urlPatternContext.wildcardObjectList) {
-            if (path.startsWith(ms.pattern)) {
-                element = ms;
-                break;
-            }
+        if (wildcard != null) {
+            return wildcard;
         }
+
+        // 后缀名匹配
+        Element element = first(getExtensionList(path));
         if (element != null) {
-//            return MappingData.newInstance(element.object,element.objectName);
-            return element.object;
+            return element;
         }
 
+        //2. 暂不考虑Welcome资源
 
-        // 后缀名匹配
+        // Default Servlet
+        //3. 静态资源: 没有默认对象返回null, 由ServletContext交给默认servlet处理
+        return first(defaultList);
+    }
+
+    /**
+     * 最后一段路径的扩展名对应的对象
+     */
+    private List<Element> getExtensionList(String path){
+        if(extensionObjectMap.isEmpty()){
+            return null;
+        }
         int dotInx = path.lastIndexOf('.');
-        if(dotInx != -1) {
-            path = path.substring(dotInx + 1);
-            element = urlPatternContext.extensionObjectMap.get(path);
-            if (element != null) {
-//                return MappingData.newInstance(element.object, element.objectName);
-                return element.object;
+        if(dotInx == -1 || dotInx < path.lastIndexOf('/')) {
+            return null;
+        }
+        return extensionObjectMap.get(path.substring(dotInx + 1));
+    }
+
+    private Element first(List<Element> elementList){
+        return elementList == null || elementList.isEmpty()? null : elementList.get(0);
+    }
+
+    /**
+     * 按'/'分段, 找到或者创建路径对应的节点. "/"和""是根节点
+     */
+    private Node getOrCreateNode(String path){
+        Node node = root;
+        int start = path.startsWith("/")? 1 : 0;
+        while (start <= path.length() && path.length() > 1){
+            int end = path.indexOf('/', start);
+            if(end == -1){
+                end = path.length();
+            }
+            node = node.children.computeIfAbsent(path.substring(start, end), k -> new Node());
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private Node findNode(String path){
+        Node node = root;
+        int start = path.startsWith("/")? 1 : 0;
+        while (node != null && start <= path.length() && path.length() > 1){
+            int end = path.indexOf('/', start);
+            if(end == -1){
+                end = path.length();
             }
+            node = node.children.get(path.substring(start, end));
+            start = end + 1;
         }
+        return node;
+    }
 
+    private void clearCache(){
+        mappingCache.clear();
+        mappingsCache.clear();
+    }
 
-        //2. 暂不考虑Welcome资源
+    /**
+     * 查找结果的缓存, 超过上限时按近似LRU(时钟算法)淘汰:
+     * 命中时打上访问标记, 淘汰时扫描一遍, 有标记的清掉标记留下, 没有标记的去掉. 一次淘汰1/8, 不用每放一个就扫一遍
+     */
+    private static class MappingCache<V> {
+        private final Map<String,CacheEntry<V>> map = new ConcurrentHashMap<>();
+        private final int maxSize;
+        //同一时间只让一个线程淘汰, 其他线程照常放入
+        private final AtomicBoolean evicting = new AtomicBoolean();
+
+        MappingCache(int maxSize) {
+            this.maxSize = maxSize;
+        }
 
-        // Default Servlet
-        if (urlPatternContext.defaultObject != null) {
-//            return MappingData.newInstance(urlPatternContext.defaultObject.object,urlPatternContext.defaultObject.objectName);
-            return urlPatternContext.defaultObject.object;
+        V get(String key){
+            CacheEntry<V> entry = map.get(key);
+            if(entry == null){
+                return null;
+            }
+            //已经有标记就不再写, 避免热点路径在多个cpu之间来回写同一个缓存行
+            if(!entry.used){
+                entry.used = true;
+            }
+            return entry.value;
         }
 
-        //3. 暂不考虑请求静态目录资源
-        if (path.charAt(path.length() - 1) != '/') {
+        void put(String key, V value){
+            if(maxSize <= 0){
+                return;
+            }
+            if(map.size() >= maxSize){
+                evict();
+            }
+            map.put(key, new CacheEntry<>(value));
+        }
 
+        private void evict(){
+            if(!evicting.compareAndSet(false, true)){
+                return;
+            }
+            try {
+                int targetSize = maxSize - Math.max(1, maxSize / 8);
+                //第一遍清掉标记, 第二遍一定能去掉足够的数量
+                for (int i = 0; i < 2 && map.size() > targetSize; i++) {
+                    Iterator<CacheEntry<V>> iterator = map.values().iterator();
+                    while (iterator.hasNext() && map.size() > targetSize) {
+                        CacheEntry<V> entry = iterator.next();
+                        if (entry.used) {
+                            entry.used = false;
+                        } else {
+                            iterator.remove();
+                        }
+                    }
+                }
+            }finally {
+                evicting.set(false);
+            }
+        }
+
+        void clear(){
+            map.clear();
         }
-        return null;
     }
 
-    private class UrlPatternContext {
-        //默认Servlet
-        Element defaultObject = null;
-        //精确匹配
-        Map<String, Element> exactObjectMap = new HashMap<>();
-        //路径匹配
-        List<Element> wildcardObjectList = new LinkedList<>();
-        //扩展名匹配
-        Map<String, Element> extensionObjectMap = new HashMap<>();
-        //全部对象
-        List<Element> totalObjectList = new LinkedList<>();
-
-        public void addElement(Element mapElement){
-            totalObjectList.add(mapElement);
+    private static class CacheEntry<V> {
+        final V value;
+        //上次淘汰之后有没有被命中过
+        volatile boolean used;
+
+        CacheEntry(V value) {
+            this.value = value;
         }
     }
 
+    /**
+     * 路径树的节点, 每个节点是路径中的一段
+     */
+    private class Node {
+        //下一段路径
+        final Map<String,Node> children = new HashMap<>(4);
+        //精确匹配到这里
+        final List<Element> exactList = new ArrayList<>(1);
+        //路径匹配 (这里/*)
+        final List<Element> wildcardList = new ArrayList<>(1);
+    }
+
     private class Element {
         final String pattern;
         final T object;
         final String objectName;
-        
-        Element(String pattern, T object, String objectName) {
+        //增加的顺序, 过滤器按这个顺序执行
+        final int order;
+
+        Element(String pattern, T object, String objectName, int order) {
             this.pattern = pattern;
             this.object = object;
             this.objectName = objectName;
+            this.order = order;
         }
     }
 
-    public static class MappingData<T> implements Recyclable{
+    public static class MappingData<T> extends AbstractRecyclable {
         T object = null;
         String objectName;
         String redirectPath ;
@@ -3,14 +3,14 @@ package com.github.netty.servlet.util;
 import com.github.netty.core.NettyHttpCookie;
 import com.github.netty.core.constants.HttpHeaderConstants;
 import com.github.netty.core.util.CookieCodecUtil;
+import com.github.netty.servlet.support.ServletHttpDataFactory;
+import io.netty.handler.codec.DateFormatter;
 import io.netty.handler.codec.http.DefaultCookie;
-import io.netty.handler.codec.http.HttpRequest;
-import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.codec.http.multipart.*;
+import io.netty.util.AsciiString;
 import io.netty.util.concurrent.FastThreadLocal;
 
 import javax.servlet.http.Cookie;
-import java.io.IOException;
 import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -25,7 +25,12 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class ServletUtil {
 
-    private static final Map<String,HttpDataFactory> HTTP_DATA_FACTORY_MAP = new ConcurrentHashMap<>();
+    //Content-Type响应头的缓存 key=charset, value=(key=contentType, value=头的值)
+    private static final Map<String,Map<String,AsciiString>> CONTENT_TYPE_HEADER_MAP = new ConcurrentHashMap<>();
+    //缓存的contentType数量上限, 超过后不再缓存 (防止业务拼出无穷多的contentType)
+    private static final int CONTENT_TYPE_HEADER_CACHE_SIZE = 256;
+    //当前这一秒的Date响应头
+    private static volatile DateHeader dateHeader;
 
     /**
      * The only date format permitted when generating HTTP headers.
@@ -75,19 +80,6 @@ public class ServletUtil {
         return null;
     }
 
-    public static void decodeByUrl(Map<String,String[]> parameterMap, String uri, Charset charset){
-        if(uri.indexOf('?') == -1){
-            return;
-        }
-        QueryStringDecoder decoder = new QueryStringDecoder(uri,charset);
-
-        Map<String, List<String>> parameterListMap = decoder.parameters();
-        for(Map.Entry<String,List<String>> entry : parameterListMap.entrySet()){
-            List<String> value = entry.getValue();
-            parameterMap.put(entry.getKey(), value.toArray(new String[value.size()]));
-        }
-    }
-
     public static String decodeCharacterEncoding(String contentType) {
         if (contentType == null) {
             return null;
@@ -178,48 +170,21 @@ public class ServletUtil {
         return nettyCookie;
     }
 
-    public static void decodeByBody(Map<String,String[]> parameterMap,HttpRequest httpRequest,Charset charset){
-        HttpDataFactory factory = getHttpDataFactory(charset);
-        HttpPostRequestDecoder decoder = new HttpPostRequestDecoder(factory, httpRequest,charset);
-
-        while (decoder.hasNext()){
-            InterfaceHttpData interfaceData = decoder.next();
-            /*
-             * HttpDataType有三种类型
-             * Attribute, FileUpload, InternalAttribute
-             */
-            switch (interfaceData.getHttpDataType()){
-                case Attribute:{
-                    Attribute data = (Attribute) interfaceData;
-                    String name = data.getName();
-                    String value;
-                    try {
-                        value = data.getValue();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        value = "";
-                    }
-                    parameterMap.put(name, new String[]{value});
-                    break;
-                }
-                case FileUpload:{
-                    FileUpload data = (FileUpload) interfaceData;
-
-                    break;
-                }
-                case InternalAttribute:{
-//                    InternalAttribute data = (InternalAttribute) interfaceData;
-
-                    break;
-                }
-                default:{
-
-                    break;
-                }
-            }
 
+    /**
+     * 创建multipart上传用的工厂, 超过阈值的内容写到临时文件.
+     * 注: 不能共用, 工厂记录的是这一个请求创建的数据, 请求结束时统一删除临时文件
+     * @param charset 字符集
+     * @param fileSizeThreshold 超过这个字节数写到磁盘
+     * @param maxFileSize 单个文件的最大字节数 (-1=不限制)
+     * @return 工厂
+     */
+    public static HttpDataFactory newMultipartDataFactory(Charset charset, long fileSizeThreshold, long maxFileSize){
+        HttpDataFactory factory = new ServletHttpDataFactory(charset, fileSizeThreshold);
+        if(maxFileSize > 0) {
+            factory.setMaxLimit(maxFileSize);
         }
-        decoder.destroy();
+        return factory;
     }
 
     public static Long parseHeaderDate(String value) {
@@ -238,21 +203,6 @@ public class ServletUtil {
         return date.getTime();
     }
 
-    private static HttpDataFactory getHttpDataFactory(Charset charset){
-        String charsetName = charset.name();
-        HttpDataFactory factory = HTTP_DATA_FACTORY_MAP.get(charsetName);
-        if(factory == null){
-            synchronized (HTTP_DATA_FACTORY_MAP) {
-                factory = HTTP_DATA_FACTORY_MAP.get(charsetName);
-                if(factory == null) {
-                    //Disk false
-                    factory = new DefaultHttpDataFactory(false, charset);
-                    HTTP_DATA_FACTORY_MAP.put(charsetName, factory);
-                }
-            }
-        }
-        return factory;
-    }
 
     /**
      * @return 线程安全的获取当前时间格式化后的字符串
@@ -261,4 +211,70 @@ public class ServletUtil {
         return HTTP_DATE_FORMAT.get().format(new Date());
     }
 
+    /**
+     * 获取Date响应头的值. 每秒最多格式化一次, 同一秒内的响应共用一个 AsciiString
+     * @return RFC1123格式的当前时间
+     */
+    public static AsciiString getDateHeader() {
+        long second = System.currentTimeMillis() / 1000;
+        DateHeader header = dateHeader;
+        if(header == null || header.second != second){
+            //多个线程同时进来也只是多格式化几次, 不用加锁
+            header = new DateHeader(second, AsciiString.cached(DateFormatter.format(new Date(second * 1000))));
+            dateHeader = header;
+        }
+        return header.value;
+    }
+
+    /**
+     * 获取Content-Type响应头的值, 相同的contentType和charset只拼接一次
+     * @param contentType 内容类型
+     * @param characterEncoding 字符集, 可以为null
+     * @return contentType;charset=characterEncoding
+     */
+    public static CharSequence getContentTypeHeader(String contentType, String characterEncoding) {
+        String charsetKey = characterEncoding == null? "" : characterEncoding;
+        Map<String,AsciiString> headerMap = CONTENT_TYPE_HEADER_MAP.get(charsetKey);
+        if(headerMap == null){
+            headerMap = CONTENT_TYPE_HEADER_MAP.computeIfAbsent(charsetKey, k -> new ConcurrentHashMap<>(16));
+        }
+        AsciiString value = headerMap.get(contentType);
+        if(value != null){
+            return value;
+        }
+
+        String header = (null == characterEncoding) ? contentType :
+                new StringBuilder(contentType)
+                        .append(';')
+                        .append(HttpHeaderConstants.CHARSET)
+                        .append('=')
+                        .append(characterEncoding).toString();
+        //非ascii字符不能放进AsciiString
+        if(headerMap.size() >= CONTENT_TYPE_HEADER_CACHE_SIZE || !isAscii(header)){
+            return header;
+        }
+        value = AsciiString.cached(header);
+        headerMap.put(contentType, value);
+        return value;
+    }
+
+    public static boolean isAscii(String value){
+        for(int i=0; i<value.length(); i++){
+            if(value.charAt(i) > 127){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class DateHeader {
+        private final long second;
+        private final AsciiString value;
+
+        private DateHeader(long second, AsciiString value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+
 }
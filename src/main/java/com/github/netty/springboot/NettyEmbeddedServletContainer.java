@@ -1,20 +1,30 @@
 package com.github.netty.springboot;
 
 import com.github.netty.core.AbstractNettyServer;
+import com.github.netty.core.support.Optimize;
 import com.github.netty.core.util.TodoOptimize;
 import com.github.netty.servlet.ServletContext;
 import com.github.netty.servlet.ServletFilterRegistration;
 import com.github.netty.servlet.ServletRegistration;
+import com.github.netty.servlet.support.DispatchAdmissionHandler;
+import com.github.netty.servlet.support.HttpResponseSequencer;
+import com.github.netty.servlet.support.ServletDispatcher;
 import com.github.netty.servlet.support.ServletEventListenerManager;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http2.*;
+import io.netty.handler.ssl.*;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
 import org.springframework.boot.context.embedded.EmbeddedServletContainer;
 import org.springframework.boot.context.embedded.EmbeddedServletContainerException;
 import org.springframework.boot.context.embedded.Ssl;
@@ -36,6 +46,9 @@ import java.util.Map;
  */
 public class NettyEmbeddedServletContainer implements EmbeddedServletContainer {
 
+    //请求体聚合的最大字节数
+    private static final int MAX_CONTENT_LENGTH = 512 * 1024;
+
     private final ServletContext servletContext;
 
     private ServletServer servletServer;
@@ -79,7 +92,9 @@ public class NettyEmbeddedServletContainer implements EmbeddedServletContainer {
 
     class ServletServer extends AbstractNettyServer{
         private final Thread servletServerThread;
+        private final NettyServletHandler servletHandler;
         private boolean enableSsl;
+        private boolean enableHttp2;
         private SslContext sslContext;
 
         @TodoOptimize("ssl没测试能不能用")
@@ -87,6 +102,8 @@ public class NettyEmbeddedServletContainer implements EmbeddedServletContainer {
             super(address);
 
             this.servletServerThread = new Thread(this,getName());
+            this.servletHandler = new NettyServletHandler(servletContext);
+            this.enableHttp2 = Optimize.isEnableHttp2();
             initSsl(ssl);
         }
 
@@ -100,8 +117,6 @@ public class NettyEmbeddedServletContainer implements EmbeddedServletContainer {
         @Override
         protected ChannelInitializer<? extends Channel> newInitializerChannelHandler() {
             return new ChannelInitializer<SocketChannel>() {
-                private ChannelHandler servletHandler = new NettyServletHandler(servletContext);
-
                 @Override
                 protected void initChannel(SocketChannel ch) throws Exception {
                     ChannelPipeline pipeline = ch.pipeline();
@@ -113,30 +128,126 @@ public class NettyEmbeddedServletContainer implements EmbeddedServletContainer {
                         pipeline.addLast("SSL", new SslHandler(engine,true));
                     }
 
+                    //合并flush, 管道化的多个响应和分段写出的多次flush合并成一次系统调用.
+                    //放在ssl后面(靠近业务的一侧), 合并后的多段内容由SslHandler一起加密, 不用每次flush单独加密成一个记录
+                    int flushConsolidationCount = Optimize.getServerFlushConsolidationCount();
+                    if(flushConsolidationCount > 0) {
+                        pipeline.addLast("FlushConsolidation", new FlushConsolidationHandler(flushConsolidationCount, true));
+                    }
+
+                    //ssl握手时由ALPN协商使用http2还是http1.1
+                    if (enableSsl && enableHttp2) {
+                        pipeline.addLast("ProtocolNegotiation", new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                            @Override
+                            protected void configurePipeline(ChannelHandlerContext ctx, String protocol) throws Exception {
+                                if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                                    ctx.pipeline().addLast("Http2", newHttp2Codec());
+                                } else {
+                                    ctx.pipeline().addLast("HttpCodec", newHttpServerCodec());
+                                    addHttp1Handlers(ctx.pipeline());
+                                }
+                            }
+                        });
+                        return;
+                    }
 
                     //HTTP编码解码
-                    pipeline.addLast("HttpCodec", new HttpServerCodec(4096, 8192, 8192, false));
+                    HttpServerCodec httpServerCodec = newHttpServerCodec();
+                    if(enableHttp2 && !enableSsl){
+                        //h2c: 支持 Upgrade: h2c 升级, 也支持直接发送http2连接前言(prior-knowledge). 其他请求还是走http1.1
+                        HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(httpServerCodec, protocol ->
+                                AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol) ?
+                                        new Http2ServerUpgradeCodec(newHttp2Codec()) : null, MAX_CONTENT_LENGTH);
+                        pipeline.addLast("Http2cUpgrade", new CleartextHttp2ServerUpgradeHandler(httpServerCodec, upgradeHandler, newHttp2Codec()));
+                    }else {
+                        pipeline.addLast("HttpCodec", httpServerCodec);
+                    }
+                    addHttp1Handlers(pipeline);
+                }
+            };
+        }
+
+        private HttpServerCodec newHttpServerCodec(){
+            return new HttpServerCodec(4096, 8192, 8192, false);
+        }
 
-                    //HTTP聚合，设置最大消息值为512KB
-                    pipeline.addLast("Aggregator", new HttpObjectAggregator(512 * 1024));
+        /**
+         * http1.1 编解码之后的处理器
+         */
+        private void addHttp1Handlers(ChannelPipeline pipeline){
+            //线程池排满时, 在收到请求头时就拒绝, 不再接收请求体
+            addAdmissionHandler(pipeline);
 
-                    //内容压缩
+            //HTTP聚合，设置最大消息值为512KB. 流式模式下不聚合, 请求体由NettyServletHandler陆续交给输入流
+            if(!isStreamRequest()) {
+                pipeline.addLast("Aggregator", new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+            }
+
+            //内容压缩
 //                    pipeline.addLast("ContentCompressor", new HttpContentCompressor());
 //                pipeline.addLast("ContentDecompressor", new HttpContentDecompressor());
 
-                    //分段写入, 防止响应数据过大
-//                pipeline.addLast("ChunkedWrite",new ChunkedWriteHandler());
+            //分段写入, 防止响应数据过大. ssl下静态文件不能用sendfile, 需要分段读取文件写出
+            if (enableSsl) {
+                pipeline.addLast("ChunkedWrite", new ChunkedWriteHandler());
+            }
 
-                    //业务调度器, 让对应的Servlet处理请求
-                    pipeline.addLast("ServletHandler", servletHandler);
-                }
-            };
+            //管道化的请求并发执行, 响应按请求的顺序写出
+            if(Optimize.isEnableHttpPipeliningSequence()) {
+                pipeline.addLast("ResponseSequencer", new HttpResponseSequencer());
+            }
+
+            //业务调度器, 让对应的Servlet处理请求
+            pipeline.addLast("ServletHandler", servletHandler);
+        }
+
+        /**
+         * 是否流式接收请求体. 调度方式是EVENT_LOOP时servlet在io线程上读输入流会死锁, 只能等请求体收完,
+         * 流式接收没有意义, 而且积压到高水位暂停读取后没有人去读, 连接会卡住. 所以退回聚合, 超过上限响应413
+         */
+        private boolean isStreamRequest(){
+            return Optimize.isEnableServletStreamRequest() && !servletHandler.getDispatcher().isEventLoop();
+        }
+
+        /**
+         * 只有会排队的调度方式需要准入控制
+         */
+        private void addAdmissionHandler(ChannelPipeline pipeline){
+            ServletDispatcher dispatcher = servletHandler.getDispatcher();
+            if(dispatcher.getMaxPendingCount() != Integer.MAX_VALUE) {
+                pipeline.addLast("DispatchAdmission", new DispatchAdmissionHandler(dispatcher));
+            }
         }
 
+        /**
+         * http2连接的处理器, 每个流是一个子channel, 流里的帧转换为http1.1的对象, 和http1.1走同一个servlet调度
+         */
+        private Http2MultiplexCodec newHttp2Codec(){
+            return Http2MultiplexCodecBuilder.forServer(http2StreamInitializer)
+                    .initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(Optimize.getHttp2MaxConcurrentStreams()))
+                    .build();
+        }
+
+        private final ChannelInitializer<Channel> http2StreamInitializer = new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                ChannelPipeline pipeline = ch.pipeline();
+                pipeline.addLast("Http2StreamCodec", new Http2StreamFrameToHttpObjectCodec(true));
+                addAdmissionHandler(pipeline);
+                if(!isStreamRequest()) {
+                    pipeline.addLast("Aggregator", new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+                }
+                //流里不能用sendfile, 静态文件需要分段读取写出
+                pipeline.addLast("ChunkedWrite", new ChunkedWriteHandler());
+                pipeline.addLast("ServletHandler", servletHandler);
+            }
+        };
+
         @Override
         public void stop() {
             destroyFilter();
             destroyServlet();
+            servletHandler.getDispatcher().shutdown();
             super.stop();
         }
 
@@ -170,8 +281,26 @@ public class NettyEmbeddedServletContainer implements EmbeddedServletContainer {
             File keyFile = new File(ssl.getKeyStore());
             String keyPassword = ssl.getKeyPassword();
 
-            SslContext sslContext = SslContext.newServerContext(certChainFile,keyFile,keyPassword);
-            return sslContext;
+            if(enableHttp2){
+                try {
+                    //jdk8没有ALPN (需要alpn-boot或者openssl), 可能在build()时报错, 也可能在创建SSLEngine的时候才报错
+                    SslContext sslContext = SslContextBuilder.forServer(certChainFile,keyFile,keyPassword)
+                            .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                            .applicationProtocolConfig(new ApplicationProtocolConfig(
+                                    ApplicationProtocolConfig.Protocol.ALPN,
+                                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                                    ApplicationProtocolNames.HTTP_2,
+                                    ApplicationProtocolNames.HTTP_1_1))
+                            .build();
+                    ReferenceCountUtil.release(sslContext.newEngine(ByteBufAllocator.DEFAULT));
+                    return sslContext;
+                }catch (SSLException | RuntimeException e){
+                    logger.warn("ALPN is not supported, http2 over ssl is disabled. cause = " + e);
+                    enableHttp2 = false;
+                }
+            }
+            return SslContextBuilder.forServer(certChainFile,keyFile,keyPassword).build();
         }
     }
 }
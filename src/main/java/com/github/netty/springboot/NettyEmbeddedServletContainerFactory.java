@@ -15,6 +15,7 @@ import org.springframework.web.servlet.DispatcherServlet;
 
 import javax.net.ssl.SSLException;
 import javax.servlet.ServletException;
+import java.io.File;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -153,8 +154,10 @@ public class NettyEmbeddedServletContainerFactory extends AbstractEmbeddedServle
      * @param servletContext servlet上下文
      */
     protected void registerDefaultServlet(ServletContext servletContext){
-        ServletDefaultHttpServlet defaultServlet = new ServletDefaultHttpServlet();
-        servletContext.addServlet("default",defaultServlet);
+        File documentRoot = getValidDocumentRoot();
+        ServletDefaultHttpServlet defaultServlet = documentRoot == null?
+                new ServletDefaultHttpServlet() : new ServletDefaultHttpServlet(documentRoot);
+        servletContext.addServlet(ServletContext.DEFAULT_SERVLET_NAME,defaultServlet);
     }
 
     /**
@@ -4,11 +4,16 @@ import com.github.netty.core.AbstractChannelHandler;
 import com.github.netty.core.support.*;
 import com.github.netty.core.util.ExceptionUtil;
 import com.github.netty.core.util.HttpHeaderUtil;
+import com.github.netty.servlet.ServletAsyncContext;
 import com.github.netty.servlet.ServletContext;
 import com.github.netty.servlet.ServletHttpServletRequest;
+import com.github.netty.servlet.ServletInputStream;
 import com.github.netty.servlet.ServletHttpServletResponse;
 import com.github.netty.servlet.ServletRequestDispatcher;
+import com.github.netty.servlet.support.DispatchAdmissionHandler;
+import com.github.netty.servlet.support.HttpResponseSequencer;
 import com.github.netty.servlet.support.HttpServletObject;
+import com.github.netty.servlet.support.ServletDispatcher;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
@@ -16,12 +21,14 @@ import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.Objects;
-import java.util.concurrent.Executor;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -29,40 +36,150 @@ import java.util.concurrent.atomic.AtomicLong;
  *  2018/7/1/001
  */
 @ChannelHandler.Sharable
-public class NettyServletHandler extends AbstractChannelHandler<FullHttpRequest> {
+public class NettyServletHandler extends AbstractChannelHandler<Object> {
 
-    private Executor dispatcherExecutor;
+    /**
+     * 流式模式下, 当前正在接收请求体的输入流
+     */
+    private static final AttributeKey<ServletInputStream> STREAM_INPUT_KEY = AttributeKey.valueOf(NettyServletHandler.class + "#StreamInput");
+
+
+    private final ServletDispatcher dispatcher;
     private ServletContext servletContext;
 
-    public static AtomicLong SERVLET_AND_FILTER_TIME = new AtomicLong();
-    public static AtomicLong SERVLET_QUERY_COUNT = new AtomicLong();
+    //整个请求的耗时 (查找servlet+过滤器+servlet), 需要开启 Optimize.isEnableServletLatencyHistogram()
+    public static final LatencyHistogram REQUEST_LATENCY_HISTOGRAM = LatencyHistogram.get("request");
 
     public NettyServletHandler(ServletContext servletContext) {
         super(false);
         this.servletContext = Objects.requireNonNull(servletContext);
-        this.dispatcherExecutor = Optimize.getServletHandlerExecutor();
+        this.dispatcher = ServletDispatcher.newInstance();
+    }
+
+    public ServletDispatcher getDispatcher() {
+        return dispatcher;
     }
 
     @Override
-    protected void onMessageReceived(ChannelHandlerContext context, FullHttpRequest fullHttpRequest) throws Exception {
+    protected void onMessageReceived(ChannelHandlerContext context, Object msg) throws Exception {
+        if(msg instanceof DispatchAdmissionHandler.RejectedRequest){
+            onRequestRejected(context, (HttpRequest) msg);
+        }else if(msg instanceof FullHttpRequest) {
+            onFullRequestReceived(context, (FullHttpRequest) msg);
+        }else if(msg instanceof HttpRequest){
+            onRequestHeadReceived(context, (HttpRequest) msg);
+        }else if(msg instanceof HttpContent){
+            onRequestContentReceived(context, (HttpContent) msg);
+        }else {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private void onFullRequestReceived(ChannelHandlerContext context, FullHttpRequest fullHttpRequest) {
         Runnable task;
         if(Optimize.isEnableRawNetty()) {
             task = newTaskForRaw(context,fullHttpRequest);
+            if(!dispatcher.dispatch(task)){
+                fullHttpRequest.release();
+            }
+            return;
         }else {
             HttpServletObject httpServletObject = HttpServletObject.newInstance(
                     servletContext,
                     PartialPooledByteBufAllocator.forceDirectAllocator(context),
                     fullHttpRequest);
-            task = ServletTask.newInstance(httpServletObject);
+            setResponseSequence(context,httpServletObject);
+            task = ServletTask.newInstance(httpServletObject,dispatcher);
         }
+        dispatch(task);
+    }
 
-        if(dispatcherExecutor != null) {
-            dispatcherExecutor.execute(task);
-        }else {
-            task.run();
+    /**
+     * 派发给调度器, 线程池排满时响应503
+     */
+    private void dispatch(Runnable task){
+        if(task instanceof ServletTask && Optimize.isEnableServletLatencyHistogram() && !dispatcher.isEventLoop()){
+            ((ServletTask) task).dispatchTime = System.nanoTime();
+        }
+        if(!dispatcher.dispatch(task) && task instanceof ServletTask){
+            ((ServletTask) task).reject();
         }
     }
 
+    /**
+     * 收到请求头时线程池已经排满, 请求体已经被丢弃了, 直接响应503 (还是要按管道化的顺序写出)
+     */
+    private void onRequestRejected(ChannelHandlerContext context, HttpRequest httpRequest){
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE, Unpooled.EMPTY_BUFFER);
+        HttpUtil.setContentLength(response, 0);
+        response.headers().set(HttpHeaderNames.RETRY_AFTER, 1);
+
+        //客户端在等100-continue时可能不发请求体, 就没法知道请求体到哪结束了, 只能关闭连接
+        boolean keepAlive = context.channel() instanceof Http2StreamChannel
+                || (HttpUtil.isKeepAlive(httpRequest) && !HttpUtil.is100ContinueExpected(httpRequest));
+        if(!(context.channel() instanceof Http2StreamChannel)) {
+            HttpUtil.setKeepAlive(response, keepAlive);
+        }
+
+        HttpResponseSequencer sequencer = context.pipeline().get(HttpResponseSequencer.class);
+        Object message = sequencer == null? response : HttpResponseSequencer.wrap(sequencer.nextRequestSequence(), response);
+        ChannelFuture future = context.writeAndFlush(message);
+        if(!keepAlive){
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * 流式模式: 收到请求头就派发, 请求体之后陆续放进输入流
+     */
+    private void onRequestHeadReceived(ChannelHandlerContext context, HttpRequest httpRequest) {
+        HttpServletObject httpServletObject = HttpServletObject.newInstance(
+                servletContext,
+                PartialPooledByteBufAllocator.forceDirectAllocator(context),
+                httpRequest);
+        setResponseSequence(context,httpServletObject);
+        //管道化时要等前面的响应写完再写, 不能插到前一个响应的中间
+        if(HttpUtil.is100ContinueExpected(httpRequest)){
+            FullHttpResponse continueResponse = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE, Unpooled.EMPTY_BUFFER);
+            int sequence = httpServletObject.getResponseSequence();
+            context.writeAndFlush(sequence < 0? continueResponse : HttpResponseSequencer.wrap(sequence, continueResponse));
+        }
+        context.channel().attr(STREAM_INPUT_KEY).set(httpServletObject.getHttpServletRequest().getInputStream());
+
+        dispatch(ServletTask.newInstance(httpServletObject,dispatcher));
+    }
+
+    /**
+     * 管道化的请求会并发执行, 收到时按顺序编号, 写出时由 {@link HttpResponseSequencer} 还原顺序 (http2的流没有这个处理器)
+     */
+    private void setResponseSequence(ChannelHandlerContext context, HttpServletObject httpServletObject){
+        HttpResponseSequencer sequencer = context.pipeline().get(HttpResponseSequencer.class);
+        if(sequencer != null){
+            httpServletObject.setResponseSequence(sequencer.nextRequestSequence());
+        }
+    }
+
+    private void onRequestContentReceived(ChannelHandlerContext context, HttpContent httpContent) {
+        boolean last = httpContent instanceof LastHttpContent;
+        ServletInputStream inputStream = last?
+                context.channel().attr(STREAM_INPUT_KEY).getAndSet(null) : context.channel().attr(STREAM_INPUT_KEY).get();
+        if(inputStream == null){
+            ReferenceCountUtil.release(httpContent);
+            return;
+        }
+        inputStream.onContent(httpContent.content(),last);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        ServletInputStream inputStream = ctx.channel().attr(STREAM_INPUT_KEY).getAndSet(null);
+        if(inputStream != null){
+            inputStream.onAbort(new IOException("连接在请求体接收完之前关闭"));
+        }
+        HttpServletObject.releaseChannelBound(ctx.channel());
+        super.channelInactive(ctx);
+    }
+
     /**
      * 原生不加业务的代码, 用于测试原生的响应速度
      * @param context
@@ -71,6 +188,7 @@ public class NettyServletHandler extends AbstractChannelHandler<FullHttpRequest>
      */
     private Runnable newTaskForRaw(ChannelHandlerContext context, FullHttpRequest fullHttpRequest){
         return () -> {
+            dispatcher.onTaskStart(0);
             boolean isKeepAlive = HttpHeaderUtil.isKeepAlive(fullHttpRequest);
             ByteBuf content = Unpooled.wrappedBuffer("ok".getBytes());
             FullHttpResponse fullHttpResponse = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
@@ -90,6 +208,7 @@ public class NettyServletHandler extends AbstractChannelHandler<FullHttpRequest>
                             fullHttpRequest.release();
                         }
                     });
+            dispatcher.onTaskEnd();
         };
     }
 
@@ -102,8 +221,11 @@ public class NettyServletHandler extends AbstractChannelHandler<FullHttpRequest>
         }
     }
 
-    static class ServletTask implements Runnable,Recyclable{
+    static class ServletTask extends AbstractRecyclable implements Runnable{
         HttpServletObject httpServletObject;
+        ServletDispatcher dispatcher;
+        //派发时的 System.nanoTime(), 用于统计排队耗时. 0 = 不统计
+        long dispatchTime;
 
         private static final AbstractRecycler<ServletTask> RECYCLER = new AbstractRecycler<ServletTask>() {
             @Override
@@ -112,24 +234,44 @@ public class NettyServletHandler extends AbstractChannelHandler<FullHttpRequest>
             }
         };
 
-        private static ServletTask newInstance(HttpServletObject httpServletObject) {
+        private static ServletTask newInstance(HttpServletObject httpServletObject,ServletDispatcher dispatcher) {
             ServletTask instance = RECYCLER.get();
             instance.httpServletObject = httpServletObject;
+            instance.dispatcher = dispatcher;
             return instance;
         }
 
         @Override
         public void recycle() {
             httpServletObject = null;
+            dispatcher = null;
+            dispatchTime = 0;
             RECYCLER.recycle(ServletTask.this);
         }
 
+        /**
+         * 线程池排满了, 没有执行, 直接响应503
+         */
+        void reject() {
+            try {
+                httpServletObject.getHttpServletResponse().sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }catch (Throwable throwable){
+                ExceptionUtil.printRootCauseStackTrace(throwable);
+            }finally {
+                httpServletObject.recycle();
+                ServletTask.this.recycle();
+            }
+        }
+
         @Override
         public void run() {
+            ensureNotRecycled();
+            dispatcher.onTaskStart(dispatchTime);
             ServletHttpServletRequest httpServletRequest = httpServletObject.getHttpServletRequest();
             ServletHttpServletResponse httpServletResponse = httpServletObject.getHttpServletResponse();
 
-            long beginTime = System.currentTimeMillis();
+            boolean enableLatency = Optimize.isEnableServletLatencyHistogram();
+            long beginTime = enableLatency? System.nanoTime() : 0;
             try {
                 ServletRequestDispatcher dispatcher = httpServletRequest.getRequestDispatcher(httpServletRequest.getRequestURI());
                 if (dispatcher == null) {
@@ -141,8 +283,9 @@ public class NettyServletHandler extends AbstractChannelHandler<FullHttpRequest>
             }catch (Throwable throwable){
                 ExceptionUtil.printRootCauseStackTrace(throwable);
             }finally {
-                long totalTime = System.currentTimeMillis() - beginTime;
-                SERVLET_AND_FILTER_TIME.addAndGet(totalTime);
+                if(enableLatency) {
+                    REQUEST_LATENCY_HISTOGRAM.record(System.nanoTime() - beginTime);
+                }
                 /*
                  * 每个响应对象是只有当在servlet的service方法的范围内或在filter的doFilter方法范围内是有效的，除非该
                  * 组件关联的请求对象已经开启异步处理。如果相关的请求已经启动异步处理，那么直到AsyncContext的
@@ -150,14 +293,16 @@ public class NettyServletHandler extends AbstractChannelHandler<FullHttpRequest>
                  * 在相关的请求的startAsync 还没有调用时，开发人员必须意识到保持到响应对象引用，超出之上描述的范
                  * 围可能导致不确定的行为
                  */
-                if(!httpServletRequest.isAsync()) {
+                ServletAsyncContext asyncContext = httpServletRequest.getAsyncContext();
+                if(asyncContext == null) {
                     httpServletObject.recycle();
+                }else {
+                    //开始计时异步超时, 或者执行派发过程中已经调用的complete()/dispatch(). 之后不能再使用httpServletObject
+                    asyncContext.onDispatchReturned();
                 }
 
+                dispatcher.onTaskEnd();
                 ServletTask.this.recycle();
-
-
-                SERVLET_QUERY_COUNT.incrementAndGet();
             }
         }
     }
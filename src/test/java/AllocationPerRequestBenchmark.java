@@ -0,0 +1,127 @@
+import com.github.netty.core.support.Optimize;
+import com.github.netty.servlet.ServletContext;
+import com.github.netty.servlet.ServletSessionCookieConfig;
+import com.github.netty.session.impl.LocalSessionServiceImpl;
+import com.github.netty.springboot.NettyEmbeddedServletContainer;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 每个请求在服务端分配的内存 (keep-alive连接, 一个请求接一个请求)
+ * 对比连接绑定请求响应对象前后的差别: 修改 {@link Optimize#isEnableChannelBoundServletObject()} 后再运行一次
+ * @author 84215
+ */
+public class AllocationPerRequestBenchmark {
+
+    static final int PORT = 18081;
+    static final int WARMUP_COUNT = 20000;
+    static final int QUERY_COUNT = 50000;
+    static final byte[] REQUEST = ("GET /hello?id=1&name=abc HTTP/1.1\r\n" +
+            "Host: 127.0.0.1\r\n" +
+            "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        long bytes = measure();
+        System.out.println("连接绑定请求响应对象 = " + Optimize.isEnableChannelBoundServletObject() + ", 每个请求分配 = " + bytes + "字节");
+        //session的过期检查线程不是守护线程
+        System.exit(0);
+    }
+
+    private static long measure() throws Exception {
+        ServletContext servletContext = new ServletContext(new InetSocketAddress(PORT),
+                AllocationPerRequestBenchmark.class.getClassLoader(), "", "benchmark", new ServletSessionCookieConfig());
+        servletContext.setSessionService(new LocalSessionServiceImpl());
+        servletContext.addServlet("hello", new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+                response.setContentType("text/plain");
+                response.getWriter().write("hello " + request.getParameter("name"));
+            }
+        }).addMapping("/hello");
+
+        NettyEmbeddedServletContainer container = new NettyEmbeddedServletContainer(servletContext, null);
+        container.start();
+        Thread.sleep(1000);
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            query(out, in, WARMUP_COUNT);
+
+            long clientThreadId = Thread.currentThread().getId();
+            long begin = totalAllocatedBytes(clientThreadId);
+            query(out, in, QUERY_COUNT);
+            long end = totalAllocatedBytes(clientThreadId);
+            return (end - begin) / QUERY_COUNT;
+        }finally {
+            container.stop();
+        }
+    }
+
+    private static void query(OutputStream out, InputStream in, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.write(REQUEST);
+            out.flush();
+            readResponse(in);
+        }
+    }
+
+    /**
+     * 读到响应头结束, 再按Content-Length跳过响应体
+     */
+    private static void readResponse(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int contentLength = 0;
+        while (true) {
+            int b = in.read();
+            if(b == -1){
+                throw new EOFException("连接已关闭");
+            }
+            if(b != '\n'){
+                if(b != '\r') {
+                    line.append((char) b);
+                }
+                continue;
+            }
+            if(line.length() == 0){
+                break;
+            }
+            String header = line.toString().toLowerCase();
+            if(header.startsWith("content-length:")){
+                contentLength = Integer.parseInt(header.substring("content-length:".length()).trim());
+            }
+            line.setLength(0);
+        }
+        for (int i = 0; i < contentLength; i++) {
+            if(in.read() == -1){
+                throw new EOFException("连接已关闭");
+            }
+        }
+    }
+
+    /**
+     * 除了客户端线程以外, 所有线程分配的字节数
+     */
+    private static long totalAllocatedBytes(long excludeThreadId){
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for(long threadId : threadMXBean.getAllThreadIds()){
+            if(threadId == excludeThreadId){
+                continue;
+            }
+            long bytes = threadMXBean.getThreadAllocatedBytes(threadId);
+            if(bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,138 @@
+import com.github.netty.core.rpc.RpcClient;
+import com.github.netty.core.rpc.RpcInterface;
+import com.github.netty.core.rpc.RpcServer;
+import com.github.netty.core.rpc.codec.BinaryDataCodec;
+import com.github.netty.core.rpc.codec.DataCodec;
+import com.github.netty.core.rpc.codec.JsonDataCodec;
+
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 编码解码器对比: json (WriteClassName) 和 二进制 (按方法参数类型编码)
+ * 1.单线程编码解码: 一次请求的编码+解码, 一次响应的编码+解码, 看耗时和字节数
+ * 2.rpc调用: 同一个服务端, 客户端分别用两种编码解码器, 看qps
+ * @author 84215
+ */
+public class DataCodecBenchmark {
+
+    static final int PORT = 18083;
+    static final int CODEC_COUNT = 500000;
+    static final int THREAD_COUNT = 32;
+    static final int RPC_COUNT = 5000;
+
+    @RpcInterface(value = "/benchmark/codec", timeout = 5000)
+    public interface CodecService {
+        long sum(int a, long b, double c);
+        String put(String key, byte[] value, int expire);
+        List<String> tags(String name, List<String> tags);
+    }
+
+    public static class CodecServiceImpl implements CodecService {
+        @Override
+        public long sum(int a, long b, double c) {
+            return a + b + (long) c;
+        }
+
+        @Override
+        public String put(String key, byte[] value, int expire) {
+            return key;
+        }
+
+        @Override
+        public List<String> tags(String name, List<String> tags) {
+            return tags;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] value = new byte[256];
+        Arrays.fill(value, (byte) 'v');
+        List<String> tags = Arrays.asList("session", "user", "cache");
+
+        Method sum = CodecService.class.getMethod("sum", int.class, long.class, double.class);
+        Method put = CodecService.class.getMethod("put", String.class, byte[].class, int.class);
+        Method tagsMethod = CodecService.class.getMethod("tags", String.class, List.class);
+
+        DataCodec[] codecs = {new JsonDataCodec(), new BinaryDataCodec()};
+        System.out.println("=============== 编码解码 (" + CODEC_COUNT + "次) ===============");
+        for (DataCodec codec : codecs) {
+            //预热
+            runCodec(codec, sum, new Object[]{12, 1234567890123L, 3.5}, 1234567890138L, CODEC_COUNT / 10);
+            runCodec(codec, put, new Object[]{"session:8a7c0f", value, 1800}, "session:8a7c0f", CODEC_COUNT / 10);
+            runCodec(codec, tagsMethod, new Object[]{"user", tags}, tags, CODEC_COUNT / 10);
+
+            printCodec(codec, "sum(int,long,double)", runCodec(codec, sum, new Object[]{12, 1234567890123L, 3.5}, 1234567890138L, CODEC_COUNT));
+            printCodec(codec, "put(String,byte[256],int)", runCodec(codec, put, new Object[]{"session:8a7c0f", value, 1800}, "session:8a7c0f", CODEC_COUNT));
+            printCodec(codec, "tags(String,List)", runCodec(codec, tagsMethod, new Object[]{"user", tags}, tags, CODEC_COUNT));
+        }
+
+        System.out.println("=============== rpc调用 (线程数 = " + THREAD_COUNT + ", 每个线程" + RPC_COUNT + "次) ===============");
+        RpcServer server = new RpcServer("Codec", new InetSocketAddress(PORT));
+        server.addService(new CodecServiceImpl());
+        new Thread(server).start();
+        Thread.sleep(1000);
+
+        for (DataCodec codec : new DataCodec[]{new JsonDataCodec(), new BinaryDataCodec()}) {
+            RpcClient client = new RpcClient("Codec", new InetSocketAddress("127.0.0.1", PORT), 4, codec);
+            CodecService codecService = client.newInstance(CodecService.class);
+            //预热
+            runRpc(codecService, value, 500);
+
+            long beginTime = System.currentTimeMillis();
+            runRpc(codecService, value, RPC_COUNT);
+            long totalTime = System.currentTimeMillis() - beginTime;
+            long total = (long) THREAD_COUNT * RPC_COUNT;
+            System.out.println(codec.getName() + " : 调用次数 = " + total + ", 耗时 = " + totalTime + "ms, qps = " + (total * 1000 / Math.max(1, totalTime)));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return {请求字节数, 响应字节数, 耗时(纳秒)}
+     */
+    static long[] runCodec(DataCodec codec, Method method, Object[] args, Object result, int count) {
+        long requestBytes = 0;
+        long responseBytes = 0;
+        long beginTime = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            byte[] request = codec.encodeRequestData(args, method);
+            Object[] decodeArgs = codec.decodeRequestData(request, method);
+            byte[] response = codec.encodeResponseData(result, method);
+            Object decodeResult = codec.decodeResponseData(response, method);
+            if (decodeArgs.length != args.length || decodeResult == null) {
+                throw new IllegalStateException("decode error");
+            }
+            requestBytes = request.length;
+            responseBytes = response.length;
+        }
+        return new long[]{requestBytes, responseBytes, System.nanoTime() - beginTime};
+    }
+
+    static void printCodec(DataCodec codec, String methodName, long[] result) {
+        System.out.println(codec.getName() + " " + methodName + " : 请求 = " + result[0] + "字节, 响应 = " + result[1] + "字节, 每次 = " + (result[2] / CODEC_COUNT) + "ns");
+    }
+
+    static void runRpc(CodecService codecService, byte[] value, int count) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        codecService.sum(i, i, i);
+                        codecService.put("session:" + i, value, 1800);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    latch.countDown();
+                }
+            }, "Codec-" + t).start();
+        }
+        latch.await();
+    }
+
+}
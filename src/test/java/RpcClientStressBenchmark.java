@@ -0,0 +1,123 @@
+import com.github.netty.core.rpc.RpcClient;
+import com.github.netty.core.rpc.RpcInterface;
+import com.github.netty.core.rpc.RpcServer;
+import com.github.netty.core.rpc.exception.RpcTimeoutException;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * rpc客户端多线程压测, 检查等待响应的请求表 (RpcPendingTable) 在并发下有没有丢响应, 串响应
+ * 每个线程交替做同步调用和一批异步调用, 每个响应都要和请求的值对上. 结束后请求表应该是空的
+ * @author 84215
+ */
+public class RpcClientStressBenchmark {
+
+    static final int PORT = 18082;
+    static final int THREAD_COUNT = 64;
+    static final int ROUND_COUNT = 2000;
+    //每轮异步调用的数量
+    static final int ASYNC_BATCH = 8;
+
+    @RpcInterface(value = "/stress/echo", timeout = 5000)
+    public interface EchoService {
+        long echo(long value);
+    }
+
+    @RpcInterface(value = "/stress/echo", timeout = 5000)
+    public interface EchoAsyncService {
+        CompletableFuture<Long> echo(long value);
+    }
+
+    public static class EchoServiceImpl implements EchoService {
+        @Override
+        public long echo(long value) {
+            return value;
+        }
+    }
+
+    static final AtomicLong OK_COUNT = new AtomicLong();
+    static final AtomicLong MISMATCH_COUNT = new AtomicLong();
+    static final AtomicLong TIMEOUT_COUNT = new AtomicLong();
+    static final AtomicLong ERROR_COUNT = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        RpcServer server = new RpcServer("Stress", new InetSocketAddress(PORT));
+        server.addService(new EchoServiceImpl());
+        new Thread(server).start();
+        Thread.sleep(1000);
+
+        RpcClient client = new RpcClient("Stress", new InetSocketAddress("127.0.0.1", PORT), 8);
+        EchoService echoService = client.newInstance(EchoService.class);
+        EchoAsyncService echoAsyncService = client.newInstance(EchoAsyncService.class);
+
+        //预热
+        run(echoService, echoAsyncService, 200);
+        OK_COUNT.set(0);
+
+        long beginTime = System.currentTimeMillis();
+        run(echoService, echoAsyncService, ROUND_COUNT);
+        long totalTime = System.currentTimeMillis() - beginTime;
+
+        long total = (long) THREAD_COUNT * ROUND_COUNT * (1 + ASYNC_BATCH);
+        System.out.println("===============================");
+        System.out.println("线程数 = " + THREAD_COUNT + ", 调用次数 = " + total + ", 耗时 = " + totalTime + "ms, qps = " + (total * 1000 / Math.max(1, totalTime)));
+        System.out.println("成功 = " + OK_COUNT.get() + ", 响应对不上 = " + MISMATCH_COUNT.get() + ", 超时 = " + TIMEOUT_COUNT.get() + ", 异常 = " + ERROR_COUNT.get());
+        System.out.println("结束后请求表剩余 = " + client.getPendingCount());
+        System.exit(MISMATCH_COUNT.get() == 0 && client.getPendingCount() == 0 ? 0 : 1);
+    }
+
+    static void run(EchoService echoService, EchoAsyncService echoAsyncService, int roundCount) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(THREAD_COUNT);
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            long base = (long) t << 32;
+            new Thread(() -> {
+                try {
+                    CompletableFuture<Long>[] futures = new CompletableFuture[ASYNC_BATCH];
+                    for (int i = 0; i < roundCount; i++) {
+                        long value = base + i;
+                        try {
+                            check(value, echoService.echo(value));
+                        } catch (RpcTimeoutException e) {
+                            TIMEOUT_COUNT.incrementAndGet();
+                        } catch (Exception e) {
+                            ERROR_COUNT.incrementAndGet();
+                        }
+
+                        for (int j = 0; j < ASYNC_BATCH; j++) {
+                            futures[j] = echoAsyncService.echo(value * 31 + j);
+                        }
+                        for (int j = 0; j < ASYNC_BATCH; j++) {
+                            try {
+                                check(value * 31 + j, futures[j].get());
+                            } catch (ExecutionException e) {
+                                if (e.getCause() instanceof RpcTimeoutException) {
+                                    TIMEOUT_COUNT.incrementAndGet();
+                                } else {
+                                    ERROR_COUNT.incrementAndGet();
+                                }
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    latch.countDown();
+                }
+            }, "Stress-" + t).start();
+        }
+        latch.await();
+    }
+
+    static void check(long expect, Object actual) {
+        if (actual instanceof Number && ((Number) actual).longValue() == expect) {
+            OK_COUNT.incrementAndGet();
+        } else {
+            MISMATCH_COUNT.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+import com.github.netty.servlet.ServletContext;
+import com.github.netty.servlet.ServletSessionCookieConfig;
+import com.github.netty.session.impl.LocalSessionServiceImpl;
+import com.github.netty.springboot.NettyEmbeddedServletContainer;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 请求体超过流式接收的高水位 (256KB) 时, 连接不能卡住
+ * 1.同一个连接上先后发两个400KB的请求体, 都要读完整并响应
+ * 2.调度方式是EVENT_LOOP时应该退回聚合, 其他调度方式走流式接收
+ * @author 84215
+ */
+public class StreamRequestBodyTest {
+
+    static final int PORT = 18084;
+    static final int BODY_LENGTH = 400 * 1024;
+    static final int READ_TIMEOUT = 5000;
+
+    public static void main(String[] args) throws Exception {
+        ServletContext servletContext = new ServletContext(new InetSocketAddress(PORT), StreamRequestBodyTest.class.getClassLoader(),
+                "", "stream-test", new ServletSessionCookieConfig());
+        servletContext.setSessionService(new LocalSessionServiceImpl());
+        servletContext.addServlet("count", new HttpServlet() {
+            @Override
+            protected void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
+                byte[] buffer = new byte[8192];
+                long total = 0;
+                int n;
+                InputStream in = request.getInputStream();
+                while ((n = in.read(buffer)) != -1) {
+                    total += n;
+                }
+                response.setContentType("text/plain");
+                response.getWriter().print("len=" + total);
+            }
+        }).addMapping("/count");
+
+        NettyEmbeddedServletContainer container = new NettyEmbeddedServletContainer(servletContext, null);
+        container.start();
+        Thread.sleep(1000);
+
+        byte[] body = new byte[BODY_LENGTH];
+        Arrays.fill(body, (byte) 'b');
+        boolean success = true;
+        try (Socket socket = new Socket("127.0.0.1", PORT)) {
+            socket.setSoTimeout(READ_TIMEOUT);
+            for (int i = 0; i < 2; i++) {
+                long beginTime = System.currentTimeMillis();
+                String response = post(socket, body);
+                boolean ok = response.endsWith("len=" + BODY_LENGTH);
+                success &= ok;
+                System.out.println("第" + (i + 1) + "次 : " + (ok ? "成功" : "失败") + ", 耗时 = " + (System.currentTimeMillis() - beginTime) + "ms, 响应 = " + response.substring(response.lastIndexOf('\n') + 1));
+            }
+        } catch (IOException e) {
+            success = false;
+            System.out.println("失败 : " + e);
+        }
+        container.stop();
+        System.out.println(success ? "全部成功" : "存在失败");
+        System.exit(success ? 0 : 1);
+    }
+
+    static String post(Socket socket, byte[] body) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        String head = "POST /count HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Type: application/octet-stream\r\nContent-Length: " + body.length + "\r\n\r\n";
+        out.write(head.getBytes(StandardCharsets.US_ASCII));
+        out.write(body);
+        out.flush();
+
+        //读响应头, 再按Content-Length读响应体
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream headBytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            headBytes.write(b);
+            byte[] bytes = headBytes.toByteArray();
+            int len = bytes.length;
+            if (len >= 4 && bytes[len - 4] == '\r' && bytes[len - 3] == '\n' && bytes[len - 2] == '\r' && bytes[len - 1] == '\n') {
+                break;
+            }
+        }
+        String responseHead = new String(headBytes.toByteArray(), StandardCharsets.US_ASCII);
+        int contentLength = 0;
+        for (String line : responseHead.split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        byte[] content = new byte[contentLength];
+        int offset = 0;
+        while (offset < contentLength && (b = in.read(content, offset, contentLength - offset)) != -1) {
+            offset += b;
+        }
+        return responseHead.trim() + "\n" + new String(content, 0, offset, StandardCharsets.UTF_8);
+    }
+
+}